@@ -1,5 +1,24 @@
-import java.util.stream.Collectors;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.regex.*;
+import java.util.zip.CRC32;
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 abstract class Piece
 {
@@ -24,12 +43,22 @@ abstract class Piece
     return possibleMoves ()[position.getRow ()][position.getColumn ()];
   }
 
+  public boolean possibleMove (int square)
+  {
+    return possibleMove (board.position (square));
+  }
+
+  public int getSquare ()
+  {
+    return (position == null) ? -1 : board.square (position);
+  }
+
   public boolean isThereAnyPossibleMove ()
   {
     boolean[][]mat = possibleMoves ();
     for (int i = 0; i < mat.length; i++)
       {
-	for (int j = 0; j < mat.length; j++)
+	for (int j = 0; j < mat[i].length; j++)
 	  {
 	    if (mat[i][j])
 	      {
@@ -81,9 +110,12 @@ class Position
 
 class Board
 {
-  private Integer rows;
-  private Integer columns;
-  private Piece[][] pieces;
+  private int rows;
+  private int columns;
+  // squares are numbered row * columns + column
+  private Piece[] pieces;
+  // one Position per square; positions on the board are never mutated
+  private Position[] positions;
 
   public Board (int rows, int columns)
   {
@@ -93,7 +125,12 @@ class Board
       }
     this.rows = rows;
     this.columns = columns;
-    pieces = new Piece[rows][columns];
+    pieces = new Piece[rows * columns];
+    positions = new Position[rows * columns];
+    for (int square = 0; square < positions.length; square++)
+      {
+	positions[square] = new Position (square / columns, square % columns);
+      }
   }
 
   public Integer getRows ()
@@ -106,32 +143,60 @@ class Board
     return columns;
   }
 
-  public Piece piece (Integer row, Integer column)
+  public int square (Position position)
+  {
+    return position.getRow () * columns + position.getColumn ();
+  }
+
+  public Position position (int square)
+  {
+    if (!positionExists (square))
+      {
+	throw new BoardException ("invalid position");
+      }
+    return positions[square];
+  }
+
+  public Piece piece (int row, int column)
   {
     if (!positionExists (row, column))
       {
 	throw new BoardException ("invalid position");
       }
-    return pieces[row][column];
+    return pieces[row * columns + column];
   }
 
   public Piece piece (Position position)
   {
-    if (!positionExists (position))
+    return piece (position.getRow (), position.getColumn ());
+  }
+
+  public Piece piece (int square)
+  {
+    if (!positionExists (square))
       {
 	throw new BoardException ("invalid position");
       }
-    return pieces[position.getRow ()][position.getColumn ()];
+    return pieces[square];
   }
 
   public void placePiece (Piece piece, Position position)
   {
-    if (thereIsAPiece (position))
+    if (!positionExists (position))
+      {
+	throw new BoardException ("invalid position");
+      }
+    placePiece (piece, square (position));
+  }
+
+  public void placePiece (Piece piece, int square)
+  {
+    if (thereIsAPiece (square))
       {
 	throw new BoardException ("select another empty position");
       }
-    pieces[position.getRow ()][position.getColumn ()] = piece;
-    piece.position = position;
+    pieces[square] = piece;
+    piece.position = positions[square];
   }
 
   public Piece removePiece (Position position)
@@ -140,13 +205,22 @@ class Board
       {
 	throw new BoardException ("empty position");
       }
-    if (piece (position) == null)
+    return removePiece (square (position));
+  }
+
+  public Piece removePiece (int square)
+  {
+    if (!positionExists (square))
+      {
+	throw new BoardException ("empty position");
+      }
+    Piece aux = pieces[square];
+    if (aux == null)
       {
 	return null;
       }
-    Piece aux = piece (position);
     aux.position = null;
-    pieces[position.getRow ()][position.getColumn ()] = null;
+    pieces[square] = null;
     return aux;
   }
 
@@ -160,6 +234,11 @@ class Board
     return positionExists (position.getRow (), position.getColumn ());
   }
 
+  public boolean positionExists (int square)
+  {
+    return square >= 0 && square < pieces.length;
+  }
+
   public boolean thereIsAPiece (Position position)
   {
     if (!positionExists (position))
@@ -168,6 +247,15 @@ class Board
       }
     return piece (position) != null;
   }
+
+  public boolean thereIsAPiece (int square)
+  {
+    if (!positionExists (square))
+      {
+	throw new BoardException ("empty position");
+      }
+    return pieces[square] != null;
+  }
 }
 
 class BoardException extends RuntimeException
@@ -198,9 +286,17 @@ class ChessException extends BoardException
 
 abstract class ChessPiece extends Piece
 {
+  public static final int PAWN = 0;
+  public static final int KNIGHT = 1;
+  public static final int BISHOP = 2;
+  public static final int ROOK = 3;
+  public static final int QUEEN = 4;
+  public static final int KING = 5;
 
   private Color color;
   private int moveCount;
+  // slot in the match's PieceList
+  int listIndex = -1;
 
   public ChessPiece (Board board, Color color)
   {
@@ -235,17 +331,38 @@ abstract class ChessPiece extends Piece
 
   public ChessPosition getChessPosition ()
   {
-    return ChessPosition.fromPosition (position);
+    return ChessPosition.of (getSquare ());
   }
+
+  public abstract int getType ();
 }
 
 class ChessPosition
 {
+  // one interned instance per square, indexed like Move squares
+  private static final ChessPosition[] SQUARES = new ChessPosition[64];
+  static
+  {
+    for (int square = 0; square < 64; square++)
+      {
+	SQUARES[square] =
+	  new ChessPosition ((char) ('a' + Move.column (square)),
+			     8 - Move.row (square), square);
+      }
+  }
 
-  private char column;
-  private Integer row;
+  private final char column;
+  private final int row;
+  private final int square;
 
-  public ChessPosition (char column, Integer row)
+  private ChessPosition (char column, int row, int square)
+  {
+    this.column = column;
+    this.row = row;
+    this.square = square;
+  }
+
+  public static ChessPosition of (char column, int row)
   {
     if (column < 'a' || column > 'h' || row < 1 || row > 8)
       {
@@ -253,29 +370,31 @@ class ChessPosition
 	  ChessException
 	  ("Erro ao instanciar a posiC'C#o no tabuleiro. Valores validos sC#o de a1 atC) h8.");
       }
-    this.column = column;
-    this.row = row;
+    return SQUARES[Move.square (8 - row, column - 'a')];
   }
 
-  public char getColumn ()
+  public static ChessPosition of (int square)
   {
-    return column;
+    if (square < 0 || square >= 64)
+      {
+	throw new ChessException ("invalid square: " + square);
+      }
+    return SQUARES[square];
   }
 
-  public Integer getRow ()
+  public char getColumn ()
   {
-    return row;
+    return column;
   }
 
-  protected Position toPosition ()
+  public int getRow ()
   {
-    return new Position (8 - row, column - 'a');
+    return row;
   }
 
-  protected static ChessPosition fromPosition (Position position)
+  public int getSquare ()
   {
-    return new ChessPosition ((char) ('a' + position.getColumn ()),
-			      8 - position.getRow ());
+    return square;
   }
 
   @Override public String toString ()
@@ -285,1052 +404,2804 @@ class ChessPosition
 
 }
 
-class ChessMatch
+class Move
 {
-  private ChessPiece enPassantVulnerable;
-  private ChessPiece promoted;
-  private Board board;
-  private Integer turn;
-  private Color currentPlayer;
-  private boolean check;
-  private boolean checkMate;
+  public static final int NO_PROMOTION = 0;
+  public static final int KNIGHT = 1;
+  public static final int BISHOP = 2;
+  public static final int ROOK = 3;
+  public static final int QUEEN = 4;
 
-  private List < Piece > piecesOnTheBoard = new ArrayList <> ();
-  private List < Piece > capturedPieces = new ArrayList <> ();
+  private static final String PROMOTION_TYPES = " CBTA";
+  private static final String PROMOTION_LETTERS = " nbrq";
 
-  public Integer getTurn ()
+  private Move ()
   {
-    return turn;
   }
 
-  public Color getCurrentPlayer ()
+  public static int of (int from, int to, int promotion)
   {
-    return currentPlayer;
+    return from | (to << 6) | (promotion << 12);
   }
 
-  public boolean isCheck ()
+  public static int from (int move)
   {
-    return check;
+    return move & 63;
   }
 
-  public boolean isCheckMate ()
+  public static int to (int move)
   {
-    return checkMate;
+    return (move >>> 6) & 63;
   }
 
-  public ChessPiece getEnPassantVulnerable ()
+  public static int promotion (int move)
   {
-    return enPassantVulnerable;
+    return (move >>> 12) & 7;
   }
 
-  public ChessPiece getPromoted ()
+  public static String promotionType (int move)
   {
-    return promoted;
+    return String.valueOf (PROMOTION_TYPES.charAt (promotion (move)));
   }
 
-  public ChessMatch ()
+  public static int square (int row, int column)
   {
-    this.board = new Board (8, 8);
-    turn = 1;
-    currentPlayer = Color.WHITE;
-    initialSetup ();
+    return row * 8 + column;
   }
 
-  public ChessPiece[][] getPieces ()
+  public static int row (int square)
   {
-    ChessPiece[][]mat = new ChessPiece[board.getRows ()][board.getColumns ()];
-    for (int i = 0; i < board.getRows (); i++)
-      {
-	for (int j = 0; j < board.getColumns (); j++)
-	  {
-	    mat[i][j] = (ChessPiece) board.piece (i, j);
-	  }
-      }
-    return mat;
+    return square >>> 3;
   }
 
+  public static int column (int square)
+  {
+    return square & 7;
+  }
+
+  public static ChessPosition chessPosition (int square)
+  {
+    return ChessPosition.of (square);
+  }
 
+  public static String squareName (int square)
+  {
+    return "" + (char) ('a' + column (square)) + (8 - row (square));
+  }
 
-  public ChessPiece performChessMove (ChessPosition sourcePosition,
-				      ChessPosition targetPosition)
+  public static int parseSquare (String s, int index)
   {
-    Position source = sourcePosition.toPosition ();
-    Position target = targetPosition.toPosition ();
-    validateSourcePosition (source);
-    validateTargetPosition (source, target);
-    Piece capturedPiece = makeMove (source, target);
-    if (testCheck (currentPlayer))
+    char column = s.charAt (index);
+    char row = s.charAt (index + 1);
+    if (column < 'a' || column > 'h' || row < '1' || row > '8')
       {
-	undoMove (source, target, capturedPiece);
-	throw new ChessException ("undo move");
+	throw new ChessException ("invalid square: " + s);
       }
-    ChessPiece movedPiece = (ChessPiece) board.piece (target);
+    return square ('8' - row, column - 'a');
+  }
 
-    //#specialmove promotion
-    promoted = null;
-    if (movedPiece instanceof Pawn)
+  public static int parseUci (String s)
+  {
+    if (s.length () < 4 || s.length () > 5)
       {
-	if ((movedPiece.getColor () == Color.WHITE && target.getRow () == 0)
-	    || (movedPiece.getColor () == Color.BLACK
-		&& target.getRow () == 7))
+	throw new ChessException ("invalid move: " + s);
+      }
+    int promotion = NO_PROMOTION;
+    if (s.length () == 5)
+      {
+	promotion = PROMOTION_LETTERS.indexOf (s.charAt (4));
+	if (promotion <= 0)
 	  {
-	    promoted = (ChessPiece) board.piece (target);
-	    promoted = replacepromotedPiece ("A");
+	    throw new ChessException ("invalid move: " + s);
 	  }
       }
+    return of (parseSquare (s, 0), parseSquare (s, 2), promotion);
+  }
+
+  public static String toUci (int move)
+  {
+    String s = squareName (from (move)) + squareName (to (move));
+    if (promotion (move) != NO_PROMOTION)
+      {
+	s += PROMOTION_LETTERS.charAt (promotion (move));
+      }
+    return s;
+  }
+}
 
-    check = (testCheck (opponent (currentPlayer))) ? true : false;
+class Zobrist
+{
+  // generated from a fixed seed: keys are persisted in on-disk indexes
+  private static final long[] PIECES = new long[12 * 64];
+  private static final long[] CASTLING = new long[16];
+  private static final long[] EN_PASSANT = new long[8];
+  private static final long SIDE;
 
-    if (testCheckMate (opponent (currentPlayer)))
+  static
+  {
+    long seed = 0x5EED_C4E5_5L;
+    for (int i = 0; i < PIECES.length; i++)
       {
-	checkMate = true;
+	PIECES[i] = splitMix (seed += 0x9E3779B97F4A7C15L);
       }
-    else
+    long[] rights = new long[4];
+    for (int i = 0; i < rights.length; i++)
       {
-	nextTurn ();
+	rights[i] = splitMix (seed += 0x9E3779B97F4A7C15L);
       }
-
-    // #specialmove en passant
-    if (movedPiece instanceof Pawn
-	&& (target.getRow () == source.getRow () - 2
-	    || target.getRow () == source.getRow () + 2))
+    for (int i = 0; i < CASTLING.length; i++)
       {
-	enPassantVulnerable = movedPiece;
+	for (int bit = 0; bit < 4; bit++)
+	  {
+	    if ((i & (1 << bit)) != 0)
+	      {
+		CASTLING[i] ^= rights[bit];
+	      }
+	  }
       }
-    else
+    for (int i = 0; i < EN_PASSANT.length; i++)
       {
-	enPassantVulnerable = null;
+	EN_PASSANT[i] = splitMix (seed += 0x9E3779B97F4A7C15L);
       }
-
-    return (ChessPiece) capturedPiece;
+    SIDE = splitMix (seed + 0x9E3779B97F4A7C15L);
   }
 
-  public ChessPiece replacepromotedPiece (String type)
+  private Zobrist ()
   {
-    if (promoted == null)
-      {
-	throw new IllegalStateException ("null promoted");
-      }
-    if (!type.equals ("T") && !type.equals ("A") && !type.equals ("C")
-	&& !type.equals ("B"))
-      {
+  }
 
-      }
-    Position position = promoted.getChessPosition ().toPosition ();
-    Piece p = board.removePiece (position);
-    piecesOnTheBoard.remove (p);
+  private static long splitMix (long z)
+  {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
 
-    ChessPiece newPiece = newPiece (type, promoted.getColor ());
-    board.placePiece (newPiece, position);
-    piecesOnTheBoard.add (newPiece);
+  public static int pieceIndex (ChessPiece piece)
+  {
+    return piece.getType () + ((piece.getColor () == Color.BLACK) ? 6 : 0);
+  }
 
-    return newPiece;
+  public static long piece (int pieceIndex, int square)
+  {
+    return PIECES[pieceIndex * 64 + square];
   }
 
-  private ChessPiece newPiece (String type, Color color)
+  public static long piece (ChessPiece piece, int square)
   {
-    if (type.equals ("B"))
-      return new Bishop (board, color);
-    if (type.equals ("C"))
-      return new Knight (board, color);
-    if (type.equals ("A"))
-      return new Queen (board, color);
-    return new Rook (board, color);
+    return PIECES[pieceIndex (piece) * 64 + square];
   }
 
-  private void validateSourcePosition (Position position)
+  public static long castling (int rights)
   {
-    if (!board.thereIsAPiece (position))
-      {
-	throw new ChessException ("there Is no Piece.");
-      }
-    if (currentPlayer != ((ChessPiece) board.piece (position)).getColor ())
-      {
-	throw new ChessException ("The piece chosen is not yours.");
-      }
-    if (!board.piece (position).isThereAnyPossibleMove ())
-      {
-	throw new
-	  ChessException ("There are no moves possible for the chosen piece");
-      }
+    return CASTLING[rights];
   }
 
-  public boolean[][] possibleMoves (ChessPosition sourcePosition)
+  public static long enPassant (int column)
   {
-    Position position = sourcePosition.toPosition ();
-    validateSourcePosition (position);
-    return board.piece (position).possibleMoves ();
+    return EN_PASSANT[column];
   }
 
-  private Piece makeMove (Position source, Position target)
+  public static long side ()
   {
-    ChessPiece p = (ChessPiece) board.removePiece (source);
-    p.increaseMoveCount ();
-    Piece capturedPiece = board.removePiece (target);
-    board.placePiece (p, target);
-    if (capturedPiece != null)
-      {
-	piecesOnTheBoard.remove (capturedPiece);
-	capturedPieces.add (capturedPiece);
-      }
+    return SIDE;
+  }
+}
 
-    //#Special move castling king side rook
-    if (p instanceof King && target.getColumn () == source.getColumn () + 2)
-      {
-	Position sourceT =
-	  new Position (source.getRow (), source.getColumn () + 3);
-	Position targetT =
-	  new Position (source.getRow (), source.getColumn () + 1);
-	ChessPiece rook = (ChessPiece) board.removePiece (sourceT);
-	board.placePiece (rook, targetT);
-	rook.increaseMoveCount ();
-      }
-    //#Special move castling king side rook
-    else if (p instanceof King
-	     && target.getColumn () == source.getColumn () - 2)
-      {
-	Position sourceT =
-	  new Position (source.getRow (), source.getColumn () - 4);
-	Position targetT =
-	  new Position (source.getRow (), source.getColumn () - 1);
-	ChessPiece rook = (ChessPiece) board.removePiece (sourceT);
-	board.placePiece (rook, targetT);
-	rook.increaseMoveCount ();
-      }
-    // #specialmove en passant
-    if (p instanceof Pawn)
-      {
-	if (source.getColumn () != target.getColumn ()
-	    && capturedPiece == null)
-	  {
-	    Position pawnPosition;
-	    if (p.getColor () == Color.WHITE)
-	      {
-		pawnPosition =
-		  new Position (target.getRow () + 1, target.getColumn ());
-	      }
-	    else
-	      {
-		pawnPosition =
-		  new Position (target.getRow () - 1, target.getColumn ());
-	      }
-	    capturedPiece = board.removePiece (pawnPosition);
-	    capturedPieces.add (capturedPiece);
-	    piecesOnTheBoard.remove (capturedPiece);
-	  }
-      }
+// the pieces on the board by kind (type, plus 6 for black); every piece
+// knows its slot, so add and remove are O(1) with swap-remove
+class PieceList
+{
+  private final ChessPiece[][] pieces = new ChessPiece[12][10];
+  private final int[] counts = new int[12];
 
-    return capturedPiece;
+  public static int kind (Color color, int type)
+  {
+    return (color == Color.WHITE) ? type : type + 6;
   }
 
-  private void undoMove (Position source, Position target, Piece captured)
+  public static int kind (ChessPiece piece)
   {
-    ChessPiece p = (ChessPiece) board.removePiece (target);
-    p.decreaseMoveCount ();
-    board.placePiece (p, source);
+    return kind (piece.getColor (), piece.getType ());
+  }
 
-    if (captured != null)
-      {
-	board.placePiece (captured, target);
-	capturedPieces.remove (captured);
-	piecesOnTheBoard.add (captured);
-      }
-    //#Special move castling king side rook
-    if (p instanceof King && target.getColumn () == source.getColumn () + 2)
-      {
-	Position sourceT =
-	  new Position (source.getRow (), source.getColumn () + 3);
-	Position targetT =
-	  new Position (source.getRow (), source.getColumn () + 1);
-	ChessPiece rook = (ChessPiece) board.removePiece (targetT);
-	board.placePiece (rook, sourceT);
-	rook.decreaseMoveCount ();
-      }
-    //#Special move castling king side rook
-    else if (p instanceof King
-	     && target.getColumn () == source.getColumn () - 2)
+  public void add (ChessPiece piece)
+  {
+    int kind = kind (piece);
+    if (counts[kind] == pieces[kind].length)
       {
-	Position sourceT =
-	  new Position (source.getRow (), source.getColumn () - 4);
-	Position targetT =
-	  new Position (source.getRow (), source.getColumn () - 1);
-	ChessPiece rook = (ChessPiece) board.removePiece (targetT);
-	board.placePiece (rook, sourceT);
-	rook.decreaseMoveCount ();
+	pieces[kind] = Arrays.copyOf (pieces[kind], counts[kind] * 2);
       }
+    piece.listIndex = counts[kind];
+    pieces[kind][counts[kind]++] = piece;
+  }
 
-    // #specialmove en passant
-    if (p instanceof Pawn)
-      {
-	if (source.getColumn () != target.getColumn ()
-	    && captured == enPassantVulnerable)
-	  {
-	    ChessPiece pawn = (ChessPiece) board.removePiece (target);
-	    Position pawnPosition;
-	    if (p.getColor () == Color.WHITE)
-	      {
-		pawnPosition = new Position (3, target.getColumn ());
-	      }
-	    else
-	      {
-		pawnPosition = new Position (4, target.getColumn ());
-	      }
-	    board.placePiece (pawn, pawnPosition);
-	  }
-      }
+  public void remove (ChessPiece piece)
+  {
+    int kind = kind (piece);
+    int last = --counts[kind];
+    ChessPiece moved = pieces[kind][last];
+    pieces[kind][piece.listIndex] = moved;
+    moved.listIndex = piece.listIndex;
+    pieces[kind][last] = null;
+    piece.listIndex = -1;
   }
 
-  private void validateTargetPosition (Position source, Position target)
+  public int count (int kind)
   {
-    if (!board.piece (source).possibleMove (target))
-      {
-	throw new
-	  ChessException
-	  ("The chosen piece cannot move to the chosen position");
-      }
+    return counts[kind];
   }
 
-  private void nextTurn ()
+  public ChessPiece get (int kind, int index)
   {
-    turn++;
-    currentPlayer =
-      (currentPlayer == Color.WHITE) ? Color.BLACK : Color.WHITE;
+    return pieces[kind][index];
   }
+}
 
-  private void placeNewPiece (char column, int row, ChessPiece piece)
+// callbacks from performChessMove, in the order capture, promotion, move,
+// check, game end. Squares are 0-63 from a8, types are the ChessPiece
+// constants. onPromotion fires again when the promoted piece is replaced
+interface MatchListener
+{
+  int CHECKMATE = 1;
+  int STALEMATE = 2;
+  int FIFTY_MOVES = 3;
+  int REPETITION = 4;
+  int INSUFFICIENT_MATERIAL = 5;
+
+  default void onMove (int move, int ply)
   {
-    board.placePiece (piece, new ChessPosition (column, row).toPosition ());
-    piecesOnTheBoard.add (piece);
   }
 
-  private Color opponent (Color color)
+  default void onCapture (int square, int type, Color color)
   {
-    return (color == Color.WHITE) ? Color.BLACK : Color.WHITE;
   }
 
-  private ChessPiece king (Color color)
+  default void onPromotion (int square, int type, Color color)
   {
-    List < Piece > list = listColorPieces (color);
-  for (Piece p:list)
-      {
-	if (p instanceof King)
-	  {
-	    return (ChessPiece) p;
-	  }
-      }
-    throw new IllegalStateException ("There is no king with the color " +
-				     color);
   }
 
-  private List < Piece > listColorPieces (Color color)
+  // color is the side in check
+  default void onCheck (Color color)
   {
-    return piecesOnTheBoard.stream ().filter (x->((ChessPiece) x).
-					      getColor () ==
-					      color).collect (Collectors.
-							      toList ());
   }
 
-  private boolean testCheck (Color color)
+  // winner is null for a draw
+  default void onGameEnd (int reason, Color winner)
   {
-    Position kingPosition = king (color).getChessPosition ().toPosition ();
-    List < Piece > opponentPieces = listColorPieces (opponent (color));
-
-  for (Piece p:opponentPieces)
-      {
-	boolean[][]mat = p.possibleMoves ();
-	if (mat[kingPosition.getRow ()][kingPosition.getColumn ()])
-	  {
-	    return true;
-	  }
-      }
-    return false;
   }
+}
 
-  private boolean testCheckMate (Color color)
-  {
-    if (!testCheck (color))
-      {
-	return false;
-      }
-    List < Piece > list = listColorPieces (color);
-  for (Piece p:list)
-      {
-	boolean[][]mat = p.possibleMoves ();
-	for (int i = 0; i < board.getRows (); i++)
-	  {
-	    for (int j = 0; j < board.getColumns (); j++)
-	      {
-		if (mat[i][j])
-		  {
-		    Position source =
-		      ((ChessPiece) p).getChessPosition ().toPosition ();
-		    Position target = new Position (i, j);
-		    Piece capturedPiece = makeMove (source, target);
-		    boolean testCheck = testCheck (color);
-		    undoMove (source, target, capturedPiece);
-		    if (!testCheck)
-		      {
-			return false;
-		      }
-		  }
-	      }
-	  }
-      }
-    return true;
+// read-only access to the pieces of a board without copying it
+interface ChessBoardView
+{
+  ChessPiece piece (int square);
 
+  default ChessPiece piece (int row, int column)
+  {
+    return piece (Move.square (row, column));
   }
 
-  private void initialSetup ()
+  default boolean isEmpty (int square)
   {
-    placeNewPiece ('a', 1, new Rook (board, Color.WHITE));
-    placeNewPiece ('b', 1, new Knight (board, Color.WHITE));
-    placeNewPiece ('c', 1, new Bishop (board, Color.WHITE));
-    placeNewPiece ('d', 1, new Queen (board, Color.WHITE));
-    placeNewPiece ('e', 1, new King (board, Color.WHITE, this));
-    placeNewPiece ('f', 1, new Bishop (board, Color.WHITE));
-    placeNewPiece ('g', 1, new Knight (board, Color.WHITE));
-    placeNewPiece ('h', 1, new Rook (board, Color.WHITE));
-    placeNewPiece ('a', 2, new Pawn (board, Color.WHITE, this));
-    placeNewPiece ('b', 2, new Pawn (board, Color.WHITE, this));
-    placeNewPiece ('c', 2, new Pawn (board, Color.WHITE, this));
-    placeNewPiece ('d', 2, new Pawn (board, Color.WHITE, this));
-    placeNewPiece ('e', 2, new Pawn (board, Color.WHITE, this));
-    placeNewPiece ('f', 2, new Pawn (board, Color.WHITE, this));
-    placeNewPiece ('g', 2, new Pawn (board, Color.WHITE, this));
-    placeNewPiece ('h', 2, new Pawn (board, Color.WHITE, this));
-
-    placeNewPiece ('a', 8, new Rook (board, Color.BLACK));
-    placeNewPiece ('b', 8, new Knight (board, Color.BLACK));
-    placeNewPiece ('c', 8, new Bishop (board, Color.BLACK));
-    placeNewPiece ('d', 8, new Queen (board, Color.BLACK));
-    placeNewPiece ('e', 8, new King (board, Color.BLACK, this));
-    placeNewPiece ('f', 8, new Bishop (board, Color.BLACK));
-    placeNewPiece ('g', 8, new Knight (board, Color.BLACK));
-    placeNewPiece ('h', 8, new Rook (board, Color.BLACK));
-    placeNewPiece ('a', 7, new Pawn (board, Color.BLACK, this));
-    placeNewPiece ('b', 7, new Pawn (board, Color.BLACK, this));
-    placeNewPiece ('c', 7, new Pawn (board, Color.BLACK, this));
-    placeNewPiece ('d', 7, new Pawn (board, Color.BLACK, this));
-    placeNewPiece ('e', 7, new Pawn (board, Color.BLACK, this));
-    placeNewPiece ('f', 7, new Pawn (board, Color.BLACK, this));
-    placeNewPiece ('g', 7, new Pawn (board, Color.BLACK, this));
-    placeNewPiece ('h', 7, new Pawn (board, Color.BLACK, this));
+    return piece (square) == null;
   }
-}
 
-
-class Bishop extends ChessPiece
-{
-  public Bishop (Board board, Color color)
+  // -1 on an empty square
+  default int getType (int square)
   {
-    super (board, color);
+    ChessPiece p = piece (square);
+    return (p == null) ? -1 : p.getType ();
   }
 
-   @Override public boolean[][] possibleMoves ()
+  default Color getColor (int square)
   {
+    ChessPiece p = piece (square);
+    return (p == null) ? null : p.getColor ();
+  }
 
-    boolean[][]mat =
-      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
+  static ChessBoardView of (ChessPiece[][]pieces)
+  {
+    return square -> pieces[Move.row (square)][Move.column (square)];
+  }
+}
 
-    Position p = new Position (0, 0);
+class ChessMatch
+{
+  private ChessPiece enPassantVulnerable;
+  private ChessPiece promoted;
+  private Board board;
+  private Integer turn;
+  private Color currentPlayer;
+  private boolean check;
+  private boolean checkMate;
 
-    // northwest
-    p.setValues (position.getRow () - 1, position.getColumn () - 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setValues (p.getRow () - 1, p.getColumn () - 1);
-      }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-      }
+  private PieceList piecesOnTheBoard = new PieceList ();
+  private List < Piece > capturedPieces = new ArrayList <> ();
 
-    // northeast
-    p.setValues (position.getRow () - 1, position.getColumn () + 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setValues (p.getRow () - 1, p.getColumn () + 1);
-      }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-      }
+  // undo stack for push/pop
+  private int[] undoMoves = new int[64];
+  private Piece[] undoCaptured = new Piece[64];
+  private ChessPiece[] undoEnPassant = new ChessPiece[64];
+  private ChessPiece[] undoPawns = new ChessPiece[64];
+  private boolean[] undoCheck = new boolean[64];
+  private int[] undoHalfmove = new int[64];
+  private long[] undoKeys = new long[64];
+
+  // plies since the last capture or pawn move; the game keys below
+  // keysBase are unknown
+  private int halfmoveClock;
+  private int keysBase;
+  // the rook of each castling right, in the bit order of castlingRights
+  private static final int[] CASTLING_ROOKS = { 63, 56, 7, 0 };
+  private int undoCount;
+
+  // material signatures, 4 bits per piece kind with black after white
+  private static final long KINGS =
+    1L << (4 * ChessPiece.KING) | 1L << (4 * (ChessPiece.KING + 6));
+  private static final long[] DEAD_MATERIAL = {
+    KINGS,
+    KINGS + (1L << (4 * ChessPiece.KNIGHT)),
+    KINGS + (1L << (4 * ChessPiece.BISHOP)),
+    KINGS + (1L << (4 * (ChessPiece.KNIGHT + 6))),
+    KINGS + (1L << (4 * (ChessPiece.BISHOP + 6)))
+  };
+  static
+  {
+    Arrays.sort (DEAD_MATERIAL);
+  }
 
-    // southeast
-    p.setValues (position.getRow () + 1, position.getColumn () + 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setValues (p.getRow () + 1, p.getColumn () + 1);
-      }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-      }
+  // undo records of the moves played through performChessMove: the move,
+  // what it captured or promoted, the state before it and the key of the
+  // position before it. Plies below historyBase have no record (a match
+  // rebuilt from a CompactMatch), those from historyCount to historyEnd are
+  // taken back and can be redone
+  private static final int CHECK_BEFORE = 1;
+  private static final int MATE_BEFORE = 2;
+  private static final int CHECK_AFTER = 4;
+  private static final int MATE_AFTER = 8;
+  private short[] history = new short[16];
+  private int[] historyFlags = new int[16];
+  private long[] historyKeys = new long[16];
+  private Piece[] historyCaptured = new Piece[16];
+  private ChessPiece[] historyEnPassant = new ChessPiece[16];
+  private ChessPiece[] historyPromoted = new ChessPiece[16];
+  private ChessPiece[] historyPawns = new ChessPiece[16];
+  private ChessPiece[] historyPieces = new ChessPiece[16];
+  private int historyBase;
+  private int historyCount;
+  private int historyEnd;
+  // the history starts at the initial position, so plies below historyBase
+  // can be restored by replaying it
+  private boolean fromStart;
+
+  private static final LongAdder MOVES = Metrics.ENGINE.counter ("moves");
+  private static final LongAdder CHECKS_TESTED =
+    Metrics.ENGINE.counter ("checksTested");
+  private static final LongAdder LEGAL_MOVES =
+    Metrics.ENGINE.counter ("legalMovesGenerated");
+  private static final LatencyHistogram MOVE_MICROS =
+    Metrics.ENGINE.histogram ("performChessMoveMicros");
+  // testCheck calls on this match, for the node counts of events
+  private long checksTested;
+
+  private static final MatchListener[] NO_LISTENERS = new MatchListener[0];
+  private MatchListener[] listeners = NO_LISTENERS;
+  private final ChessBoardView boardView = this::pieceAt;
 
-    // below
-    p.setValues (position.getRow () + 1, position.getColumn () - 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setValues (p.getRow () + 1, p.getColumn () - 1);
-      }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-      }
+  public Integer getTurn ()
+  {
+    return turn;
+  }
 
-    return mat;
+  public Color getCurrentPlayer ()
+  {
+    return currentPlayer;
   }
 
-  @Override public String toString ()
+  public boolean isCheck ()
   {
-    return "B";
+    return check;
   }
-}
 
-class King extends ChessPiece
-{
+  public boolean isCheckMate ()
+  {
+    return checkMate;
+  }
 
-  private ChessMatch chessMatch;
+  // checkmate of the side to move after push, which leaves the checkMate
+  // flag of performChessMove alone
+  public boolean isMated ()
+  {
+    return checkMate || check && !hasAnyLegalMove (currentPlayer);
+  }
 
-  public King (Board board, Color color, ChessMatch chessMatch)
+  public ChessPiece getEnPassantVulnerable ()
   {
-    super (board, color);
-    this.chessMatch = chessMatch;
+    return enPassantVulnerable;
   }
-  public ChessMatch getChessMatch ()
+
+  public ChessPiece getPromoted ()
   {
-    return chessMatch;
+    return promoted;
   }
-  @Override public String toString ()
+
+  public ChessBoardView getBoardView ()
   {
-    return "R";
+    return boardView;
   }
 
-  private boolean canMove (Position position)
+  public void addListener (MatchListener listener)
   {
-    ChessPiece p = (ChessPiece) getBoard ().piece (position);
-    return p == null || p.getColor () != getColor ();
+    listeners = Arrays.copyOf (listeners, listeners.length + 1);
+    listeners[listeners.length - 1] = listener;
   }
 
-  private boolean testRookCastling (Position position)
+  public void removeListener (MatchListener listener)
   {
-    ChessPiece p = (ChessPiece) getBoard ().piece (position);
-    return position != null && p instanceof Rook && getColor () == getColor ()
-      && p.getMoveCount () == 0;
+    for (int i = 0; i < listeners.length; i++)
+      {
+	if (listeners[i] == listener)
+	  {
+	    MatchListener[] rest = new MatchListener[listeners.length - 1];
+	    System.arraycopy (listeners, 0, rest, 0, i);
+	    System.arraycopy (listeners, i + 1, rest, i, rest.length - i);
+	    listeners = rest;
+	    return;
+	  }
+      }
   }
 
-  @Override public boolean[][]possibleMoves ()
+  public ChessMatch ()
   {
-    boolean[][]mat =
-      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
-    Position p = new Position (0, 0);
+    this.board = new Board (8, 8);
+    turn = 1;
+    currentPlayer = Color.WHITE;
+    fromStart = true;
+    initialSetup ();
+  }
 
-    //above
-    p.setValues (position.getRow () - 1, position.getColumn ());
-    if (getBoard ().positionExists (p) && canMove (p))
+  public ChessMatch (String fen)
+  {
+    this.board = new Board (8, 8);
+    String[] fields = fen.trim ().split ("\\s+");
+    String[] ranks = fields[0].split ("/");
+    if (fields.length < 4 || ranks.length != 8)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	throw new ChessException ("invalid FEN: " + fen);
       }
-    //below
-    p.setValues (position.getRow () + 1, position.getColumn ());
-    if (getBoard ().positionExists (p) && canMove (p))
+    for (int row = 0; row < 8; row++)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	int column = 0;
+      for (char c:ranks[row].toCharArray ())
+	  {
+	    if (c >= '1' && c <= '8')
+	      {
+		column += c - '0';
+		continue;
+	      }
+	    if (column > 7)
+	      {
+		throw new ChessException ("invalid FEN: " + fen);
+	      }
+	    ChessPiece piece = fenPiece (c);
+	    board.placePiece (piece, new Position (row, column++));
+	    piecesOnTheBoard.add (piece);
+	  }
+	if (column != 8)
+	  {
+	    throw new ChessException ("invalid FEN: " + fen);
+	  }
       }
-    //left
-    p.setValues (position.getRow (), position.getColumn () - 1);
-    if (getBoard ().positionExists (p) && canMove (p))
+    currentPlayer = fields[1].equals ("b") ? Color.BLACK : Color.WHITE;
+    int rights = 0;
+    for (int i = 0; i < 4; i++)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	rights |= (fields[2].indexOf ("KQkq".charAt (i)) >= 0) ? 1 << i : 0;
       }
+    initMoveCounts (rights);
 
-    //right
-    p.setValues (position.getRow (), position.getColumn () + 1);
-    if (getBoard ().positionExists (p) && canMove (p))
+    if (!fields[3].equals ("-"))
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	int square = Move.parseSquare (fields[3], 0);
+	int row = Move.row (square) + ((currentPlayer == Color.WHITE) ? 1 : -1);
+	ChessPiece pawn = (ChessPiece) board.piece (row, Move.column (square));
+	if (pawn instanceof Pawn && pawn.getColor () != currentPlayer)
+	  {
+	    enPassantVulnerable = pawn;
+	  }
       }
-
-
-    p.setValues (position.getRow () - 1, position.getColumn () - 1);
-    if (getBoard ().positionExists (p) && canMove (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
+    halfmoveClock = (fields.length >= 5) ? Integer.parseInt (fields[4]) : 0;
+    int fullmove = (fields.length >= 6) ? Integer.parseInt (fields[5]) : 1;
+    turn = (fullmove - 1) * 2 + ((currentPlayer == Color.WHITE) ? 1 : 2);
+    try
+    {
+      check = testCheck (currentPlayer);
+      checkMate = testCheckMate (currentPlayer);
+    }
+    catch (IllegalStateException e)
+    {
+      throw new ChessException ("invalid FEN: " + e.getMessage ());
+    }
+    if (checkMate)
+      {
+	// as after performChessMove: the winner stays current and the turn
+	// does not pass
+	currentPlayer = opponent (currentPlayer);
+	turn--;
       }
+  }
 
-
-    p.setValues (position.getRow () + 1, position.getColumn () + 1);
-    if (getBoard ().positionExists (p) && canMove (p))
+  ChessMatch (CompactMatch packed)
+  {
+    this.board = new Board (8, 8);
+    for (int square = 0; square < 64; square++)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	int code = packed.pieceCode (square);
+	if (code != 0)
+	  {
+	    char c = "pnbrqk".charAt ((code & 7) - 1);
+	    ChessPiece piece =
+	      fenPiece ((code < 8) ? Character.toUpperCase (c) : c);
+	    board.placePiece (piece,
+			      new Position (Move.row (square),
+					    Move.column (square)));
+	    piecesOnTheBoard.add (piece);
+	  }
       }
+    initMoveCounts (packed.castlingRights ());
+    enPassantVulnerable = pieceAt (packed.enPassantPawn ());
+    promoted = pieceAt (packed.promotedSquare ());
+    currentPlayer = packed.getCurrentPlayer ();
+    turn = packed.getTurn ();
+    check = packed.isCheck ();
+    checkMate = packed.isCheckMate ();
+    halfmoveClock = packed.getHalfmoveClock ();
+    fromStart = packed.isFromStart ();
+    historyBase = historyCount = historyEnd = packed.getPly ();
+    growHistory (Math.max (16, historyCount));
+    System.arraycopy (packed.history (), 0, history, 0, historyCount);
+    rebuildKeys ();
+  }
 
-
-    p.setValues (position.getRow () + 1, position.getColumn () - 1);
-    if (getBoard ().positionExists (p) && canMove (p))
+  // the keys for repetitions are not packed: the moves since the last
+  // capture or pawn move are taken back on the board to find them, then
+  // made again. A king or rook leaving home may have cost a castling right
+  // not held now, which makes the keys before it unknown, unless the same
+  // right was put at risk by an earlier move of the walk
+  private void rebuildKeys ()
+  {
+    Color player = currentPlayer;
+    boolean mate = checkMate;
+    ChessPiece vulnerable = enPassantVulnerable;
+    int rights = castlingRights ();
+    int limit = Math.min (halfmoveClock, Math.min (100, historyCount));
+    int[] risked = new int[4];
+    checkMate = false;
+    enPassantVulnerable = null;
+    int back = 0;
+    while (back < limit)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	int move = history[historyCount - back - 1];
+	ChessPiece p = pieceAt (Move.to (move));
+	int from = Move.from (move);
+	if ((p instanceof King
+	     && Math.abs (Move.column (from) - Move.column (Move.to (move))) ==
+	     2) || (back + 1 == historyCount && back + 1 == halfmoveClock
+		    && !fromStart))
+	  {
+	    // castling lost its rights for sure; the en passant square of a
+	    // starting FEN is not kept
+	    break;
+	  }
+	for (int i = 0; i < 4; i++)
+	  {
+	    if ((rights & (1 << i)) == 0 && mayLoseRight (i, p, from))
+	      {
+		risked[i] = back + 1;
+	      }
+	  }
+	undoMove (board.position (from), board.position (Move.to (move)),
+		  null);
+	back++;
+	currentPlayer = p.getColor ();
+	if (back == halfmoveClock)
+	  {
+	    enPassantVulnerable = lastDoubleStep (historyCount - back - 1);
+	  }
+	historyKeys[historyCount - back] = positionKey (rights);
+      }
+    int known = back;
+  for (int b:risked)
+      {
+	if (b > 0)
+	  {
+	    known = Math.min (known, b - 1);
+	  }
+      }
+    keysBase = historyCount - known;
+    for (int i = historyCount - back; i < historyCount; i++)
+      {
+	makeMove (board.position (Move.from (history[i])),
+		  board.position (Move.to (history[i])));
       }
+    currentPlayer = player;
+    checkMate = mate;
+    enPassantVulnerable = vulnerable;
+  }
 
+  // whether p leaving from cost castling right i (a bit of castlingRights)
+  // if it was still held: the king or rook of that right leaves home while
+  // its partner stands on its own square
+  private boolean mayLoseRight (int i, ChessPiece p, int from)
+  {
+    int king = (i < 2) ? 60 : 4;
+    int rook = CASTLING_ROOKS[i];
+    int partner = (p instanceof King) ? rook : king;
+    ChessPiece q = pieceAt (partner);
+    return p.getColor () == ((i < 2) ? Color.WHITE : Color.BLACK)
+      && ((p instanceof King && from == king && q instanceof Rook)
+	  || (p instanceof Rook && from == rook && q instanceof King))
+      && q.getColor () == p.getColor ();
+  }
 
-    //southeast
-    p.setValues (position.getRow () - 1, position.getColumn () + 1);
-    if (getBoard ().positionExists (p) && canMove (p))
+  // the pawn that made the double step at ply, or null
+  private ChessPiece lastDoubleStep (int ply)
+  {
+    if (ply < 0)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	return null;
       }
+    int move = history[ply];
+    ChessPiece p = pieceAt (Move.to (move));
+    return (p instanceof Pawn
+	    && Math.abs (Move.row (Move.from (move)) -
+			 Move.row (Move.to (move))) == 2) ? p : null;
+  }
 
+  private void growHistory (int capacity)
+  {
+    history = Arrays.copyOf (history, capacity);
+    historyFlags = Arrays.copyOf (historyFlags, capacity);
+    historyKeys = Arrays.copyOf (historyKeys, capacity);
+    historyCaptured = Arrays.copyOf (historyCaptured, capacity);
+    historyEnPassant = Arrays.copyOf (historyEnPassant, capacity);
+    historyPromoted = Arrays.copyOf (historyPromoted, capacity);
+    historyPawns = Arrays.copyOf (historyPawns, capacity);
+    historyPieces = Arrays.copyOf (historyPieces, capacity);
+  }
 
-    //Special move castling
-    if (getMoveCount () == 0 && !chessMatch.isCheck ())
+  // castling and the pawn double step are driven by the move counts
+  private void initMoveCounts (int rights)
+  {
+    for (int kind = 0; kind < 12; kind++)
       {
-	//# special move castling kingside rook
-	Position positionT1 =
-	  new Position (position.getRow (), position.getColumn () + 3);
-	if (testRookCastling (positionT1))
+	for (int n = 0; n < piecesOnTheBoard.count (kind); n++)
 	  {
-	    Position p1 =
-	      new Position (position.getRow (), position.getColumn () + 1);
-	    Position p2 =
-	      new Position (position.getRow (), position.getColumn () + 2);
-	    if (getBoard ().piece (p1) == null
-		&& getBoard ().piece (p2) == null)
+	    ChessPiece piece = piecesOnTheBoard.get (kind, n);
+	    Position p = piece.position;
+	    int square = Move.square (p.getRow (), p.getColumn ());
+	    boolean white = piece.getColor () == Color.WHITE;
+	    boolean unmoved = true;
+	    if (piece instanceof Pawn)
 	      {
-		mat[position.getRow ()][position.getColumn () + 2] = true;
+		unmoved = p.getRow () == (white ? 6 : 1);
 	      }
-	  }
-	//# special move castling queenside rook
-	Position positionT2 =
-	  new Position (position.getRow (), position.getColumn () - 4);
-	if (testRookCastling (positionT2))
-	  {
-	    Position p1 =
-	      new Position (position.getRow (), position.getColumn () - 1);
-	    Position p2 =
-	      new Position (position.getRow (), position.getColumn () - 2);
-	    Position p3 =
-	      new Position (position.getRow (), position.getColumn () - 3);
-	    if (getBoard ().piece (p1) == null
-		&& getBoard ().piece (p2) == null
-		&& getBoard ().piece (p3) == null)
+	    else if (piece instanceof King)
 	      {
-		mat[position.getRow ()][position.getColumn () - 2] = true;
+		unmoved = square == (white ? 60 : 4)
+		  && (rights & (white ? 3 : 12)) != 0;
+	      }
+	    else if (piece instanceof Rook)
+	      {
+		unmoved = (square == 63 && (rights & 1) != 0)
+		  || (square == 56 && (rights & 2) != 0)
+		  || (square == 7 && (rights & 4) != 0)
+		  || (square == 0 && (rights & 8) != 0);
+	      }
+	    if (!unmoved)
+	      {
+		piece.increaseMoveCount ();
 	      }
 	  }
-
       }
-    return mat;
   }
 
-
-}
-
-
-class Knight extends ChessPiece
-{
-  public Knight (Board board, Color color)
+  private ChessPiece fenPiece (char c)
   {
-    super (board, color);
+    Color color = Character.isUpperCase (c) ? Color.WHITE : Color.BLACK;
+    switch (Character.toLowerCase (c))
+      {
+      case 'k':
+	return new King (board, color, this);
+      case 'q':
+	return new Queen (board, color);
+      case 'r':
+	return new Rook (board, color);
+      case 'b':
+	return new Bishop (board, color);
+      case 'n':
+	return new Knight (board, color);
+      case 'p':
+	return new Pawn (board, color, this);
+      default:
+	throw new ChessException ("invalid FEN piece: " + c);
+      }
   }
 
-  public String toString ()
+  public ChessPiece[][] getPieces ()
   {
-    return "C";
+    ChessPiece[][]mat = new ChessPiece[board.getRows ()][board.getColumns ()];
+    for (int i = 0; i < board.getRows (); i++)
+      {
+	for (int j = 0; j < board.getColumns (); j++)
+	  {
+	    mat[i][j] = (ChessPiece) board.piece (i, j);
+	  }
+      }
+    return mat;
   }
 
-  private boolean canMove (Position position)
+
+
+  public ChessPiece performChessMove (ChessPosition sourcePosition,
+				      ChessPosition targetPosition)
   {
-    ChessPiece p = (ChessPiece) getBoard ().piece (position);
-    return p == null || p.getColor () != getColor ();
+    return performChessMove (sourcePosition.getSquare (),
+			     targetPosition.getSquare ());
   }
 
-  @Override public boolean[][]possibleMoves ()
+  public ChessPiece performChessMove (int sourceSquare, int targetSquare)
   {
-    boolean[][]mat =
-      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
-    Position p = new Position (0, 0);
+    return performChessMove (sourceSquare, targetSquare, "A");
+  }
 
-    p.setValues (position.getRow () - 1, position.getColumn () - 2);
-    if (getBoard ().positionExists (p) && canMove (p))
+  // promotes to the given type right away, so check, mate and the
+  // listeners see the piece actually chosen
+  private ChessPiece performChessMove (int sourceSquare, int targetSquare,
+				       String promotion)
+  {
+    long start = System.nanoTime ();
+    long checksBefore = checksTested;
+    PerformMoveEvent event = new PerformMoveEvent ();
+    event.begin ();
+    Position source = board.position (sourceSquare);
+    Position target = board.position (targetSquare);
+    validateMove (source, target);
+    long key = positionKey ();
+    Piece capturedPiece = makeMove (source, target);
+    if (testCheck (currentPlayer))
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	undoMove (source, target, capturedPiece);
+	throw new ChessException ("undo move");
       }
-
-    p.setValues (position.getRow () - 2, position.getColumn () - 1);
-    if (getBoard ().positionExists (p) && canMove (p))
+    ChessPiece movedPiece = (ChessPiece) board.piece (target);
+    int i = historyCount;
+    if (i == history.length)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	growHistory (i * 2);
       }
+    history[i] =
+      (short) Move.of (sourceSquare, targetSquare, Move.NO_PROMOTION);
+    historyFlags[i] = (check ? CHECK_BEFORE : 0) | (checkMate ? MATE_BEFORE : 0)
+      | halfmoveClock << 4;
+    halfmoveClock = (capturedPiece != null || movedPiece instanceof Pawn) ? 0
+      : halfmoveClock + 1;
+    historyKeys[i] = key;
+    historyCaptured[i] = capturedPiece;
+    historyEnPassant[i] = enPassantVulnerable;
+    historyPromoted[i] = promoted;
+    historyPawns[i] = null;
+    historyPieces[i] = null;
+    historyCount = historyEnd = i + 1;
 
-    p.setValues (position.getRow () - 2, position.getColumn () + 1);
-    if (getBoard ().positionExists (p) && canMove (p))
+    //#specialmove promotion
+    promoted = null;
+    if (movedPiece instanceof Pawn)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	if ((movedPiece.getColor () == Color.WHITE && target.getRow () == 0)
+	    || (movedPiece.getColor () == Color.BLACK
+		&& target.getRow () == 7))
+	  {
+	    promoted = (ChessPiece) board.piece (target);
+	    promoted = promote (promotion);
+	    historyPawns[i] = movedPiece;
+	  }
       }
 
-    p.setValues (position.getRow () - 1, position.getColumn () + 2);
-    if (getBoard ().positionExists (p) && canMove (p))
+    check = (checkTest (opponent (currentPlayer))) ? true : false;
+
+    if (checkmateTest (opponent (currentPlayer)))
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	checkMate = true;
       }
-
-    p.setValues (position.getRow () + 1, position.getColumn () + 2);
-    if (getBoard ().positionExists (p) && canMove (p))
+    else
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	nextTurn ();
       }
+    historyFlags[i] |= (check ? CHECK_AFTER : 0) | (checkMate ? MATE_AFTER : 0);
 
-    p.setValues (position.getRow () + 2, position.getColumn () + 1);
-    if (getBoard ().positionExists (p) && canMove (p))
+    // #specialmove en passant
+    if (movedPiece instanceof Pawn
+	&& (target.getRow () == source.getRow () - 2
+	    || target.getRow () == source.getRow () + 2))
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	enPassantVulnerable = movedPiece;
       }
-
-    p.setValues (position.getRow () + 2, position.getColumn () - 1);
-    if (getBoard ().positionExists (p) && canMove (p))
+    else
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	enPassantVulnerable = null;
       }
 
-    p.setValues (position.getRow () + 1, position.getColumn () - 2);
-    if (getBoard ().positionExists (p) && canMove (p))
+    if (listeners.length > 0)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	fireMove (i);
       }
-
-
-    return mat;
+    MOVES.increment ();
+    MOVE_MICROS.record ((System.nanoTime () - start) / 1000);
+    if (event.shouldCommit ())
+      {
+	event.move = Move.toUci (history[i]);
+	event.ply = i + 1;
+	event.capture = capturedPiece != null;
+	event.check = check;
+	event.checkMate = checkMate;
+	event.checksTested = checksTested - checksBefore;
+	event.commit ();
+      }
+    return (ChessPiece) capturedPiece;
   }
 
-
-}
-
-class Pawn extends ChessPiece
-{
-
-  private ChessMatch chessMatch;
-
-  public Pawn (Board board, Color color, ChessMatch chessMatch)
+  private void validateMove (Position source, Position target)
   {
-    super (board, color);
-    this.chessMatch = chessMatch;
+    MoveValidationEvent event = new MoveValidationEvent ();
+    event.begin ();
+    try
+    {
+      validateSourcePosition (source);
+      validateTargetPosition (source, target);
+      event.valid = true;
+    }
+    finally
+    {
+      if (event.shouldCommit ())
+	{
+	  event.move =
+	    Move.toUci (Move.of (board.square (source), board.square (target),
+				 Move.NO_PROMOTION));
+	  event.commit ();
+	}
+    }
   }
 
-   @Override public boolean[][] possibleMoves ()
+  // testCheck and testCheckMate as performChessMove runs them, as events
+  private boolean checkTest (Color color)
   {
-    boolean[][]mat =
-      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
-    Position p = new Position (0, 0);
-
-    if (getColor () == Color.WHITE)
+    CheckTestEvent event = new CheckTestEvent ();
+    event.begin ();
+    boolean inCheck = testCheck (color);
+    if (event.shouldCommit ())
       {
-	p.setValues (position.getRow () - 1, position.getColumn ());
-	if (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
-	  {
-	    mat[p.getRow ()][p.getColumn ()] = true;
-	  }
-	p.setValues (position.getRow () - 2, position.getColumn ());
-	Position p2 =
-	  new Position (position.getRow () - 1, position.getColumn ());
-	if (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p)
-	    && getBoard ().positionExists (p2)
-	    && !getBoard ().thereIsAPiece (p2) && getMoveCount () == 0)
+	event.color = color.name ();
+	event.inCheck = inCheck;
+	int first = PieceList.kind (opponent (color), 0);
+	for (int kind = first; kind < first + 6; kind++)
 	  {
-	    mat[p.getRow ()][p.getColumn ()] = true;
+	    event.opponentPieces += piecesOnTheBoard.count (kind);
 	  }
-	p.setValues (position.getRow () - 1, position.getColumn () - 1);
-	if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+	event.commit ();
+      }
+    return inCheck;
+  }
+
+  private boolean checkmateTest (Color color)
+  {
+    CheckmateTestEvent event = new CheckmateTestEvent ();
+    event.begin ();
+    long checksBefore = checksTested;
+    boolean mate = testCheckMate (color);
+    if (event.shouldCommit ())
+      {
+	event.color = color.name ();
+	event.checkMate = mate;
+	event.checksTested = checksTested - checksBefore;
+	event.commit ();
+      }
+    return mate;
+  }
+
+  private void fireMove (int ply)
+  {
+    int move = history[ply];
+    ChessPiece captured = (ChessPiece) historyCaptured[ply];
+  for (MatchListener listener:listeners)
+      {
+	if (captured != null)
 	  {
-	    mat[p.getRow ()][p.getColumn ()] = true;
+	    // en passant takes the pawn beside the mover's start square
+	    int square = (captured == historyEnPassant[ply])
+	      ? Move.square (Move.row (Move.from (move)),
+			     Move.column (Move.to (move))) : Move.to (move);
+	    listener.onCapture (square, captured.getType (),
+				captured.getColor ());
 	  }
-	p.setValues (position.getRow () - 1, position.getColumn () + 1);
-	if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+	if (historyPawns[ply] != null)
 	  {
-	    mat[p.getRow ()][p.getColumn ()] = true;
+	    listener.onPromotion (Move.to (move), promoted.getType (),
+				  promoted.getColor ());
 	  }
-	// #specialmove en passant white
-	if (position.getRow () == 3)
+	listener.onMove (move, ply + 1);
+	if (check)
 	  {
-	    Position left =
-	      new Position (position.getRow (), position.getColumn () - 1);
-	    if (getBoard ().positionExists (left)
-		&& isThereOpponentPiece (left)
-		&& getBoard ().piece (left) ==
-		chessMatch.getEnPassantVulnerable ())
-	      {
-		mat[left.getRow () - 1][left.getColumn ()] = true;
-	      }
-	    Position right =
-	      new Position (position.getRow (), position.getColumn () + 1);
-	    if (getBoard ().positionExists (right)
-		&& isThereOpponentPiece (right)
-		&& getBoard ().piece (right) ==
-		chessMatch.getEnPassantVulnerable ())
-	      {
-		mat[right.getRow () - 1][right.getColumn ()] = true;
-	      }
+	    listener.onCheck (sideToMove ());
 	  }
       }
-    else
+    int reason = endReason ();
+    if (reason != 0)
       {
-	p.setValues (position.getRow () + 1, position.getColumn ());
-	if (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      for (MatchListener listener:listeners)
 	  {
-	    mat[p.getRow ()][p.getColumn ()] = true;
+	    listener.onGameEnd (reason, checkMate ? currentPlayer : null);
 	  }
-	p.setValues (position.getRow () + 2, position.getColumn ());
-	Position p2 =
-	  new Position (position.getRow () + 1, position.getColumn ());
-	if (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p)
-	    && getBoard ().positionExists (p2)
-	    && !getBoard ().thereIsAPiece (p2) && getMoveCount () == 0)
+      }
+  }
+
+  // the MatchListener reason the game has ended for, or 0
+  private int endReason ()
+  {
+    return checkMate ? MatchListener.CHECKMATE
+      : isStalemate ()? MatchListener.STALEMATE
+      : isFiftyMoveDraw ()? MatchListener.FIFTY_MOVES
+      : isThreefoldRepetition ()? MatchListener.REPETITION
+      : isInsufficientMaterial ()? MatchListener.INSUFFICIENT_MATERIAL : 0;
+  }
+
+  // the new piece may give or lift check, mate or stalemate, so they are
+  // tested again and only the changes reach the listeners
+  public ChessPiece replacepromotedPiece (String type)
+  {
+    boolean wasCheck = check;
+    boolean wasMate = checkMate;
+    int reason = endReason ();
+    ChessPiece newPiece = promote (type);
+    promoted = newPiece;
+    Color defender = opponent (newPiece.getColor ());
+    check = checkTest (defender);
+    checkMate = checkmateTest (defender);
+    if (checkMate != wasMate)
+      {
+	// performChessMove passes the turn only when the move does not mate
+	turn += checkMate ? -1 : 1;
+	currentPlayer = checkMate ? newPiece.getColor () : defender;
+      }
+    if (historyCount > 0)
+      {
+	int i = historyCount - 1;
+	historyFlags[i] = historyFlags[i] & ~(CHECK_AFTER | MATE_AFTER)
+	  | (check ? CHECK_AFTER : 0) | (checkMate ? MATE_AFTER : 0);
+      }
+    int end = endReason ();
+  for (MatchListener listener:listeners)
+      {
+	listener.onPromotion (newPiece.getSquare (), newPiece.getType (),
+			      newPiece.getColor ());
+	if (check && !wasCheck)
 	  {
-	    mat[p.getRow ()][p.getColumn ()] = true;
+	    listener.onCheck (sideToMove ());
 	  }
-	p.setValues (position.getRow () + 1, position.getColumn () + 1);
-	if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+	if (end != 0 && end != reason)
 	  {
-	    mat[p.getRow ()][p.getColumn ()] = true;
-	  }
-	p.setValues (position.getRow () + 1, position.getColumn () - 1);
-	if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
-	  {
-	    mat[p.getRow ()][p.getColumn ()] = true;
-	  }
-	// #specialmove en passant black
-	if (position.getRow () == 4)
-	  {
-	    Position left =
-	      new Position (position.getRow (), position.getColumn () - 1);
-	    if (getBoard ().positionExists (left)
-		&& isThereOpponentPiece (left)
-		&& getBoard ().piece (left) ==
-		chessMatch.getEnPassantVulnerable ())
-	      {
-		mat[left.getRow () + 1][left.getColumn ()] = true;
-	      }
-	    Position right =
-	      new Position (position.getRow (), position.getColumn () + 1);
-	    if (getBoard ().positionExists (right)
-		&& isThereOpponentPiece (right)
-		&& getBoard ().piece (right) ==
-		chessMatch.getEnPassantVulnerable ())
-	      {
-		mat[right.getRow () + 1][right.getColumn ()] = true;
-	      }
+	    listener.onGameEnd (end, checkMate ? currentPlayer : null);
 	  }
       }
-
-    return mat;
+    return newPiece;
   }
 
-  @Override public String toString ()
+  private ChessPiece promote (String type)
   {
-    return "P";
-  }
-}
+    if (promoted == null)
+      {
+	throw new IllegalStateException ("null promoted");
+      }
+    if (!type.equals ("T") && !type.equals ("A") && !type.equals ("C")
+	&& !type.equals ("B"))
+      {
 
-class Rook extends ChessPiece
-{
+      }
+    int square = promoted.getSquare ();
+    Piece p = board.removePiece (square);
+    piecesOnTheBoard.remove ((ChessPiece) p);
 
+    ChessPiece newPiece = newPiece (type, promoted.getColor ());
+    board.placePiece (newPiece, square);
+    piecesOnTheBoard.add (newPiece);
+    if (historyCount > 0)
+      {
+	int last = history[historyCount - 1];
+	history[historyCount - 1] =
+	  (short) Move.of (Move.from (last), Move.to (last),
+			   newPiece.getType ());
+      }
 
-  public Rook (Board board, Color color)
-  {
-    super (board, color);
+    return newPiece;
   }
 
-   @Override public String toString ()
+  private ChessPiece newPiece (String type, Color color)
   {
-    return "T";
+    if (type.equals ("B"))
+      return new Bishop (board, color);
+    if (type.equals ("C"))
+      return new Knight (board, color);
+    if (type.equals ("A"))
+      return new Queen (board, color);
+    return new Rook (board, color);
   }
 
-
-  @Override public boolean[][]possibleMoves ()
+  private void validateSourcePosition (Position position)
   {
-    boolean[][]mat =
-      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
-
-    Position p = new Position (0, 0);
-
-    // above
-    p.setValues (position.getRow () - 1, position.getColumn ());
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setRow (p.getRow () - 1);
-      }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    if (!board.thereIsAPiece (position))
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	throw new ChessException ("there Is no Piece.");
       }
-
-    // left
-    p.setValues (position.getRow (), position.getColumn () - 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+    if (currentPlayer != ((ChessPiece) board.piece (position)).getColor ())
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setColumn (p.getColumn () - 1);
+	throw new ChessException ("The piece chosen is not yours.");
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    if (!board.piece (position).isThereAnyPossibleMove ())
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	throw new
+	  ChessException ("There are no moves possible for the chosen piece");
       }
+  }
 
-    // right
-    p.setValues (position.getRow (), position.getColumn () + 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+  public boolean[][] possibleMoves (ChessPosition sourcePosition)
+  {
+    return possibleMoves (sourcePosition.getSquare ());
+  }
+
+  public boolean[][] possibleMoves (int square)
+  {
+    Position position = board.position (square);
+    validateSourcePosition (position);
+    return board.piece (position).possibleMoves ();
+  }
+
+  public int getPly ()
+  {
+    return historyCount;
+  }
+
+  public int getHalfmoveClock ()
+  {
+    return halfmoveClock;
+  }
+
+  // earlier occurrences of the position with this key, over the game and the
+  // analysis moves but only back to the last capture or pawn move
+  public int repetitions (long key)
+  {
+    int count = 0;
+    int limit = Math.min (halfmoveClock, undoCount + historyCount - keysBase);
+    for (int back = 2; back <= limit; back += 2)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setColumn (p.getColumn () + 1);
+	long earlier = (back <= undoCount) ? undoKeys[undoCount - back]
+	  : historyKeys[historyCount - back + undoCount];
+	if (earlier == key)
+	  {
+	    count++;
+	  }
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    return count;
+  }
+
+  public boolean isThreefoldRepetition ()
+  {
+    return repetitions (positionKey ()) >= 2;
+  }
+
+  public boolean isFiftyMoveDraw ()
+  {
+    return halfmoveClock >= 100 && !checkMate;
+  }
+
+  public boolean isStalemate ()
+  {
+    return !checkMate && !check && !hasAnyLegalMove (currentPlayer);
+  }
+
+  // dead positions: a lone king against king and at most one minor piece,
+  // or only bishops left, all on squares of one colour
+  public boolean isInsufficientMaterial ()
+  {
+    long material = 0;
+    for (int kind = 0; kind < 12; kind++)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	material +=
+	  (long) Math.min (15, piecesOnTheBoard.count (kind)) << (4 * kind);
       }
-
-    // below
-    p.setValues (position.getRow () + 1, position.getColumn ());
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+    int bishopColors = 0;
+    for (int kind = ChessPiece.BISHOP; kind < 12; kind += 6)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setRow (p.getRow () + 1);
+	for (int n = 0; n < piecesOnTheBoard.count (kind); n++)
+	  {
+	    Position p = piecesOnTheBoard.get (kind, n).position;
+	    bishopColors |= 1 << ((p.getRow () + p.getColumn ()) & 1);
+	  }
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    if (Arrays.binarySearch (DEAD_MATERIAL, material) >= 0)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	return true;
       }
-
-    return mat;
+    long bishops = material & ~(KINGS | 15L << (4 * ChessPiece.BISHOP)
+				| 15L << (4 * (ChessPiece.BISHOP + 6)));
+    return bishops == 0 && bishopColors != 3;
   }
-}
 
-class Queen extends ChessPiece
-{
-
-
-  public Queen (Board board, Color color)
+  public boolean isDraw ()
   {
-    super (board, color);
+    return isFiftyMoveDraw () || isInsufficientMaterial ()
+      || isThreefoldRepetition () || isStalemate ();
   }
 
-  public String toString ()
+  // the number of moves that can be replayed, taken back ones included
+  public int getHistorySize ()
   {
-    return "A";
+    return historyEnd;
   }
 
-  @Override public boolean[][]possibleMoves ()
+  public int getMove (int ply)
   {
-    boolean[][]mat =
-      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
-
-    Position p = new Position (0, 0);
-
-    // above
-    p.setValues (position.getRow () - 1, position.getColumn ());
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+    if (ply < 0 || ply >= historyEnd)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setRow (p.getRow () - 1);
+	throw new IndexOutOfBoundsException ("ply " + ply);
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    return history[ply];
+  }
+
+  public void takeBack ()
+  {
+    if (historyCount == historyBase && historyBase > 0 && fromStart
+	&& undoCount == 0)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	replayFromStart ();
       }
-
-    // left
-    p.setValues (position.getRow (), position.getColumn () - 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+    if (historyCount == historyBase)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setColumn (p.getColumn () - 1);
+	throw new ChessException ("no move to take back");
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    if (undoCount > 0)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	throw new IllegalStateException ("analysis moves pending");
       }
-
-    // right
-    p.setValues (position.getRow (), position.getColumn () + 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+    int i = --historyCount;
+    int move = history[i];
+    Position source = board.position (Move.from (move));
+    Position target = board.position (Move.to (move));
+    if ((historyFlags[i] & MATE_AFTER) == 0)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setColumn (p.getColumn () + 1);
+	turn--;
+	currentPlayer = opponent (currentPlayer);
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    enPassantVulnerable = historyEnPassant[i];
+    if (historyPawns[i] != null)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	historyPieces[i] = (ChessPiece) board.removePiece (target);
+	piecesOnTheBoard.remove (historyPieces[i]);
+	board.placePiece (historyPawns[i], target);
+	piecesOnTheBoard.add (historyPawns[i]);
       }
+    undoMove (source, target, historyCaptured[i]);
+    promoted = historyPromoted[i];
+    check = (historyFlags[i] & CHECK_BEFORE) != 0;
+    checkMate = (historyFlags[i] & MATE_BEFORE) != 0;
+    halfmoveClock = historyFlags[i] >>> 4;
+  }
 
-    // below
-    p.setValues (position.getRow () + 1, position.getColumn ());
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+  public void redo ()
+  {
+    if (historyCount == historyEnd)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setRow (p.getRow () + 1);
+	throw new ChessException ("no move to redo");
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    if (undoCount > 0)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	throw new IllegalStateException ("analysis moves pending");
       }
-    // northwest
-    p.setValues (position.getRow () - 1, position.getColumn () - 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+    int i = historyCount;
+    int move = history[i];
+    Position source = board.position (Move.from (move));
+    Position target = board.position (Move.to (move));
+    ChessPiece p = (ChessPiece) board.piece (source);
+    Piece capturedPiece = makeMove (source, target);
+    halfmoveClock = (capturedPiece != null || p instanceof Pawn) ? 0
+      : (historyFlags[i] >>> 4) + 1;
+    if (historyPawns[i] != null)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setValues (p.getRow () - 1, p.getColumn () - 1);
+	piecesOnTheBoard.remove ((ChessPiece) board.removePiece (target));
+	board.placePiece (historyPieces[i], target);
+	piecesOnTheBoard.add (historyPieces[i]);
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    promoted = historyPieces[i];
+    enPassantVulnerable = (p instanceof Pawn
+			   && Math.abs (source.getRow () - target.getRow ()) ==
+			   2) ? p : null;
+    check = (historyFlags[i] & CHECK_AFTER) != 0;
+    checkMate = (historyFlags[i] & MATE_AFTER) != 0;
+    if (!checkMate)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	nextTurn ();
       }
+    historyCount++;
+  }
 
-    // northeast
-    p.setValues (position.getRow () - 1, position.getColumn () + 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+  public void replayTo (int ply)
+  {
+    if (ply >= 0 && ply < historyBase && fromStart && undoCount == 0)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setValues (p.getRow () - 1, p.getColumn () + 1);
+	replayFromStart ();
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    if (ply < historyBase || ply > historyEnd)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	throw new ChessException ("no ply " + ply);
       }
-
-    // southeast
-    p.setValues (position.getRow () + 1, position.getColumn () + 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+    while (historyCount > ply)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setValues (p.getRow () + 1, p.getColumn () + 1);
+	takeBack ();
       }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+    while (historyCount < ply)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	redo ();
       }
+  }
 
-    // below
-    p.setValues (position.getRow () + 1, position.getColumn () - 1);
-    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
-      {
-	mat[p.getRow ()][p.getColumn ()] = true;
-	p.setValues (p.getRow () + 1, p.getColumn () - 1);
-      }
-    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+  short[] history ()
+  {
+    return Arrays.copyOf (history, historyCount);
+  }
+
+  boolean isFromStart ()
+  {
+    return fromStart;
+  }
+
+  // a match inflated from a CompactMatch has no undo records for the moves
+  // played before it was packed; replaying them from the initial position
+  // once restores those, without telling the listeners again
+  private void replayFromStart ()
+  {
+    short[] moves = history ();
+    MatchListener[] saved = listeners;
+    listeners = NO_LISTENERS;
+    board = new Board (8, 8);
+    piecesOnTheBoard = new PieceList ();
+    capturedPieces = new ArrayList <> ();
+    enPassantVulnerable = null;
+    promoted = null;
+    turn = 1;
+    currentPlayer = Color.WHITE;
+    check = false;
+    checkMate = false;
+    halfmoveClock = 0;
+    keysBase = 0;
+    historyBase = historyCount = historyEnd = 0;
+    initialSetup ();
+    try
+    {
+    for (short move:moves)
+	{
+	  performMove (move);
+	}
+    }
+    finally
+    {
+      listeners = saved;
+    }
+  }
+
+  public ChessPiece pieceAt (int square)
+  {
+    if (square < 0)
       {
-	mat[p.getRow ()][p.getColumn ()] = true;
+	return null;
       }
+    return (ChessPiece) board.piece (square);
+  }
 
-    return mat;
+  public int legalMoves (int[]moves)
+  {
+    return legalMoves (moves, false);
   }
-}
 
-class BoardColors
-{
-  public static final String ANSI_RESET = "\u001B[0m";
+  public int legalMoves (int[]moves, boolean capturesOnly)
+  {
+    if (checkMate)
+      {
+	return 0;
+      }
+    int count = 0;
+    int first = PieceList.kind (currentPlayer, 0);
+    for (int kind = first; kind < first + 6; kind++)
+      {
+	for (int n = 0; n < piecesOnTheBoard.count (kind); n++)
+	  {
+	    ChessPiece p = piecesOnTheBoard.get (kind, n);
+	    Position source = p.position;
+	    boolean[][]mat = p.possibleMoves ();
+	    for (int i = 0; i < board.getRows (); i++)
+	      {
+		for (int j = 0; j < board.getColumns (); j++)
+		  {
+		    if (mat[i][j])
+		      {
+			if (capturesOnly && board.piece (i, j) == null
+			    && !(p instanceof Pawn
+				 && (j != source.getColumn () || i == 0
+				     || i == 7)))
+			  {
+			    continue;
+			  }
+			Position target = board.position (Move.square (i, j));
+			if (castlesThroughCheck (source, target))
+			  {
+			    continue;
+			  }
+			Piece capturedPiece = makeMove (source, target);
+			boolean testCheck = testCheck (currentPlayer);
+			undoMove (source, target, capturedPiece);
+			if (testCheck)
+			  {
+			    continue;
+			  }
+			int from = board.square (source);
+			int to = Move.square (i, j);
+			//#specialmove promotion
+			if (p instanceof Pawn && (i == 0 || i == 7))
+			  {
+			    moves[count++] = Move.of (from, to, Move.QUEEN);
+			    moves[count++] = Move.of (from, to, Move.ROOK);
+			    moves[count++] = Move.of (from, to, Move.BISHOP);
+			    moves[count++] = Move.of (from, to, Move.KNIGHT);
+			  }
+			else
+			  {
+			    moves[count++] = Move.of (from, to, Move.NO_PROMOTION);
+			  }
+		      }
+		  }
+	      }
+	  }
+      }
+    LEGAL_MOVES.add (count);
+    return count;
+  }
+
+  public boolean isLegalMove (int move)
+  {
+    Position source = board.position (Move.from (move));
+    Position target = board.position (Move.to (move));
+    ChessPiece p = (ChessPiece) board.piece (source);
+    if (p == null || p.getColor () != currentPlayer || !p.possibleMove (target))
+      {
+	return false;
+      }
+    boolean promotion = p instanceof Pawn && (target.getRow () == 0
+					      || target.getRow () == 7);
+    if (promotion != (Move.promotion (move) != Move.NO_PROMOTION)
+	|| castlesThroughCheck (source, target))
+      {
+	return false;
+      }
+    Piece capturedPiece = makeMove (source, target);
+    boolean testCheck = testCheck (currentPlayer);
+    undoMove (source, target, capturedPiece);
+    return !testCheck;
+  }
+
+  public int castlingRights ()
+  {
+    int rights = 0;
+    if (unmoved (60, King.class))
+      {
+	rights |= unmoved (63, Rook.class) ? 1 : 0;
+	rights |= unmoved (56, Rook.class) ? 2 : 0;
+      }
+    if (unmoved (4, King.class))
+      {
+	rights |= unmoved (7, Rook.class) ? 4 : 0;
+	rights |= unmoved (0, Rook.class) ? 8 : 0;
+      }
+    return rights;
+  }
+
+  private boolean unmoved (int square, Class < ? extends ChessPiece > type)
+  {
+    ChessPiece p = pieceAt (square);
+    return type.isInstance (p) && p.getMoveCount () == 0
+      && p.getColor () == ((square < 8) ? Color.BLACK : Color.WHITE);
+  }
+
+  // the square behind a pawn that can actually be taken en passant, or -1
+  public int enPassantSquare ()
+  {
+    if (enPassantVulnerable == null || enPassantVulnerable.position == null)
+      {
+	return -1;
+      }
+    int row = enPassantVulnerable.position.getRow ();
+    int column = enPassantVulnerable.position.getColumn ();
+    for (int c = column - 1; c <= column + 1; c += 2)
+      {
+	if (c >= 0 && c < 8)
+	  {
+	    ChessPiece p = (ChessPiece) board.piece (row, c);
+	    if (p instanceof Pawn
+		&& p.getColor () != enPassantVulnerable.getColor ())
+	      {
+		int behind =
+		  (enPassantVulnerable.getColor () == Color.WHITE) ? 1 : -1;
+		return Move.square (row + behind, column);
+	      }
+	  }
+      }
+    return -1;
+  }
+
+  // after checkmate currentPlayer is the winner, but the mated side moves
+  private Color sideToMove ()
+  {
+    return checkMate ? opponent (currentPlayer) : currentPlayer;
+  }
+
+  public long positionKey ()
+  {
+    return positionKey (castlingRights ());
+  }
+
+  private long positionKey (int rights)
+  {
+    long key = 0;
+    for (int kind = 0; kind < 12; kind++)
+      {
+	for (int n = 0; n < piecesOnTheBoard.count (kind); n++)
+	  {
+	    Position p = piecesOnTheBoard.get (kind, n).position;
+	    key ^=
+	      Zobrist.piece (kind, Move.square (p.getRow (), p.getColumn ()));
+	  }
+      }
+    if (sideToMove () == Color.BLACK)
+      {
+	key ^= Zobrist.side ();
+      }
+    key ^= Zobrist.castling (rights);
+    int enPassant = enPassantSquare ();
+    if (enPassant >= 0)
+      {
+	key ^= Zobrist.enPassant (Move.column (enPassant));
+      }
+    return key;
+  }
+
+  public boolean isCapture (int move)
+  {
+    ChessPiece p = pieceAt (Move.from (move));
+    return pieceAt (Move.to (move)) != null
+      || (p instanceof Pawn
+	  && Move.column (Move.from (move)) != Move.column (Move.to (move)));
+  }
+
+  // plays a legal move for analysis, without the promotion prompt and the
+  // checkmate test of performChessMove; pop () takes it back
+  public void push (int move)
+  {
+    if (undoCount == undoMoves.length)
+      {
+	int length = undoCount * 2;
+	undoMoves = Arrays.copyOf (undoMoves, length);
+	undoCaptured = Arrays.copyOf (undoCaptured, length);
+	undoEnPassant = Arrays.copyOf (undoEnPassant, length);
+	undoPawns = Arrays.copyOf (undoPawns, length);
+	undoCheck = Arrays.copyOf (undoCheck, length);
+	undoHalfmove = Arrays.copyOf (undoHalfmove, length);
+	undoKeys = Arrays.copyOf (undoKeys, length);
+      }
+    Position source = board.position (Move.from (move));
+    Position target = board.position (Move.to (move));
+    undoMoves[undoCount] = move;
+    undoEnPassant[undoCount] = enPassantVulnerable;
+    undoCheck[undoCount] = check;
+    undoHalfmove[undoCount] = halfmoveClock;
+    undoKeys[undoCount] = positionKey ();
+    undoCaptured[undoCount] = makeMove (source, target);
+    undoPawns[undoCount] = null;
+    ChessPiece p = (ChessPiece) board.piece (target);
+    halfmoveClock = (undoCaptured[undoCount] != null || p instanceof Pawn) ? 0
+      : halfmoveClock + 1;
+
+    //#specialmove promotion
+    if (p instanceof Pawn && (target.getRow () == 0 || target.getRow () == 7))
+      {
+	board.removePiece (target);
+	piecesOnTheBoard.remove (p);
+	ChessPiece newPiece =
+	  newPiece ((Move.promotion (move) == Move.NO_PROMOTION) ? "A"
+		    : Move.promotionType (move), p.getColor ());
+	newPiece.increaseMoveCount ();
+	board.placePiece (newPiece, target);
+	piecesOnTheBoard.add (newPiece);
+	undoPawns[undoCount] = p;
+      }
+    // #specialmove en passant
+    enPassantVulnerable = (p instanceof Pawn
+			   && Math.abs (target.getRow () - source.getRow ()) ==
+			   2) ? p : null;
+    undoCount++;
+    nextTurn ();
+    check = testCheck (currentPlayer);
+  }
+
+  public void pop ()
+  {
+    if (undoCount == 0)
+      {
+	throw new IllegalStateException ("no move to take back");
+      }
+    int i = --undoCount;
+    int move = undoMoves[i];
+    Position source = board.position (Move.from (move));
+    Position target = board.position (Move.to (move));
+    turn--;
+    currentPlayer = opponent (currentPlayer);
+    enPassantVulnerable = undoEnPassant[i];
+    check = undoCheck[i];
+    halfmoveClock = undoHalfmove[i];
+    if (undoPawns[i] != null)
+      {
+	piecesOnTheBoard.remove ((ChessPiece) board.removePiece (target));
+	board.placePiece (undoPawns[i], target);
+	piecesOnTheBoard.add (undoPawns[i]);
+      }
+    undoMove (source, target, undoCaptured[i]);
+    undoCaptured[i] = null;
+    undoEnPassant[i] = null;
+    undoPawns[i] = null;
+  }
+
+  public String toFen ()
+  {
+    StringBuilder sb = new StringBuilder ();
+    for (int row = 0; row < 8; row++)
+      {
+	int empty = 0;
+	for (int column = 0; column < 8; column++)
+	  {
+	    ChessPiece p = (ChessPiece) board.piece (row, column);
+	    if (p == null)
+	      {
+		empty++;
+		continue;
+	      }
+	    if (empty > 0)
+	      {
+		sb.append (empty);
+		empty = 0;
+	      }
+	    char c = "pnbrqk".charAt (p.getType ());
+	    sb.append ((p.getColor () == Color.WHITE) ?
+		       Character.toUpperCase (c) : c);
+	  }
+	if (empty > 0)
+	  {
+	    sb.append (empty);
+	  }
+	if (row < 7)
+	  {
+	    sb.append ('/');
+	  }
+      }
+    sb.append ((sideToMove () == Color.WHITE) ? " w " : " b ");
+    int rights = castlingRights ();
+    for (int i = 0; i < 4; i++)
+      {
+	if ((rights & (1 << i)) != 0)
+	  {
+	    sb.append ("KQkq".charAt (i));
+	  }
+      }
+    if (rights == 0)
+      {
+	sb.append ('-');
+      }
+    int enPassant = enPassantSquare ();
+    sb.append (' ').append ((enPassant < 0) ? "-" : Move.squareName (enPassant));
+    sb.append (' ').append (halfmoveClock);
+    sb.append (' ').append ((turn + (checkMate ? 1 : 0) + 1) / 2);
+    return sb.toString ();
+  }
+
+  public ChessPiece performMove (int move)
+  {
+    return performChessMove (Move.from (move), Move.to (move),
+			     (Move.promotion (move) == Move.NO_PROMOTION) ? "A"
+			     : Move.promotionType (move));
+  }
+
+  private Piece makeMove (Position source, Position target)
+  {
+    ChessPiece p = (ChessPiece) board.removePiece (source);
+    p.increaseMoveCount ();
+    Piece capturedPiece = board.removePiece (target);
+    board.placePiece (p, target);
+    if (capturedPiece != null)
+      {
+	piecesOnTheBoard.remove ((ChessPiece) capturedPiece);
+	capturedPieces.add (capturedPiece);
+      }
+
+    //#Special move castling king side rook
+    if (p instanceof King && target.getColumn () == source.getColumn () + 2)
+      {
+	int square = board.square (source);
+	ChessPiece rook = (ChessPiece) board.removePiece (square + 3);
+	board.placePiece (rook, square + 1);
+	rook.increaseMoveCount ();
+      }
+    //#Special move castling king side rook
+    else if (p instanceof King
+	     && target.getColumn () == source.getColumn () - 2)
+      {
+	int square = board.square (source);
+	ChessPiece rook = (ChessPiece) board.removePiece (square - 4);
+	board.placePiece (rook, square - 1);
+	rook.increaseMoveCount ();
+      }
+    // #specialmove en passant
+    if (p instanceof Pawn)
+      {
+	if (source.getColumn () != target.getColumn ()
+	    && capturedPiece == null)
+	  {
+	    int pawnSquare = board.square (target);
+	    if (p.getColor () == Color.WHITE)
+	      {
+		pawnSquare += 8;
+	      }
+	    else
+	      {
+		pawnSquare -= 8;
+	      }
+	    capturedPiece = board.removePiece (pawnSquare);
+	    capturedPieces.add (capturedPiece);
+	    piecesOnTheBoard.remove ((ChessPiece) capturedPiece);
+	  }
+      }
+
+    return capturedPiece;
+  }
+
+  private void undoMove (Position source, Position target, Piece captured)
+  {
+    ChessPiece p = (ChessPiece) board.removePiece (target);
+    p.decreaseMoveCount ();
+    board.placePiece (p, source);
+
+    if (captured != null)
+      {
+	board.placePiece (captured, target);
+	capturedPieces.remove (captured);
+	piecesOnTheBoard.add ((ChessPiece) captured);
+      }
+    //#Special move castling king side rook
+    if (p instanceof King && target.getColumn () == source.getColumn () + 2)
+      {
+	int square = board.square (source);
+	ChessPiece rook = (ChessPiece) board.removePiece (square + 1);
+	board.placePiece (rook, square + 3);
+	rook.decreaseMoveCount ();
+      }
+    //#Special move castling king side rook
+    else if (p instanceof King
+	     && target.getColumn () == source.getColumn () - 2)
+      {
+	int square = board.square (source);
+	ChessPiece rook = (ChessPiece) board.removePiece (square - 1);
+	board.placePiece (rook, square - 4);
+	rook.decreaseMoveCount ();
+      }
+
+    // #specialmove en passant
+    if (p instanceof Pawn)
+      {
+	if (source.getColumn () != target.getColumn ()
+	    && captured == enPassantVulnerable)
+	  {
+	    ChessPiece pawn = (ChessPiece) board.removePiece (target);
+	    int pawnSquare = Move.square (3, target.getColumn ());
+	    if (p.getColor () == Color.BLACK)
+	      {
+		pawnSquare += 8;
+	      }
+	    board.placePiece (pawn, pawnSquare);
+	  }
+      }
+  }
+
+  private void validateTargetPosition (Position source, Position target)
+  {
+    if (!board.piece (source).possibleMove (target))
+      {
+	throw new
+	  ChessException
+	  ("The chosen piece cannot move to the chosen position");
+      }
+    if (castlesThroughCheck (source, target))
+      {
+	throw new ChessException ("The king cannot castle through check");
+      }
+  }
+
+  // King.possibleMoves only sees empty squares; the square the king
+  // crosses must not be attacked either
+  private boolean castlesThroughCheck (Position source, Position target)
+  {
+    ChessPiece p = (ChessPiece) board.piece (source);
+    if (!(p instanceof King)
+	|| Math.abs (target.getColumn () - source.getColumn ()) != 2)
+      {
+	return false;
+      }
+    int step = (target.getColumn () > source.getColumn ())? 1 : -1;
+    Position crossed = board.position (board.square (source) + step);
+    Piece capturedPiece = makeMove (source, crossed);
+    boolean attacked = testCheck (p.getColor ());
+    undoMove (source, crossed, capturedPiece);
+    return attacked;
+  }
+
+  private void nextTurn ()
+  {
+    turn++;
+    currentPlayer =
+      (currentPlayer == Color.WHITE) ? Color.BLACK : Color.WHITE;
+  }
+
+  private void placeNewPiece (char column, int row, ChessPiece piece)
+  {
+    board.placePiece (piece, ChessPosition.of (column, row).getSquare ());
+    piecesOnTheBoard.add (piece);
+  }
+
+  private Color opponent (Color color)
+  {
+    return (color == Color.WHITE) ? Color.BLACK : Color.WHITE;
+  }
+
+  private ChessPiece king (Color color)
+  {
+    int kind = PieceList.kind (color, ChessPiece.KING);
+    if (piecesOnTheBoard.count (kind) == 0)
+      {
+	throw new IllegalStateException ("There is no king with the color " +
+					 color);
+      }
+    return piecesOnTheBoard.get (kind, 0);
+  }
+
+  private boolean testCheck (Color color)
+  {
+    checksTested++;
+    CHECKS_TESTED.increment ();
+    Position kingPosition = king (color).position;
+    int first = PieceList.kind (opponent (color), 0);
+    for (int kind = first; kind < first + 6; kind++)
+      {
+	for (int i = 0; i < piecesOnTheBoard.count (kind); i++)
+	  {
+	    boolean[][]mat = piecesOnTheBoard.get (kind, i).possibleMoves ();
+	    if (mat[kingPosition.getRow ()][kingPosition.getColumn ()])
+	      {
+		return true;
+	      }
+	  }
+      }
+    return false;
+  }
+
+  private boolean testCheckMate (Color color)
+  {
+    return testCheck (color) && !hasAnyLegalMove (color);
+  }
+
+  // stops at the first move that does not leave the king in check
+  private boolean hasAnyLegalMove (Color color)
+  {
+    int first = PieceList.kind (color, 0);
+    for (int kind = first; kind < first + 6; kind++)
+      {
+	for (int n = 0; n < piecesOnTheBoard.count (kind); n++)
+	  {
+	    ChessPiece p = piecesOnTheBoard.get (kind, n);
+	    boolean[][]mat = p.possibleMoves ();
+	    Position source = p.position;
+	    for (int i = 0; i < board.getRows (); i++)
+	      {
+		for (int j = 0; j < board.getColumns (); j++)
+		  {
+		    if (mat[i][j])
+		      {
+			Position target = board.position (Move.square (i, j));
+			if (castlesThroughCheck (source, target))
+			  {
+			    continue;
+			  }
+			Piece capturedPiece = makeMove (source, target);
+			boolean testCheck = testCheck (color);
+			undoMove (source, target, capturedPiece);
+			if (!testCheck)
+			  {
+			    return true;
+			  }
+		      }
+		  }
+	      }
+	  }
+      }
+    return false;
+  }
+
+  public boolean hasAnyLegalMove ()
+  {
+    return !checkMate && hasAnyLegalMove (currentPlayer);
+  }
+
+  private void initialSetup ()
+  {
+    placeNewPiece ('a', 1, new Rook (board, Color.WHITE));
+    placeNewPiece ('b', 1, new Knight (board, Color.WHITE));
+    placeNewPiece ('c', 1, new Bishop (board, Color.WHITE));
+    placeNewPiece ('d', 1, new Queen (board, Color.WHITE));
+    placeNewPiece ('e', 1, new King (board, Color.WHITE, this));
+    placeNewPiece ('f', 1, new Bishop (board, Color.WHITE));
+    placeNewPiece ('g', 1, new Knight (board, Color.WHITE));
+    placeNewPiece ('h', 1, new Rook (board, Color.WHITE));
+    placeNewPiece ('a', 2, new Pawn (board, Color.WHITE, this));
+    placeNewPiece ('b', 2, new Pawn (board, Color.WHITE, this));
+    placeNewPiece ('c', 2, new Pawn (board, Color.WHITE, this));
+    placeNewPiece ('d', 2, new Pawn (board, Color.WHITE, this));
+    placeNewPiece ('e', 2, new Pawn (board, Color.WHITE, this));
+    placeNewPiece ('f', 2, new Pawn (board, Color.WHITE, this));
+    placeNewPiece ('g', 2, new Pawn (board, Color.WHITE, this));
+    placeNewPiece ('h', 2, new Pawn (board, Color.WHITE, this));
+
+    placeNewPiece ('a', 8, new Rook (board, Color.BLACK));
+    placeNewPiece ('b', 8, new Knight (board, Color.BLACK));
+    placeNewPiece ('c', 8, new Bishop (board, Color.BLACK));
+    placeNewPiece ('d', 8, new Queen (board, Color.BLACK));
+    placeNewPiece ('e', 8, new King (board, Color.BLACK, this));
+    placeNewPiece ('f', 8, new Bishop (board, Color.BLACK));
+    placeNewPiece ('g', 8, new Knight (board, Color.BLACK));
+    placeNewPiece ('h', 8, new Rook (board, Color.BLACK));
+    placeNewPiece ('a', 7, new Pawn (board, Color.BLACK, this));
+    placeNewPiece ('b', 7, new Pawn (board, Color.BLACK, this));
+    placeNewPiece ('c', 7, new Pawn (board, Color.BLACK, this));
+    placeNewPiece ('d', 7, new Pawn (board, Color.BLACK, this));
+    placeNewPiece ('e', 7, new Pawn (board, Color.BLACK, this));
+    placeNewPiece ('f', 7, new Pawn (board, Color.BLACK, this));
+    placeNewPiece ('g', 7, new Pawn (board, Color.BLACK, this));
+    placeNewPiece ('h', 7, new Pawn (board, Color.BLACK, this));
+  }
+}
+
+
+// a match packed for mass hosting: 4-bit piece codes for the board, the rest
+// of the state in one int and the moves played as shorts, 42 bytes plus 2
+// per ply, so games of up to 79 plies stay under 200 bytes. Keys for
+// repetitions are rebuilt from the moves when inflate () makes a full
+// ChessMatch; taking back moves made before packing replays the game, which
+// only works for matches begun at the initial position
+class CompactMatch
+{
+  private static final int EN_PASSANT_SHIFT = 4;
+  private static final int PROMOTED_SHIFT = 11;
+  private static final int BLACK = 1 << 18;
+  private static final int CHECK = 1 << 19;
+  private static final int CHECKMATE = 1 << 20;
+  private static final int HALFMOVE_SHIFT = 21;
+  private static final int FROM_START = 1 << 29;
+  private static final int DRAW = 1 << 30;
+
+  private final byte[] board = new byte[32];
+  private int state;
+  private int turn;
+  private short[] history;
+
+  private CompactMatch ()
+  {
+  }
+
+  public CompactMatch (ChessMatch chessMatch)
+  {
+    store (chessMatch);
+  }
+
+  public int encodedSize ()
+  {
+    return board.length + 10 + 2 * history.length;
+  }
+
+  // the position alone, 40 bytes
+  public void writePosition (ByteBuffer buffer)
+  {
+    buffer.put (board).putInt (state).putInt (turn);
+  }
+
+  public static CompactMatch readPosition (ByteBuffer buffer)
+  {
+    CompactMatch chessMatch = new CompactMatch ();
+    buffer.get (chessMatch.board);
+    chessMatch.state = buffer.getInt ();
+    chessMatch.turn = buffer.getInt ();
+    chessMatch.history = new short[0];
+    return chessMatch;
+  }
+
+  public void writeTo (ByteBuffer buffer)
+  {
+    writePosition (buffer);
+    buffer.putShort ((short) history.length);
+    for (short move:history)
+      {
+	buffer.putShort (move);
+      }
+  }
+
+  public static CompactMatch readFrom (ByteBuffer buffer)
+  {
+    CompactMatch chessMatch = readPosition (buffer);
+    chessMatch.history = new short[buffer.getShort () & 0xFFFF];
+    for (int i = 0; i < chessMatch.history.length; i++)
+      {
+	chessMatch.history[i] = buffer.getShort ();
+      }
+    return chessMatch;
+  }
+
+  public void store (ChessMatch chessMatch)
+  {
+    for (int square = 0; square < 64; square += 2)
+      {
+	board[square >> 1] =
+	  (byte) (code (chessMatch.pieceAt (square)) |
+		  code (chessMatch.pieceAt (square + 1)) << 4);
+      }
+    state = chessMatch.castlingRights ()
+      | (square (chessMatch.getEnPassantVulnerable ()) + 1) << EN_PASSANT_SHIFT
+      | (square (chessMatch.getPromoted ()) + 1) << PROMOTED_SHIFT
+      | ((chessMatch.getCurrentPlayer () == Color.BLACK) ? BLACK : 0)
+      | (chessMatch.isCheck ()? CHECK : 0)
+      | (chessMatch.isCheckMate ()? CHECKMATE : 0)
+      | Math.min (255, chessMatch.getHalfmoveClock ()) << HALFMOVE_SHIFT
+      | (chessMatch.isFromStart ()? FROM_START : 0)
+      | (chessMatch.isDraw ()? DRAW : 0);
+    turn = chessMatch.getTurn ();
+    history = chessMatch.history ();
+  }
+
+  public ChessMatch inflate ()
+  {
+    return new ChessMatch (this);
+  }
+
+  // runs a command against the full match and keeps what it changed; a
+  // command that throws leaves the packed state untouched
+  public < T > T apply (Function < ChessMatch, T > command)
+  {
+    ChessMatch chessMatch = inflate ();
+    T result = command.apply (chessMatch);
+    store (chessMatch);
+    return result;
+  }
+
+  private static int code (ChessPiece p)
+  {
+    if (p == null)
+      {
+	return 0;
+      }
+    return p.getType () + 1 + ((p.getColor () == Color.BLACK) ? 8 : 0);
+  }
+
+  private static int square (ChessPiece p)
+  {
+    if (p == null || p.position == null)
+      {
+	return -1;
+      }
+    return Move.square (p.position.getRow (), p.position.getColumn ());
+  }
+
+  // 0 for an empty square, else type + 1, plus 8 for black
+  int pieceCode (int square)
+  {
+    return (board[square >> 1] >> ((square & 1) * 4)) & 15;
+  }
+
+  int castlingRights ()
+  {
+    return state & 15;
+  }
+
+  int enPassantPawn ()
+  {
+    return ((state >> EN_PASSANT_SHIFT) & 127) - 1;
+  }
+
+  int promotedSquare ()
+  {
+    return ((state >> PROMOTED_SHIFT) & 127) - 1;
+  }
+
+  short[] history ()
+  {
+    return history;
+  }
+
+  public int getHalfmoveClock ()
+  {
+    return (state >>> HALFMOVE_SHIFT) & 255;
+  }
+
+  boolean isFromStart ()
+  {
+    return (state & FROM_START) != 0;
+  }
+
+  public Integer getTurn ()
+  {
+    return turn;
+  }
+
+  public Color getCurrentPlayer ()
+  {
+    return ((state & BLACK) != 0) ? Color.BLACK : Color.WHITE;
+  }
+
+  public boolean isCheck ()
+  {
+    return (state & CHECK) != 0;
+  }
+
+  public boolean isCheckMate ()
+  {
+    return (state & CHECKMATE) != 0;
+  }
+
+  // as ChessMatch.isDraw () when the match was packed
+  public boolean isDraw ()
+  {
+    return (state & DRAW) != 0;
+  }
+
+  public int getPly ()
+  {
+    return history.length;
+  }
+
+  // the same FEN as ChessMatch.toFen (), without inflating
+  public String toFen ()
+  {
+    StringBuilder sb = new StringBuilder ();
+    for (int row = 0; row < 8; row++)
+      {
+	int empty = 0;
+	for (int column = 0; column < 8; column++)
+	  {
+	    int code = pieceCode (Move.square (row, column));
+	    if (code == 0)
+	      {
+		empty++;
+		continue;
+	      }
+	    if (empty > 0)
+	      {
+		sb.append (empty);
+		empty = 0;
+	      }
+	    char c = "pnbrqk".charAt ((code & 7) - 1);
+	    sb.append ((code < 8) ? Character.toUpperCase (c) : c);
+	  }
+	if (empty > 0)
+	  {
+	    sb.append (empty);
+	  }
+	if (row < 7)
+	  {
+	    sb.append ('/');
+	  }
+      }
+    Color toMove = isCheckMate ()? opponent (getCurrentPlayer ())
+      : getCurrentPlayer ();
+    sb.append ((toMove == Color.WHITE) ? " w " : " b ");
+    int rights = castlingRights ();
+    for (int i = 0; i < 4; i++)
+      {
+	if ((rights & (1 << i)) != 0)
+	  {
+	    sb.append ("KQkq".charAt (i));
+	  }
+      }
+    if (rights == 0)
+      {
+	sb.append ('-');
+      }
+    int enPassant = enPassantSquare ();
+    sb.append (' ').append ((enPassant < 0) ? "-" : Move.squareName (enPassant));
+    sb.append (' ').append (getHalfmoveClock ());
+    sb.append (' ').append ((turn + (isCheckMate ()? 1 : 0) + 1) / 2);
+    return sb.toString ();
+  }
+
+  private static Color opponent (Color color)
+  {
+    return (color == Color.WHITE) ? Color.BLACK : Color.WHITE;
+  }
+
+  // as ChessMatch.enPassantSquare (): only when a pawn can take
+  private int enPassantSquare ()
+  {
+    int square = enPassantPawn ();
+    if (square < 0)
+      {
+	return -1;
+      }
+    int pawn = pieceCode (square);
+    int row = Move.row (square);
+    int column = Move.column (square);
+    for (int c = column - 1; c <= column + 1; c += 2)
+      {
+	if (c >= 0 && c < 8 && pieceCode (Move.square (row, c)) == (pawn ^ 8))
+	  {
+	    return Move.square (row + ((pawn < 8) ? 1 : -1), column);
+	  }
+      }
+    return -1;
+  }
+
+  public int getMove (int ply)
+  {
+    return history[ply];
+  }
+}
+
+class Bishop extends ChessPiece
+{
+  public Bishop (Board board, Color color)
+  {
+    super (board, color);
+  }
+
+  @Override public int getType ()
+  {
+    return BISHOP;
+  }
+
+   @Override public boolean[][] possibleMoves ()
+  {
+
+    boolean[][]mat =
+      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
+
+    Position p = new Position (0, 0);
+
+    // northwest
+    p.setValues (position.getRow () - 1, position.getColumn () - 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setValues (p.getRow () - 1, p.getColumn () - 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // northeast
+    p.setValues (position.getRow () - 1, position.getColumn () + 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setValues (p.getRow () - 1, p.getColumn () + 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // southeast
+    p.setValues (position.getRow () + 1, position.getColumn () + 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setValues (p.getRow () + 1, p.getColumn () + 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // below
+    p.setValues (position.getRow () + 1, position.getColumn () - 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setValues (p.getRow () + 1, p.getColumn () - 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    return mat;
+  }
+
+  @Override public String toString ()
+  {
+    return "B";
+  }
+}
+
+class King extends ChessPiece
+{
+
+  private ChessMatch chessMatch;
+
+  public King (Board board, Color color, ChessMatch chessMatch)
+  {
+    super (board, color);
+    this.chessMatch = chessMatch;
+  }
+  public ChessMatch getChessMatch ()
+  {
+    return chessMatch;
+  }
+
+  @Override public int getType ()
+  {
+    return KING;
+  }
+  @Override public String toString ()
+  {
+    return "R";
+  }
+
+  private boolean canMove (Position position)
+  {
+    ChessPiece p = (ChessPiece) getBoard ().piece (position);
+    return p == null || p.getColor () != getColor ();
+  }
+
+  private boolean testRookCastling (int square)
+  {
+    ChessPiece p = (ChessPiece) getBoard ().piece (square);
+    return p instanceof Rook && getColor () == getColor ()
+      && p.getMoveCount () == 0;
+  }
+
+  @Override public boolean[][]possibleMoves ()
+  {
+    boolean[][]mat =
+      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
+    Position p = new Position (0, 0);
+
+    //above
+    p.setValues (position.getRow () - 1, position.getColumn ());
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+    //below
+    p.setValues (position.getRow () + 1, position.getColumn ());
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+    //left
+    p.setValues (position.getRow (), position.getColumn () - 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    //right
+    p.setValues (position.getRow (), position.getColumn () + 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+
+    p.setValues (position.getRow () - 1, position.getColumn () - 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+
+    p.setValues (position.getRow () + 1, position.getColumn () + 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+
+    p.setValues (position.getRow () + 1, position.getColumn () - 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+
+    //southeast
+    p.setValues (position.getRow () - 1, position.getColumn () + 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+
+    //Special move castling
+    if (getMoveCount () == 0 && !chessMatch.isCheck ())
+      {
+	int square = getSquare ();
+	//# special move castling kingside rook
+	if (testRookCastling (square + 3))
+	  {
+	    if (getBoard ().piece (square + 1) == null
+		&& getBoard ().piece (square + 2) == null)
+	      {
+		mat[position.getRow ()][position.getColumn () + 2] = true;
+	      }
+	  }
+	//# special move castling queenside rook
+	if (testRookCastling (square - 4))
+	  {
+	    if (getBoard ().piece (square - 1) == null
+		&& getBoard ().piece (square - 2) == null
+		&& getBoard ().piece (square - 3) == null)
+	      {
+		mat[position.getRow ()][position.getColumn () - 2] = true;
+	      }
+	  }
+
+      }
+    return mat;
+  }
+
+
+}
+
+
+class Knight extends ChessPiece
+{
+  public Knight (Board board, Color color)
+  {
+    super (board, color);
+  }
+
+  @Override public int getType ()
+  {
+    return KNIGHT;
+  }
+
+  public String toString ()
+  {
+    return "C";
+  }
+
+  private boolean canMove (Position position)
+  {
+    ChessPiece p = (ChessPiece) getBoard ().piece (position);
+    return p == null || p.getColor () != getColor ();
+  }
+
+  @Override public boolean[][]possibleMoves ()
+  {
+    boolean[][]mat =
+      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
+    Position p = new Position (0, 0);
+
+    p.setValues (position.getRow () - 1, position.getColumn () - 2);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    p.setValues (position.getRow () - 2, position.getColumn () - 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    p.setValues (position.getRow () - 2, position.getColumn () + 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    p.setValues (position.getRow () - 1, position.getColumn () + 2);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    p.setValues (position.getRow () + 1, position.getColumn () + 2);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    p.setValues (position.getRow () + 2, position.getColumn () + 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    p.setValues (position.getRow () + 2, position.getColumn () - 1);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    p.setValues (position.getRow () + 1, position.getColumn () - 2);
+    if (getBoard ().positionExists (p) && canMove (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+
+    return mat;
+  }
+
+
+}
+
+class Pawn extends ChessPiece
+{
+
+  private ChessMatch chessMatch;
+
+  public Pawn (Board board, Color color, ChessMatch chessMatch)
+  {
+    super (board, color);
+    this.chessMatch = chessMatch;
+  }
+
+  @Override public int getType ()
+  {
+    return PAWN;
+  }
+
+   @Override public boolean[][] possibleMoves ()
+  {
+    boolean[][]mat =
+      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
+    Position p = new Position (0, 0);
+
+    if (getColor () == Color.WHITE)
+      {
+	p.setValues (position.getRow () - 1, position.getColumn ());
+	if (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+	  {
+	    mat[p.getRow ()][p.getColumn ()] = true;
+	  }
+	p.setValues (position.getRow () - 2, position.getColumn ());
+	Position p2 =
+	  new Position (position.getRow () - 1, position.getColumn ());
+	if (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p)
+	    && getBoard ().positionExists (p2)
+	    && !getBoard ().thereIsAPiece (p2) && getMoveCount () == 0)
+	  {
+	    mat[p.getRow ()][p.getColumn ()] = true;
+	  }
+	p.setValues (position.getRow () - 1, position.getColumn () - 1);
+	if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+	  {
+	    mat[p.getRow ()][p.getColumn ()] = true;
+	  }
+	p.setValues (position.getRow () - 1, position.getColumn () + 1);
+	if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+	  {
+	    mat[p.getRow ()][p.getColumn ()] = true;
+	  }
+	// #specialmove en passant white
+	if (position.getRow () == 3)
+	  {
+	    Position left =
+	      new Position (position.getRow (), position.getColumn () - 1);
+	    if (getBoard ().positionExists (left)
+		&& isThereOpponentPiece (left)
+		&& getBoard ().piece (left) ==
+		chessMatch.getEnPassantVulnerable ())
+	      {
+		mat[left.getRow () - 1][left.getColumn ()] = true;
+	      }
+	    Position right =
+	      new Position (position.getRow (), position.getColumn () + 1);
+	    if (getBoard ().positionExists (right)
+		&& isThereOpponentPiece (right)
+		&& getBoard ().piece (right) ==
+		chessMatch.getEnPassantVulnerable ())
+	      {
+		mat[right.getRow () - 1][right.getColumn ()] = true;
+	      }
+	  }
+      }
+    else
+      {
+	p.setValues (position.getRow () + 1, position.getColumn ());
+	if (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+	  {
+	    mat[p.getRow ()][p.getColumn ()] = true;
+	  }
+	p.setValues (position.getRow () + 2, position.getColumn ());
+	Position p2 =
+	  new Position (position.getRow () + 1, position.getColumn ());
+	if (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p)
+	    && getBoard ().positionExists (p2)
+	    && !getBoard ().thereIsAPiece (p2) && getMoveCount () == 0)
+	  {
+	    mat[p.getRow ()][p.getColumn ()] = true;
+	  }
+	p.setValues (position.getRow () + 1, position.getColumn () + 1);
+	if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+	  {
+	    mat[p.getRow ()][p.getColumn ()] = true;
+	  }
+	p.setValues (position.getRow () + 1, position.getColumn () - 1);
+	if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+	  {
+	    mat[p.getRow ()][p.getColumn ()] = true;
+	  }
+	// #specialmove en passant black
+	if (position.getRow () == 4)
+	  {
+	    Position left =
+	      new Position (position.getRow (), position.getColumn () - 1);
+	    if (getBoard ().positionExists (left)
+		&& isThereOpponentPiece (left)
+		&& getBoard ().piece (left) ==
+		chessMatch.getEnPassantVulnerable ())
+	      {
+		mat[left.getRow () + 1][left.getColumn ()] = true;
+	      }
+	    Position right =
+	      new Position (position.getRow (), position.getColumn () + 1);
+	    if (getBoard ().positionExists (right)
+		&& isThereOpponentPiece (right)
+		&& getBoard ().piece (right) ==
+		chessMatch.getEnPassantVulnerable ())
+	      {
+		mat[right.getRow () + 1][right.getColumn ()] = true;
+	      }
+	  }
+      }
+
+    return mat;
+  }
+
+  @Override public String toString ()
+  {
+    return "P";
+  }
+}
+
+class Rook extends ChessPiece
+{
+
+
+  public Rook (Board board, Color color)
+  {
+    super (board, color);
+  }
+
+  @Override public int getType ()
+  {
+    return ROOK;
+  }
+
+   @Override public String toString ()
+  {
+    return "T";
+  }
+
+
+  @Override public boolean[][]possibleMoves ()
+  {
+    boolean[][]mat =
+      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
+
+    Position p = new Position (0, 0);
+
+    // above
+    p.setValues (position.getRow () - 1, position.getColumn ());
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setRow (p.getRow () - 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // left
+    p.setValues (position.getRow (), position.getColumn () - 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setColumn (p.getColumn () - 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // right
+    p.setValues (position.getRow (), position.getColumn () + 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setColumn (p.getColumn () + 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // below
+    p.setValues (position.getRow () + 1, position.getColumn ());
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setRow (p.getRow () + 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    return mat;
+  }
+}
+
+class Queen extends ChessPiece
+{
+
+
+  public Queen (Board board, Color color)
+  {
+    super (board, color);
+  }
+
+  @Override public int getType ()
+  {
+    return QUEEN;
+  }
+
+  public String toString ()
+  {
+    return "A";
+  }
+
+  @Override public boolean[][]possibleMoves ()
+  {
+    boolean[][]mat =
+      new boolean[getBoard ().getRows ()][getBoard ().getColumns ()];
+
+    Position p = new Position (0, 0);
+
+    // above
+    p.setValues (position.getRow () - 1, position.getColumn ());
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setRow (p.getRow () - 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // left
+    p.setValues (position.getRow (), position.getColumn () - 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setColumn (p.getColumn () - 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // right
+    p.setValues (position.getRow (), position.getColumn () + 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setColumn (p.getColumn () + 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // below
+    p.setValues (position.getRow () + 1, position.getColumn ());
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setRow (p.getRow () + 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+    // northwest
+    p.setValues (position.getRow () - 1, position.getColumn () - 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setValues (p.getRow () - 1, p.getColumn () - 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // northeast
+    p.setValues (position.getRow () - 1, position.getColumn () + 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setValues (p.getRow () - 1, p.getColumn () + 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // southeast
+    p.setValues (position.getRow () + 1, position.getColumn () + 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setValues (p.getRow () + 1, p.getColumn () + 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    // below
+    p.setValues (position.getRow () + 1, position.getColumn () - 1);
+    while (getBoard ().positionExists (p) && !getBoard ().thereIsAPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+	p.setValues (p.getRow () + 1, p.getColumn () - 1);
+      }
+    if (getBoard ().positionExists (p) && isThereOpponentPiece (p))
+      {
+	mat[p.getRow ()][p.getColumn ()] = true;
+      }
+
+    return mat;
+  }
+}
+
+class BoardColors
+{
+  public static final String ANSI_RESET = "\u001B[0m";
   public static final String ANSI_BLACK = "\u001B[30m";
   public static final String ANSI_RED = "\u001B[31m";
   public static final String ANSI_GREEN = "\u001B[32m";
@@ -1340,159 +3211,6489 @@ class BoardColors
   public static final String ANSI_CYAN = "\u001B[36m";
   public static final String ANSI_WHITE = "\u001B[37m";
 
-  public static final String ANSI_BLACK_BACKGROUND = "\u001B[40m";
-  public static final String ANSI_RED_BACKGROUND = "\u001B[41m";
-  public static final String ANSI_GREEN_BACKGROUND = "\u001B[42m";
-  public static final String ANSI_YELLOW_BACKGROUND = "\u001B[43m";
-  public static final String ANSI_BLUE_BACKGROUND = "\u001B[44m";
-  public static final String ANSI_PURPLE_BACKGROUND = "\u001B[45m";
-  public static final String ANSI_CYAN_BACKGROUND = "\u001B[46m";
-  public static final String ANSI_WHITE_BACKGROUND = "\u001B[47m";
+  public static final String ANSI_BLACK_BACKGROUND = "\u001B[40m";
+  public static final String ANSI_RED_BACKGROUND = "\u001B[41m";
+  public static final String ANSI_GREEN_BACKGROUND = "\u001B[42m";
+  public static final String ANSI_YELLOW_BACKGROUND = "\u001B[43m";
+  public static final String ANSI_BLUE_BACKGROUND = "\u001B[44m";
+  public static final String ANSI_PURPLE_BACKGROUND = "\u001B[45m";
+  public static final String ANSI_CYAN_BACKGROUND = "\u001B[46m";
+  public static final String ANSI_WHITE_BACKGROUND = "\u001B[47m";
+}
+
+
+
+class BoardView
+{
+
+  public static void clearScreen ()
+  {
+    System.out.print ("\033[H\033[2J");
+    System.out.flush ();
+  }
+
+  public static ChessPosition readChessPosition (Scanner sc)
+  {
+    try
+    {
+      String s = sc.nextLine ();
+      char column = s.charAt (0);
+      int row = Integer.parseInt (s.substring (1));
+      return ChessPosition.of (column, row);
+    }
+    catch (RuntimeException e)
+    {
+      throw new
+	InputMismatchException
+	("Error reading the position on the board. Valid values between a1 to h8");
+    }
+  }
+  public static void printMatch (ChessMatch chessMatch,
+				 List < ChessPiece > capturedPieces)
+  {
+    StringBuilder sb = new StringBuilder (1024);
+    BoardRenderer.appendBoard (sb, chessMatch.getBoardView (), null);
+    sb.append ('\n');
+    BoardRenderer.appendStatus (sb, chessMatch, capturedPieces);
+    System.out.print (sb);
+  }
+
+  public static void printBoard (ChessPiece[][]pieces)
+  {
+    printBoard (pieces, null);
+  }
+
+  public static void printBoard (ChessPiece[][]pieces,
+				 boolean[][]possibleMoves)
+  {
+    StringBuilder sb = new StringBuilder (1024);
+    BoardRenderer.appendBoard (sb, ChessBoardView.of (pieces),
+			       possibleMoves);
+    System.out.print (sb);
+  }
+}
+
+// Draws boards into one reusable buffer and writes each frame with a single
+// call. An incremental renderer homes and clears the screen for its first
+// frame; later frames move the cursor to the squares that changed and
+// rewrite only those and the status lines below the board.
+class BoardRenderer
+{
+  private static final String HOME_AND_CLEAR = "\033[H\033[2J";
+  private static final String CLEAR_DOWN = "\033[J";
+
+  private final PrintStream out;
+  private final boolean incremental;
+  private final StringBuilder frame = new StringBuilder (2048);
+  // cell code of each square on screen: piece kind + 1, 16 when highlighted
+  private final byte[] shown = new byte[64];
+  private boolean valid;
+
+  public BoardRenderer (PrintStream out, boolean incremental)
+  {
+    this.out = out;
+    this.incremental = incremental;
+  }
+
+  // the next frame is drawn in full, e.g. after something else wrote over
+  // the board
+  public synchronized void invalidate ()
+  {
+    valid = false;
+  }
+
+  public synchronized int lastFrameLength ()
+  {
+    return frame.length ();
+  }
+
+  public synchronized void renderMatch (ChessMatch chessMatch,
+					List < ChessPiece > capturedPieces)
+  {
+    board (chessMatch.getBoardView (), null);
+    frame.append ('\n');
+    appendStatus (frame, chessMatch, capturedPieces);
+    flush ();
+  }
+
+  public synchronized void renderBoard (ChessBoardView pieces,
+					boolean[][]possibleMoves)
+  {
+    board (pieces, possibleMoves);
+    flush ();
+  }
+
+  public void renderBoard (ChessPiece[][]pieces, boolean[][]possibleMoves)
+  {
+    renderBoard (ChessBoardView.of (pieces), possibleMoves);
+  }
+
+  private void board (ChessBoardView pieces, boolean[][]possibleMoves)
+  {
+    frame.setLength (0);
+    if (!incremental)
+      {
+	appendBoard (frame, pieces, possibleMoves);
+	return;
+      }
+    if (!valid)
+      {
+	frame.append (HOME_AND_CLEAR);
+	appendBoard (frame, pieces, possibleMoves);
+	for (int square = 0; square < 64; square++)
+	  {
+	    shown[square] = cell (pieces, possibleMoves, square);
+	  }
+	valid = true;
+	return;
+      }
+    for (int square = 0; square < 64; square++)
+      {
+	byte code = cell (pieces, possibleMoves, square);
+	if (shown[square] != code)
+	  {
+	    shown[square] = code;
+	    moveTo (Move.row (square) + 1, 3 + 2 * Move.column (square));
+	    appendPiece (frame, pieces.piece (square), (code & 16) != 0);
+	  }
+      }
+    // the status lines and whatever was typed below the board
+    moveTo (10, 1);
+    frame.append (CLEAR_DOWN);
+  }
+
+  private static byte cell (ChessBoardView pieces, boolean[][]possibleMoves,
+			    int square)
+  {
+    ChessPiece piece = pieces.piece (square);
+    int code = (piece == null) ? 0 : PieceList.kind (piece) + 1;
+    if (possibleMoves != null
+	&& possibleMoves[Move.row (square)][Move.column (square)])
+      {
+	code |= 16;
+      }
+    return (byte) code;
+  }
+
+  private void moveTo (int line, int column)
+  {
+    frame.append ("\033[").append (line).append (';').append (column)
+      .append ('H');
+  }
+
+  private void flush ()
+  {
+    out.append (frame);
+    out.flush ();
+  }
+
+  static void appendBoard (StringBuilder sb, ChessBoardView pieces,
+			   boolean[][]possibleMoves)
+  {
+    for (int i = 0; i < 8; i++)
+      {
+	sb.append (8 - i).append (' ');
+	for (int j = 0; j < 8; j++)
+	  {
+	    appendPiece (sb, pieces.piece (i, j),
+			 possibleMoves != null && possibleMoves[i][j]);
+	  }
+	sb.append ('\n');
+      }
+    sb.append ("  a b c d e f g h\n");
+  }
+
+  static void appendPiece (StringBuilder sb, ChessPiece piece,
+			   boolean background)
+  {
+    if (background)
+      {
+	sb.append (BoardColors.ANSI_BLUE_BACKGROUND);
+      }
+    if (piece == null)
+      {
+	sb.append ('-');
+      }
+    else
+      {
+	sb.append ((piece.getColor () == Color.WHITE) ? BoardColors.ANSI_WHITE
+		   : BoardColors.ANSI_YELLOW).append (piece);
+      }
+    sb.append (BoardColors.ANSI_RESET).append (' ');
+  }
+
+  static void appendStatus (StringBuilder sb, ChessMatch chessMatch,
+			    List < ChessPiece > capturedPieces)
+  {
+    sb.append ("captured pieces: \n");
+    sb.append ("white pieces: ").append (BoardColors.ANSI_WHITE);
+    appendCaptured (sb, capturedPieces, Color.WHITE);
+    sb.append (BoardColors.ANSI_RESET).append ("black pieces: ")
+      .append (BoardColors.ANSI_YELLOW);
+    appendCaptured (sb, capturedPieces, Color.BLACK);
+    sb.append ("Shift: ").append (chessMatch.getTurn ()).append ('\n');
+    if (!chessMatch.isCheckMate ())
+      {
+	sb.append ("waiting for the player: ")
+	  .append (chessMatch.getCurrentPlayer ()).append ('\n');
+	if (chessMatch.isCheck ())
+	  {
+	    sb.append ("Check!\n");
+	  }
+      }
+    else
+      {
+	sb.append ("CHECKMATE!\n");
+	sb.append ("Winner: ").append (chessMatch.getCurrentPlayer ())
+	  .append ('\n');
+      }
+  }
+
+  private static void appendCaptured (StringBuilder sb,
+				      List < ChessPiece > capturedPieces,
+				      Color color)
+  {
+    sb.append ('[');
+    boolean first = true;
+  for (ChessPiece p:capturedPieces)
+      {
+	if (p.getColor () == color)
+	  {
+	    sb.append (first ? "" : ", ").append (p);
+	    first = false;
+	  }
+      }
+    sb.append ("]\n");
+  }
+}
+
+class TranspositionTable
+{
+  public static final int EXACT = 1;
+  public static final int LOWER = 2;
+  public static final int UPPER = 3;
+
+  // key and data are stored xor-ed so that torn writes from other threads
+  // are detected as misses instead of corrupting a search
+  private final long[] keys;
+  private final long[] data;
+  private final int mask;
+
+  public TranspositionTable (int megabytes)
+  {
+    int entries = 1;
+    while ((long) entries * 2 * 16 <= (long) megabytes << 20)
+      {
+	entries <<= 1;
+      }
+    keys = new long[entries];
+    data = new long[entries];
+    mask = entries - 1;
+  }
+
+  public void clear ()
+  {
+    Arrays.fill (keys, 0);
+    Arrays.fill (data, 0);
+  }
+
+  // returns 0 when the position is not stored
+  public long probe (long key)
+  {
+    int i = (int) key & mask;
+    long entry = data[i];
+    return ((keys[i] ^ entry) == key) ? entry : 0;
+  }
+
+  public void store (long key, int move, int depth, int flag, int score)
+  {
+    int i = (int) key & mask;
+    long entry = (move & 0xFFFFL) | ((long) (depth & 0xFF) << 16)
+      | ((long) flag << 24) | ((long) (score & 0xFFFF) << 32);
+    keys[i] = key ^ entry;
+    data[i] = entry;
+  }
+
+  public static int move (long entry)
+  {
+    return (int) (entry & 0xFFFF);
+  }
+
+  public static int depth (long entry)
+  {
+    return (int) ((entry >>> 16) & 0xFF);
+  }
+
+  public static int flag (long entry)
+  {
+    return (int) ((entry >>> 24) & 3);
+  }
+
+  public static int score (long entry)
+  {
+    return (short) (entry >>> 32);
+  }
+}
+
+class SearchLimits
+{
+  private final int depth;
+  private final long nodes;
+  private final long timeMillis;
+
+  public SearchLimits (int depth, long nodes, long timeMillis)
+  {
+    this.depth = depth;
+    this.nodes = nodes;
+    this.timeMillis = timeMillis;
+  }
+
+  public static SearchLimits depth (int depth)
+  {
+    return new SearchLimits (depth, Long.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  public static SearchLimits nodes (long nodes)
+  {
+    return new SearchLimits (Search.MAX_PLY, nodes, Long.MAX_VALUE);
+  }
+
+  public static SearchLimits time (long timeMillis)
+  {
+    return new SearchLimits (Search.MAX_PLY, Long.MAX_VALUE, timeMillis);
+  }
+
+  // time for one move from a clock, keeping a margin for the reply
+  public static long budget (long remaining, long increment, int movesToGo)
+  {
+    long budget = remaining / movesToGo + increment * 3 / 4;
+    return Math.max (1, Math.min (budget, remaining - 50));
+  }
+
+  public int getDepth ()
+  {
+    return depth;
+  }
+
+  public long getNodes ()
+  {
+    return nodes;
+  }
+  public long getTimeMillis ()
+  {
+    return timeMillis;
+  }
+}
+
+class SearchResult
+{
+  private final int bestMove;
+  private final int score;
+  private final int depth;
+  private final long nodes;
+  private final long timeMillis;
+  private final int[] pv;
+
+  public SearchResult (int bestMove, int score, int depth, long nodes,
+		       long timeMillis, int[]pv)
+  {
+    this.bestMove = bestMove;
+    this.score = score;
+    this.depth = depth;
+    this.nodes = nodes;
+    this.timeMillis = timeMillis;
+    this.pv = pv;
+  }
+
+  public int getBestMove ()
+  {
+    return bestMove;
+  }
+
+  public int getScore ()
+  {
+    return score;
+  }
+
+  public int getDepth ()
+  {
+    return depth;
+  }
+
+  public long getNodes ()
+  {
+    return nodes;
+  }
+
+  public long getTimeMillis ()
+  {
+    return timeMillis;
+  }
+
+  public int[] getPv ()
+  {
+    return pv;
+  }
+
+  public boolean isMate ()
+  {
+    return Math.abs (score) >= Search.MATE - Search.MAX_PLY;
+  }
+
+  // "cp 35" or "mate -3", as UCI prints it
+  public String scoreString ()
+  {
+    if (!isMate ())
+      {
+	return "cp " + score;
+      }
+    int plies = Search.MATE - Math.abs (score);
+    return "mate " + ((score > 0) ? (plies + 1) / 2 : -(plies / 2));
+  }
+
+  public String pvString ()
+  {
+    StringBuilder sb = new StringBuilder ();
+  for (int move:pv)
+      {
+	if (sb.length () > 0)
+	  {
+	    sb.append (' ');
+	  }
+	sb.append (Move.toUci (move));
+      }
+    return sb.toString ();
+  }
+
+  @Override public String toString ()
+  {
+    return "depth " + depth + " score " + scoreString () + " nodes " + nodes +
+      " time " + timeMillis + " pv " + pvString ();
+  }
+}
+
+// counters of one search for tuning move ordering and pruning; only
+// collected when Search.STATS is on
+class SearchStats
+{
+  private final long[] nodes = new long[Search.MAX_PLY + 1];
+  private final long[] quiescenceNodes = new long[Search.MAX_PLY + 1];
+  private final long[] iterationNodes = new long[Search.MAX_PLY + 1];
+  private int iterations;
+  private long ttProbes;
+  private long ttHits;
+  private long ttCutoffs;
+  private long drawCutoffs;
+  private long standPatCutoffs;
+  private long betaCutoffs;
+  private long firstMoveCutoffs;
+
+  public void clear ()
+  {
+    Arrays.fill (nodes, 0);
+    Arrays.fill (quiescenceNodes, 0);
+    Arrays.fill (iterationNodes, 0);
+    iterations = 0;
+    ttProbes = ttHits = ttCutoffs = 0;
+    drawCutoffs = standPatCutoffs = betaCutoffs = firstMoveCutoffs = 0;
+  }
+
+  void node (int ply)
+  {
+    nodes[ply]++;
+  }
+
+  void quiescenceNode (int ply)
+  {
+    quiescenceNodes[ply]++;
+  }
+
+  void probe (boolean hit)
+  {
+    ttProbes++;
+    ttHits += hit ? 1 : 0;
+  }
+
+  void ttCutoff ()
+  {
+    ttCutoffs++;
+  }
+
+  void drawCutoff ()
+  {
+    drawCutoffs++;
+  }
+
+  void standPatCutoff ()
+  {
+    standPatCutoffs++;
+  }
+
+  // moveIndex is the position of the refuting move in the ordered list
+  void betaCutoff (int moveIndex)
+  {
+    betaCutoffs++;
+    firstMoveCutoffs += (moveIndex == 0) ? 1 : 0;
+  }
+
+  void iteration (int depth, long nodes)
+  {
+    iterationNodes[depth] = nodes;
+    iterations = depth;
+  }
+
+  // folds in the counters of one finished search, for totals over a run
+  synchronized void add (SearchStats other)
+  {
+    for (int ply = 0; ply <= Search.MAX_PLY; ply++)
+      {
+	nodes[ply] += other.nodes[ply];
+	quiescenceNodes[ply] += other.quiescenceNodes[ply];
+	iterationNodes[ply] += other.iterationNodes[ply];
+      }
+    iterations = Math.max (iterations, other.iterations);
+    ttProbes += other.ttProbes;
+    ttHits += other.ttHits;
+    ttCutoffs += other.ttCutoffs;
+    drawCutoffs += other.drawCutoffs;
+    standPatCutoffs += other.standPatCutoffs;
+    betaCutoffs += other.betaCutoffs;
+    firstMoveCutoffs += other.firstMoveCutoffs;
+  }
+
+  public long getNodes (int ply)
+  {
+    return nodes[ply] + quiescenceNodes[ply];
+  }
+
+  public double getTtHitRate ()
+  {
+    return (ttProbes == 0) ? 0 : (double) ttHits / ttProbes;
+  }
+
+  public double getFirstMoveCutoffRate ()
+  {
+    return (betaCutoffs == 0) ? 0 : (double) firstMoveCutoffs / betaCutoffs;
+  }
+
+  public double getQuiescenceRatio ()
+  {
+    long main = 0;
+    long quiescence = 0;
+    for (int ply = 0; ply <= Search.MAX_PLY; ply++)
+      {
+	main += nodes[ply];
+	quiescence += quiescenceNodes[ply];
+      }
+    return (main + quiescence == 0) ? 0
+      : (double) quiescence / (main + quiescence);
+  }
+
+  // nodes of the last iteration over those of the one before
+  public double getEffectiveBranchingFactor ()
+  {
+    return (iterations < 2 || iterationNodes[iterations - 1] == 0) ? 0
+      : (double) iterationNodes[iterations] / iterationNodes[iterations - 1];
+  }
+
+  public synchronized String report ()
+  {
+    StringBuilder sb = new StringBuilder ();
+    sb.append (String.format (Locale.ROOT,
+			      "tt probes %d hit rate %.3f cutoffs %d%n",
+			      ttProbes, getTtHitRate (), ttCutoffs));
+    sb.append (String.format (Locale.ROOT,
+			      "beta cutoffs %d first move rate %.3f%n",
+			      betaCutoffs, getFirstMoveCutoffRate ()));
+    sb.append (String.format (Locale.ROOT,
+			      "pruned: draw %d stand pat %d%n", drawCutoffs,
+			      standPatCutoffs));
+    sb.append (String.format (Locale.ROOT,
+			      "quiescence ratio %.3f ebf %.2f%n",
+			      getQuiescenceRatio (),
+			      getEffectiveBranchingFactor ()));
+    for (int depth = 1; depth <= iterations; depth++)
+      {
+	sb.append (String.format (Locale.ROOT, "iteration %d nodes %d%s%n",
+				  depth, iterationNodes[depth],
+				  (depth > 1 && iterationNodes[depth - 1] > 0)
+				  ? String.format (Locale.ROOT, " ebf %.2f",
+						   (double) iterationNodes[depth]
+						   / iterationNodes[depth - 1])
+				  : ""));
+      }
+    for (int ply = 0; ply <= Search.MAX_PLY; ply++)
+      {
+	if (nodes[ply] + quiescenceNodes[ply] > 0)
+	  {
+	    sb.append (String.format (Locale.ROOT,
+				      "ply %d nodes %d quiescence %d%n", ply,
+				      nodes[ply], quiescenceNodes[ply]));
+	  }
+      }
+    return sb.toString ();
+  }
+}
+
+class Search
+{
+  public static final int MAX_PLY = 64;
+  public static final int MATE = 30000;
+  public static final int INFINITY = 32000;
+
+  private static final int[] VALUES = { 100, 320, 330, 500, 900, 0 };
+  // bonus for central squares, used for the minor pieces and the queen
+  private static final int[] CENTER = {
+    -20, -10, -10, -10, -10, -10, -10, -20,
+    -10, 0, 0, 0, 0, 0, 0, -10,
+    -10, 0, 5, 10, 10, 5, 0, -10,
+    -10, 5, 10, 15, 15, 10, 5, -10,
+    -10, 5, 10, 15, 15, 10, 5, -10,
+    -10, 0, 5, 10, 10, 5, 0, -10,
+    -10, 0, 0, 0, 0, 0, 0, -10,
+    -20, -10, -10, -10, -10, -10, -10, -20
+  };
+
+  // -Dchess.searchStats=true; a constant, so the JIT drops the
+  // instrumentation when it is off
+  static final boolean STATS = Boolean.getBoolean ("chess.searchStats");
+
+  private static final LongAdder SEARCHES =
+    Metrics.ENGINE.counter ("searches");
+  private static final LongAdder SEARCH_NODES =
+    Metrics.ENGINE.counter ("searchNodes");
+  private static final SearchStats TOTAL_STATS =
+    STATS ? new SearchStats () : null;
+
+  private final TranspositionTable table;
+  private final int[][] moves = new int[MAX_PLY + 1][256];
+  private final int[][] orders = new int[MAX_PLY + 1][256];
+  private final int[][] pv = new int[MAX_PLY + 1][MAX_PLY + 1];
+  private final int[] pvLength = new int[MAX_PLY + 1];
+  private Consumer < SearchResult > listener = result -> { };
+
+  private ChessMatch position;
+  private SearchLimits limits;
+  private long nodes;
+  private long startTime;
+  private volatile boolean stopped;
+  private final SearchStats stats = STATS ? new SearchStats () : null;
+
+  public Search (int hashMegabytes)
+  {
+    this (new TranspositionTable (hashMegabytes));
+  }
+
+  public Search (TranspositionTable table)
+  {
+    this.table = table;
+  }
+
+  public TranspositionTable getTable ()
+  {
+    return table;
+  }
+
+  // called after every completed iteration
+  public void setListener (Consumer < SearchResult > listener)
+  {
+    this.listener = listener;
+  }
+
+  // also ends a search() that has not started yet, so a stop sent right
+  // after a search thread is launched is not lost
+  public void stop ()
+  {
+    stopped = true;
+  }
+
+  // null unless STATS is on
+  public SearchStats getStats ()
+  {
+    return stats;
+  }
+
+  // every search of this process added up; null unless STATS is on
+  public static SearchStats getTotalStats ()
+  {
+    return TOTAL_STATS;
+  }
+
+  public long getNodes ()
+  {
+    return nodes;
+  }
+
+  // searches the position, which is left unchanged
+  public SearchResult search (ChessMatch position, SearchLimits limits)
+  {
+    this.position = position;
+    this.limits = limits;
+    nodes = 0;
+    startTime = System.nanoTime ();
+    if (STATS)
+      {
+	stats.clear ();
+      }
+
+    int count = position.legalMoves (moves[0]);
+    if (count == 0)
+      {
+	stopped = false;
+	return new SearchResult (0, position.isCheck ()? -MATE : 0, 0, 0, 0,
+				 new int[0]);
+      }
+    SearchResult best = null;
+    // one iteration always runs so that there is a move to return
+    int maxDepth = Math.max (1, Math.min (limits.getDepth (), MAX_PLY));
+    for (int depth = 1; depth <= maxDepth; depth++)
+      {
+	SearchIterationEvent event = new SearchIterationEvent ();
+	event.begin ();
+	long nodesBefore = nodes;
+	int score = alphaBeta (depth, -INFINITY, INFINITY, 0);
+	if (stopped && best != null)
+	  {
+	    break;
+	  }
+	// a first iteration stopped before any root move finished leaves the
+	// previous search's line in pv[0]
+	best = new SearchResult ((pvLength[0] > 0) ? pv[0][0] : 0, score, depth,
+				 nodes, elapsed (),
+				 Arrays.copyOf (pv[0], pvLength[0]));
+	if (STATS)
+	  {
+	    stats.iteration (depth, nodes - nodesBefore);
+	  }
+	if (event.shouldCommit ())
+	  {
+	    event.depth = depth;
+	    event.nodes = nodes - nodesBefore;
+	    event.totalNodes = nodes;
+	    event.score = score;
+	    event.bestMove = Move.toUci (best.getBestMove ());
+	    event.commit ();
+	  }
+	listener.accept (best);
+	if (stopped || best.isMate ())
+	  {
+	    break;
+	  }
+      }
+    if (best.getBestMove () == 0)
+      {
+	best = new SearchResult (moves[0][0], best.getScore (), best.getDepth (),
+				 nodes, elapsed (), new int[] { moves[0][0] });
+      }
+    // a stop pending from this search must not end the next one
+    stopped = false;
+    SEARCHES.increment ();
+    SEARCH_NODES.add (nodes);
+    if (STATS)
+      {
+	TOTAL_STATS.add (stats);
+      }
+    return best;
+  }
+
+  private long elapsed ()
+  {
+    return (System.nanoTime () - startTime) / 1000000;
+  }
+
+  private void checkLimits ()
+  {
+    if (nodes >= limits.getNodes () || elapsed () >= limits.getTimeMillis ())
+      {
+	stopped = true;
+      }
+  }
+
+  private int alphaBeta (int depth, int alpha, int beta, int ply)
+  {
+    pvLength[ply] = ply;
+    if (depth <= 0)
+      {
+	return quiesce (alpha, beta, ply);
+      }
+    if ((++nodes & 1023) == 0)
+      {
+	checkLimits ();
+      }
+    if (stopped)
+      {
+	return 0;
+      }
+    if (STATS)
+      {
+	stats.node (ply);
+      }
+    if (ply >= MAX_PLY)
+      {
+	return evaluate ();
+      }
+
+    long key = position.positionKey ();
+    if (ply > 0
+	&& (position.getHalfmoveClock () >= 100 || position.repetitions (key) > 0))
+      {
+	if (STATS)
+	  {
+	    stats.drawCutoff ();
+	  }
+	return 0;
+      }
+    long entry = table.probe (key);
+    if (STATS)
+      {
+	stats.probe (entry != 0);
+      }
+    int ttMove = 0;
+    if (entry != 0)
+      {
+	ttMove = TranspositionTable.move (entry);
+	if (ply > 0 && TranspositionTable.depth (entry) >= depth)
+	  {
+	    int score = fromTable (TranspositionTable.score (entry), ply);
+	    int flag = TranspositionTable.flag (entry);
+	    if (flag == TranspositionTable.EXACT
+		|| (flag == TranspositionTable.LOWER && score >= beta)
+		|| (flag == TranspositionTable.UPPER && score <= alpha))
+	      {
+		if (STATS)
+		  {
+		    stats.ttCutoff ();
+		  }
+		return score;
+	      }
+	  }
+      }
+
+    int[] list = moves[ply];
+    int count = position.legalMoves (list);
+    if (count == 0)
+      {
+	return position.isCheck ()? -MATE + ply : 0;
+      }
+    score (list, orders[ply], count, ttMove);
+
+    int originalAlpha = alpha;
+    int best = -INFINITY;
+    int bestMove = 0;
+    for (int i = 0; i < count; i++)
+      {
+	int move = next (list, orders[ply], i, count);
+	position.push (move);
+	int score = -alphaBeta (depth - 1, -beta, -alpha, ply + 1);
+	position.pop ();
+	if (stopped)
+	  {
+	    return 0;
+	  }
+	if (score > best)
+	  {
+	    best = score;
+	    bestMove = move;
+	    if (score > alpha)
+	      {
+		alpha = score;
+		updatePv (ply, move);
+	      }
+	  }
+	if (alpha >= beta)
+	  {
+	    if (STATS)
+	      {
+		stats.betaCutoff (i);
+	      }
+	    break;
+	  }
+      }
+    int flag = (best <= originalAlpha) ? TranspositionTable.UPPER
+      : (best >= beta) ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+    table.store (key, bestMove, depth, flag, toTable (best, ply));
+    return best;
+  }
+
+  private int quiesce (int alpha, int beta, int ply)
+  {
+    pvLength[ply] = ply;
+    if ((++nodes & 1023) == 0)
+      {
+	checkLimits ();
+      }
+    if (stopped)
+      {
+	return 0;
+      }
+    if (STATS)
+      {
+	stats.quiescenceNode (ply);
+      }
+    int standPat = evaluate ();
+    if (standPat >= beta || ply >= MAX_PLY)
+      {
+	if (STATS && standPat >= beta)
+	  {
+	    stats.standPatCutoff ();
+	  }
+	return standPat;
+      }
+    alpha = Math.max (alpha, standPat);
+
+    int[] list = moves[ply];
+    int count = position.legalMoves (list, true);
+    score (list, orders[ply], count, 0);
+    for (int i = 0; i < count; i++)
+      {
+	int move = next (list, orders[ply], i, count);
+	position.push (move);
+	int score = -quiesce (-beta, -alpha, ply + 1);
+	position.pop ();
+	if (stopped)
+	  {
+	    return 0;
+	  }
+	if (score > alpha)
+	  {
+	    alpha = score;
+	    updatePv (ply, move);
+	    if (alpha >= beta)
+	      {
+		if (STATS)
+		  {
+		    stats.betaCutoff (i);
+		  }
+		break;
+	      }
+	  }
+      }
+    return alpha;
+  }
+
+  private void updatePv (int ply, int move)
+  {
+    pv[ply][ply] = move;
+    System.arraycopy (pv[ply + 1], ply + 1, pv[ply], ply + 1,
+		      pvLength[ply + 1] - ply - 1);
+    pvLength[ply] = Math.max (pvLength[ply + 1], ply + 1);
+  }
+
+  // mate scores are stored relative to the node, not the root
+  private static int toTable (int score, int ply)
+  {
+    return (score >= MATE - MAX_PLY) ? score + ply
+      : (score <= -MATE + MAX_PLY) ? score - ply : score;
+  }
+
+  private static int fromTable (int score, int ply)
+  {
+    return (score >= MATE - MAX_PLY) ? score - ply
+      : (score <= -MATE + MAX_PLY) ? score + ply : score;
+  }
+
+  // hash move first, then captures by most valuable victim, then promotions
+  private void score (int[]list, int[]order, int count, int ttMove)
+  {
+    for (int i = 0; i < count; i++)
+      {
+	int move = list[i];
+	int score = 0;
+	if (move == ttMove)
+	  {
+	    score = 1000000;
+	  }
+	else if (position.isCapture (move))
+	  {
+	    ChessPiece victim = position.pieceAt (Move.to (move));
+	    int value = (victim == null) ? VALUES[ChessPiece.PAWN]
+	      : VALUES[victim.getType ()];
+	    score = 100000 + value * 10
+	      - position.pieceAt (Move.from (move)).getType ();
+	  }
+	if (Move.promotion (move) == Move.QUEEN)
+	  {
+	    score += 90000;
+	  }
+	order[i] = score;
+      }
+  }
+
+  // selection sort step: brings the best remaining move to index i
+  private static int next (int[]list, int[]order, int i, int count)
+  {
+    int best = i;
+    for (int j = i + 1; j < count; j++)
+      {
+	if (order[j] > order[best])
+	  {
+	    best = j;
+	  }
+      }
+    int move = list[best];
+    list[best] = list[i];
+    list[i] = move;
+    int score = order[best];
+    order[best] = order[i];
+    order[i] = score;
+    return move;
+  }
+
+  // material and centralization, from the side to move's point of view
+  private int evaluate ()
+  {
+    int score = 0;
+    for (int square = 0; square < 64; square++)
+      {
+	ChessPiece p = position.pieceAt (square);
+	if (p == null)
+	  {
+	    continue;
+	  }
+	boolean white = p.getColor () == Color.WHITE;
+	int type = p.getType ();
+	int value = VALUES[type];
+	if (type == ChessPiece.PAWN)
+	  {
+	    int advance = white ? 6 - Move.row (square) : Move.row (square) - 1;
+	    value += advance * 5 + CENTER[square] / 2;
+	  }
+	else if (type != ChessPiece.KING && type != ChessPiece.ROOK)
+	  {
+	    value += CENTER[square];
+	  }
+	score += white ? value : -value;
+      }
+    return (position.getCurrentPlayer () == Color.WHITE) ? score : -score;
+  }
+}
+
+// proves or refutes a forced mate in N moves with depth-first proof-number
+// search (df-pn). Every node holds two numbers from the view of its side to
+// move: phi, the effort to prove it wins, and delta, the effort to prove it
+// loses; a node is explored until one of them crosses its threshold. Keys
+// include the plies left, so transpositions can never form cycles
+class MateSolver
+{
+  public static final int PROVEN = 1;
+  public static final int UNKNOWN = 0;
+  public static final int DISPROVEN = -1;
+
+  private static final int INFINITE = 1 << 28;
+  // a quiet attacking move leaves the defender more replies than a check
+  private static final int QUIET_MOVE = 2;
+  private static final LongAdder MATE_NODES =
+    Metrics.ENGINE.counter ("mateSolverNodes");
+
+  private final long[] keys;
+  private final long[] values;
+  private final int mask;
+  private final int[][] moves = new int[Search.MAX_PLY + 1][256];
+  private final int[][] phis = new int[Search.MAX_PLY + 1][256];
+  private final int[][] deltas = new int[Search.MAX_PLY + 1][256];
+
+  private ChessMatch position;
+  private long nodeLimit = Long.MAX_VALUE;
+  private long nodes;
+  private volatile boolean stopped;
+  private int phi;
+  private int delta;
+  private int[] pv = new int[0];
+
+  // the table takes at most megabytes of memory
+  public MateSolver (int megabytes)
+  {
+    int entries = 1;
+    while ((long) entries * 2 * 16 <= (long) megabytes << 20)
+      {
+	entries <<= 1;
+      }
+    keys = new long[entries];
+    values = new long[entries];
+    mask = entries - 1;
+  }
+
+  public void setNodeLimit (long nodeLimit)
+  {
+    this.nodeLimit = nodeLimit;
+  }
+
+  public void stop ()
+  {
+    stopped = true;
+  }
+
+  public void clear ()
+  {
+    Arrays.fill (keys, 0);
+    Arrays.fill (values, 0);
+  }
+
+  public long getNodes ()
+  {
+    return nodes;
+  }
+
+  // the mating line found by the last successful solve, shortest mate
+  // first and the longest defence against it
+  public int[] getPv ()
+  {
+    return pv;
+  }
+
+  // whether the side to move mates within the given number of moves; the
+  // position is left unchanged
+  public int solve (ChessMatch position, int mateIn)
+  {
+    int plies = plies (mateIn);
+    this.position = position;
+    nodes = 0;
+    stopped = false;
+    pv = new int[0];
+    mid (plies, 0, INFINITE, INFINITE);
+    int result = result (delta, phi);
+    if (result == PROVEN)
+      {
+	// the line is walked without the node limit so that a proof found
+	// just before it always comes with its moves
+	long limit = nodeLimit;
+	boolean limited = stopped;
+	nodeLimit = Long.MAX_VALUE;
+	stopped = false;
+	List < Integer > line = new ArrayList <> ();
+	principalVariation (plies, line);
+	pv = line.stream ().mapToInt (Integer::intValue).toArray ();
+	nodeLimit = limit;
+	stopped = stopped || limited;
+      }
+    MATE_NODES.add (nodes);
+    return result;
+  }
+
+  // every first move that forces mate within the given number of moves, or
+  // null when the node limit ran out before all of them were decided. A
+  // sound puzzle has exactly one
+  public int[] solutions (ChessMatch position, int mateIn)
+  {
+    int plies = plies (mateIn);
+    this.position = position;
+    nodes = 0;
+    stopped = false;
+    int[] list = new int[256];
+    int count = position.legalMoves (list);
+    int[] found = new int[count];
+    int solutions = 0;
+    for (int i = 0; i < count; i++)
+      {
+	position.push (list[i]);
+	mid (plies - 1, 1, INFINITE, INFINITE);
+	position.pop ();
+	int result = result (phi, delta);
+	if (result == UNKNOWN)
+	  {
+	    MATE_NODES.add (nodes);
+	    return null;
+	  }
+	if (result == PROVEN)
+	  {
+	    found[solutions++] = list[i];
+	  }
+      }
+    MATE_NODES.add (nodes);
+    return Arrays.copyOf (found, solutions);
+  }
+
+  private static int plies (int mateIn)
+  {
+    if (mateIn < 1 || 2 * mateIn - 1 > Search.MAX_PLY - 1)
+      {
+	throw new IllegalArgumentException ("mate in " + mateIn);
+      }
+    return 2 * mateIn - 1;
+  }
+
+  // PROVEN when the attacker mates: at an attacker node phi is zero, at a
+  // defender node delta is
+  private static int result (int attackerLoses, int attackerWins)
+  {
+    return (attackerWins == 0) ? PROVEN
+      : (attackerLoses == 0) ? DISPROVEN : UNKNOWN;
+  }
+
+  private static long key (long positionKey, int plies)
+  {
+    return positionKey ^ (plies * 0x9E3779B97F4A7C15L);
+  }
+
+  private void store (long key, int phi, int delta)
+  {
+    int i = (int) key & mask;
+    keys[i] = key;
+    values[i] = ((long) phi << 32) | delta;
+  }
+
+  // the attacker moves when an odd number of plies is left
+  private void mid (int plies, int ply, int thresholdPhi, int thresholdDelta)
+  {
+    nodes++;
+    if (nodes >= nodeLimit)
+      {
+	stopped = true;
+      }
+    boolean attacker = (plies & 1) == 1;
+    long key = key (position.positionKey (), plies);
+    int[] list = moves[ply];
+    int count = position.legalMoves (list);
+    if (count == 0)
+      {
+	// mated loses; stalemate is a loss for the attacker only
+	boolean lost = attacker || position.isCheck ();
+	phi = lost ? INFINITE : 0;
+	delta = lost ? 0 : INFINITE;
+	store (key, phi, delta);
+	return;
+      }
+    if (plies == 0)
+      {
+	// the defender survived
+	phi = 0;
+	delta = INFINITE;
+	store (key, phi, delta);
+	return;
+      }
+
+    int[] childPhi = phis[ply];
+    int[] childDelta = deltas[ply];
+    for (int i = 0; i < count; i++)
+      {
+	position.push (list[i]);
+	evaluate (plies - 1, childPhi, childDelta, i);
+	position.pop ();
+      }
+
+    while (true)
+      {
+	int best = 0;
+	int bestDelta = INFINITE;
+	int secondDelta = INFINITE;
+	long sumPhi = 0;
+	for (int i = 0; i < count; i++)
+	  {
+	    sumPhi += childPhi[i];
+	    if (childDelta[i] < bestDelta)
+	      {
+		secondDelta = bestDelta;
+		bestDelta = childDelta[i];
+		best = i;
+	      }
+	    else if (childDelta[i] < secondDelta)
+	      {
+		secondDelta = childDelta[i];
+	      }
+	  }
+	phi = bestDelta;
+	delta = (int) Math.min (sumPhi, INFINITE);
+	if (phi >= thresholdPhi || delta >= thresholdDelta || stopped)
+	  {
+	    store (key, phi, delta);
+	    return;
+	  }
+	int nextPhi = thresholdDelta - delta + childPhi[best];
+	int nextDelta = Math.min (thresholdPhi, secondDelta + 1);
+	position.push (list[best]);
+	mid (plies - 1, ply + 1, nextPhi, nextDelta);
+	position.pop ();
+	childPhi[best] = phi;
+	childDelta[best] = delta;
+      }
+  }
+
+  // first estimate of a child: decided outright on the last ply, where only
+  // a checking move can mate, else the stored numbers or a step or two
+  private void evaluate (int plies, int[] childPhi, int[] childDelta, int i)
+  {
+    if (plies == 0)
+      {
+	boolean mated = position.isMated ();
+	childPhi[i] = mated ? INFINITE : 0;
+	childDelta[i] = mated ? 0 : INFINITE;
+	return;
+      }
+    long key = key (position.positionKey (), plies);
+    int slot = (int) key & mask;
+    if (keys[slot] == key)
+      {
+	childPhi[i] = (int) (values[slot] >>> 32);
+	childDelta[i] = (int) values[slot];
+      }
+    else
+      {
+	childPhi[i] = 1;
+	boolean quiet = (plies & 1) == 0 && !position.isCheck ();
+	childDelta[i] = quiet ? QUIET_MOVE : 1;
+      }
+  }
+
+  // walks a proven tree: the attacker plays the quickest mate, the defender
+  // the reply that postpones it longest
+  private void principalVariation (int plies, List < Integer > line)
+  {
+    int[] list = new int[256];
+    int count = position.legalMoves (list);
+    int chosen = -1;
+    int chosenPlies = -1;
+    if ((plies & 1) == 1)
+      {
+	for (int p = 1; p <= plies && chosen < 0; p += 2)
+	  {
+	    for (int i = 0; i < count && chosen < 0; i++)
+	      {
+		position.push (list[i]);
+		mid (p - 1, 0, INFINITE, INFINITE);
+		position.pop ();
+		if (result (phi, delta) == PROVEN)
+		  {
+		    chosen = i;
+		    chosenPlies = p - 1;
+		  }
+	      }
+	  }
+      }
+    else
+      {
+	for (int i = 0; i < count; i++)
+	  {
+	    position.push (list[i]);
+	    int quickest = plies - 1;
+	    for (int p = 1; p < plies - 1; p += 2)
+	      {
+		mid (p, 0, INFINITE, INFINITE);
+		if (result (delta, phi) == PROVEN)
+		  {
+		    quickest = p;
+		    break;
+		  }
+	      }
+	    position.pop ();
+	    if (quickest > chosenPlies)
+	      {
+		chosen = i;
+		chosenPlies = quickest;
+	      }
+	  }
+      }
+    if (chosen < 0 || stopped)
+      {
+	return;
+      }
+    line.add (list[chosen]);
+    position.push (list[chosen]);
+    principalVariation (chosenPlies, line);
+    position.pop ();
+  }
+}
+
+class EpdPosition
+{
+  private final String fen;
+  private final String id;
+  private final List < String > bestMoves;
+  private final List < String > avoidMoves;
+
+  public EpdPosition (String fen, String id, List < String > bestMoves,
+		      List < String > avoidMoves)
+  {
+    this.fen = fen;
+    this.id = id;
+    this.bestMoves = bestMoves;
+    this.avoidMoves = avoidMoves;
+  }
+
+  // four FEN fields followed by ';' terminated operations
+  public static EpdPosition parse (String line)
+  {
+    String[] fields = line.trim ().split ("\\s+", 5);
+    if (fields.length < 4)
+      {
+	throw new ChessException ("invalid EPD: " + line);
+      }
+    String fen = fields[0] + " " + fields[1] + " " + fields[2] + " " + fields[3];
+    String id = null;
+    List < String > bestMoves = new ArrayList <> ();
+    List < String > avoidMoves = new ArrayList <> ();
+    if (fields.length == 5)
+      {
+      for (String operation:fields[4].split (";"))
+	  {
+	    String[] parts = operation.trim ().split ("\\s+", 2);
+	    String operands = (parts.length == 2) ? parts[1].trim () : "";
+	    if (parts[0].equals ("id"))
+	      {
+		id = operands.replace ("\"", "");
+	      }
+	    else if (parts[0].equals ("bm"))
+	      {
+		bestMoves.addAll (Arrays.asList (operands.split ("\\s+")));
+	      }
+	    else if (parts[0].equals ("am"))
+	      {
+		avoidMoves.addAll (Arrays.asList (operands.split ("\\s+")));
+	      }
+	  }
+      }
+    return new EpdPosition (fen, id, bestMoves, avoidMoves);
+  }
+
+  public static List < EpdPosition > load (Path file) throws IOException
+  {
+    List < EpdPosition > suite = new ArrayList <> ();
+  for (String line:Files.readAllLines (file, StandardCharsets.UTF_8))
+      {
+	if (!line.isBlank () && !line.startsWith ("#"))
+	  {
+	    suite.add (parse (line));
+	  }
+      }
+    return suite;
+  }
+
+  public String getFen ()
+  {
+    return fen;
+  }
+
+  public String getId ()
+  {
+    return id;
+  }
+
+  public List < String > getBestMoves ()
+  {
+    return bestMoves;
+  }
+
+  public List < String > getAvoidMoves ()
+  {
+    return avoidMoves;
+  }
+}
+
+class EpdResult
+{
+  private final EpdPosition position;
+  private final SearchResult result;
+  private final boolean solved;
+  private final long timeToSolution;
+  private final long nodesToSolution;
+
+  public EpdResult (EpdPosition position, SearchResult result, boolean solved,
+		    long timeToSolution, long nodesToSolution)
+  {
+    this.position = position;
+    this.result = result;
+    this.solved = solved;
+    this.timeToSolution = timeToSolution;
+    this.nodesToSolution = nodesToSolution;
+  }
+
+  public EpdPosition getPosition ()
+  {
+    return position;
+  }
+
+  public SearchResult getResult ()
+  {
+    return result;
+  }
+
+  public boolean isSolved ()
+  {
+    return solved;
+  }
+
+  // milliseconds until the final iteration streak found the move, or -1
+  public long getTimeToSolution ()
+  {
+    return timeToSolution;
+  }
+
+  public long getNodesToSolution ()
+  {
+    return nodesToSolution;
+  }
+
+  @Override public String toString ()
+  {
+    return String.format ("%-12s %-8s %-6s time %6d ms nodes %10d  (%s)",
+			  position.getId (), solved ? "solved" : "FAILED",
+			  Move.toUci (result.getBestMove ()),
+			  solved ? timeToSolution : result.getTimeMillis (),
+			  solved ? nodesToSolution : result.getNodes (),
+			  result.scoreString ());
+  }
+}
+
+class EpdRunner
+{
+  private final int workers;
+  private final int hashMegabytes;
+  private final SearchLimits limits;
+
+  public EpdRunner (int workers, int hashMegabytes, SearchLimits limits)
+  {
+    this.workers = workers;
+    this.hashMegabytes = hashMegabytes;
+    this.limits = limits;
+  }
+
+  // solves the suite on the worker pool; results are in suite order
+  public List < EpdResult > run (List < EpdPosition > suite)
+    throws InterruptedException
+  {
+    ExecutorService pool = Executors.newFixedThreadPool (workers);
+    ThreadLocal < Search > searches =
+      ThreadLocal.withInitial (() -> new Search (hashMegabytes));
+    try
+    {
+      List < Future < EpdResult >> futures = new ArrayList <> ();
+    for (EpdPosition position:suite)
+	{
+	  futures.add (pool.submit (() -> solve (searches.get (), position)));
+	}
+      List < EpdResult > results = new ArrayList <> ();
+    for (Future < EpdResult > future:futures)
+	{
+	  results.add (future.get ());
+	}
+      return results;
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException ("EPD run failed", e.getCause ());
+    }
+    finally
+    {
+      pool.shutdownNow ();
+    }
+  }
+
+  private EpdResult solve (Search search, EpdPosition epd)
+  {
+    ChessMatch chessMatch = new ChessMatch (epd.getFen ());
+    Set < Integer > best = new HashSet <> ();
+    Set < Integer > avoid = new HashSet <> ();
+  for (String san:epd.getBestMoves ())
+      {
+	best.add (San.parse (chessMatch, san));
+      }
+  for (String san:epd.getAvoidMoves ())
+      {
+	avoid.add (San.parse (chessMatch, san));
+      }
+    long[] solvedAt = { -1, -1 };
+    search.getTable ().clear ();
+    search.setListener (result ->
+			{
+			  if (!isCorrect (result.getBestMove (), best, avoid))
+			    {
+			      solvedAt[0] = -1;
+			    }
+			  else if (solvedAt[0] < 0)
+			    {
+			      solvedAt[0] = result.getTimeMillis ();
+			      solvedAt[1] = result.getNodes ();
+			    }
+			});
+    SearchResult result = search.search (chessMatch, limits);
+    boolean solved = isCorrect (result.getBestMove (), best, avoid);
+    return new EpdResult (epd, result, solved, solvedAt[0], solvedAt[1]);
+  }
+
+  private static boolean isCorrect (int move, Set < Integer > best,
+				    Set < Integer > avoid)
+  {
+    return (best.isEmpty () || best.contains (move)) && !avoid.contains (move);
+  }
+}
+
+// analyses a stream of FEN or EPD lines with a fixed search budget and
+// writes one EPD line per input line, in input order. Up to window results
+// are in flight at once, so memory stays bounded however long the input is
+class BatchAnalyzer
+{
+  private static final int CHECKPOINT_INTERVAL = 256;
+
+  private final int workers;
+  private final int hashMegabytes;
+  private final SearchLimits limits;
+  private final int window;
+  private AnalysisCache cache;
+
+  public BatchAnalyzer (int workers, int hashMegabytes, SearchLimits limits)
+  {
+    this.workers = workers;
+    this.hashMegabytes = hashMegabytes;
+    this.limits = limits;
+    window = workers * 8;
+  }
+
+  // positions already searched deep enough are answered from the cache
+  public void setCache (AnalysisCache cache)
+  {
+    this.cache = cache;
+  }
+
+  // skips the first skip lines of input. committed is called with the
+  // number of input lines whose results have been flushed to out; returns
+  // the number of input lines done including the skipped ones
+  public long run (BufferedReader input, long skip, OutputStream out,
+		   LongConsumer committed)
+    throws IOException, InterruptedException
+  {
+    ExecutorService pool = Executors.newFixedThreadPool (workers);
+    ThreadLocal < Search > searches =
+      ThreadLocal.withInitial (() -> new Search (hashMegabytes));
+    Writer writer = new BufferedWriter (new OutputStreamWriter (out,
+								StandardCharsets.
+								UTF_8));
+    ArrayDeque < Future < String >> pending = new ArrayDeque <> ();
+    long read = 0;
+    long written = skip;
+    try
+    {
+      String line;
+      while ((line = input.readLine ()) != null)
+	{
+	  if (read++ < skip)
+	    {
+	      continue;
+	    }
+	  String text = line;
+	  long number = read;
+	  pending.add (text.isBlank () || text.startsWith ("#")
+		       ? CompletableFuture.completedFuture (text)
+		       : pool.submit (() ->
+				      analyse (searches.get (), text, number)));
+	  if (pending.size () >= window)
+	    {
+	      written = drain (pending, 1, writer, written, committed);
+	    }
+	}
+      return drain (pending, pending.size (), writer, written, committed);
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException ("batch analysis failed", e.getCause ());
+    }
+    finally
+    {
+      pool.shutdownNow ();
+    }
+  }
+
+  private long drain (ArrayDeque < Future < String >> pending, int count,
+		      Writer writer, long written, LongConsumer committed)
+    throws IOException, InterruptedException, ExecutionException
+  {
+    for (int i = 0; i < count; i++)
+      {
+	writer.write (pending.poll ().get ());
+	writer.write ('\n');
+	written++;
+	if (written % CHECKPOINT_INTERVAL == 0 || pending.isEmpty ())
+	  {
+	    writer.flush ();
+	    committed.accept (written);
+	  }
+      }
+    return written;
+  }
+
+  private String analyse (Search search, String line, long number)
+  {
+    String fen;
+    String id = null;
+    String start = line.trim ();
+    try
+    {
+      String[] fields = line.trim ().split ("\\s+");
+      if (fields.length == 6 && fields[4].matches ("\\d+")
+	  && fields[5].matches ("\\d+"))
+	{
+	  fen = fields[0] + " " + fields[1] + " " + fields[2] + " " + fields[3];
+	}
+      else
+	{
+	  EpdPosition epd = EpdPosition.parse (line);
+	  fen = epd.getFen ();
+	  id = epd.getId ();
+	  start = fen;
+	}
+      ChessMatch chessMatch = new ChessMatch (start);
+      long key = chessMatch.positionKey ();
+      // the fifty-move rule can only reach into a search from a clock
+      // within MAX_PLY plies of it, so lower clocks share one entry
+      int clock = chessMatch.getHalfmoveClock ();
+      if (clock >= 100 - Search.MAX_PLY)
+	{
+	  key ^= clock * 0xD6E8FEB86659FD93L;
+	}
+      int depth = limits.getDepth ();
+      if (limits.getNodes () != Long.MAX_VALUE
+	  || limits.getTimeMillis () != Long.MAX_VALUE)
+	{
+	  // how deep a node or time budget gets is not known in advance, so
+	  // its results are stored under the budget and only shared with
+	  // runs given the same one
+	  key ^= (limits.getNodes () * 0x9E3779B97F4A7C15L)
+	    ^ (limits.getTimeMillis () * 0xBF58476D1CE4E5B9L);
+	  depth = 0;
+	}
+      SearchResult result = (cache == null) ? null : cache.get (key, depth);
+      if (result == null)
+	{
+	  search.getTable ().clear ();
+	  result = search.search (chessMatch, limits);
+	  if (cache != null)
+	    {
+	      cache.put (key, result);
+	    }
+	}
+      return format (fen, id, result);
+    }
+    catch (BoardException | IllegalArgumentException
+	   | IndexOutOfBoundsException e)
+    {
+      return "# line " + number + ": " + e.getMessage ();
+    }
+  }
+
+  // EPD analysis opcodes: best move, centipawn evaluation, depth, nodes
+  // and principal variation; mates are scored as the search scores them
+  static String format (String fen, String id, SearchResult result)
+  {
+    StringBuilder sb = new StringBuilder (fen);
+    if (result.getPv ().length > 0)
+      {
+	sb.append (" bm ").append (Move.toUci (result.getBestMove ())).
+	  append (';');
+      }
+    sb.append (" ce ").append (result.getScore ()).append (';');
+    if (result.isMate () && result.getScore () > 0)
+      {
+	sb.append (" dm ").append (result.scoreString ().substring (5)).
+	  append (';');
+      }
+    sb.append (" acd ").append (result.getDepth ()).append (';');
+    sb.append (" acn ").append (result.getNodes ()).append (';');
+    if (result.getPv ().length > 0)
+      {
+	sb.append (" pv ").append (result.pvString ()).append (';');
+      }
+    if (id != null)
+      {
+	sb.append (" id \"").append (id).append ("\";");
+      }
+    return sb.toString ();
+  }
+}
+
+// the resume point of a batch analysis: input lines done and the length
+// of the output holding their results. Replaced atomically so a crash
+// leaves either the old or the new checkpoint behind
+class AnalysisCheckpoint
+{
+  private final Path file;
+  private long lines;
+  private long bytes;
+
+  public AnalysisCheckpoint (Path file) throws IOException
+  {
+    this.file = file;
+    if (Files.exists (file))
+      {
+	String text = Files.readString (file, StandardCharsets.UTF_8);
+	String[] fields = text.trim ().split ("\\s+");
+	if (fields.length != 2)
+	  {
+	    throw new IOException ("corrupt checkpoint " + file);
+	  }
+	lines = Long.parseLong (fields[0]);
+	bytes = Long.parseLong (fields[1]);
+      }
+  }
+
+  public long getLines ()
+  {
+    return lines;
+  }
+
+  public long getBytes ()
+  {
+    return bytes;
+  }
+
+  public void save (long lines, long bytes) throws IOException
+  {
+    Path temporary = file.resolveSibling (file.getFileName () + ".tmp");
+    Files.writeString (temporary, lines + " " + bytes + "\n",
+		       StandardCharsets.UTF_8);
+    Files.move (temporary, file, StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+    this.lines = lines;
+    this.bytes = bytes;
+  }
+}
+
+// search results kept in a memory-mapped file across runs, so opening it
+// costs nothing however large it is. Keys hash to 8-way buckets; a position
+// holds one entry that only a search at least as deep replaces, and a full
+// bucket gives up its shallowest entry. Each entry layout (64 bytes):
+//   0 key xor-ed with the other words, so torn entries read as misses
+//   8 nodes, 16 depth, 18 score, 20 best move, 22 pv length, 23 used flag
+//   24 up to MAX_PV moves of the principal variation
+class AnalysisCache implements Closeable
+{
+  private static final long MAGIC = 0x4348455353434331L;
+  private static final int HEADER_SIZE = 64;
+  private static final int ENTRY_SIZE = 64;
+  private static final int WAYS = 8;
+  private static final int MAX_PV = (ENTRY_SIZE - 24) / 2;
+  private static final int CHUNK_BITS = 30;
+  private static final LongAdder HITS =
+    Metrics.ENGINE.counter ("analysisCacheHits");
+  private static final LongAdder MISSES =
+    Metrics.ENGINE.counter ("analysisCacheMisses");
+
+  private final FileChannel channel;
+  private final MappedByteBuffer[] chunks;
+  private final long buckets;
+  private final Object[] locks = new Object[256];
+
+  // an existing cache keeps the size it was created with
+  public AnalysisCache (Path file, int megabytes) throws IOException
+  {
+    channel = FileChannel.open (file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+    long entries;
+    ByteBuffer header = ByteBuffer.allocate (HEADER_SIZE);
+    if (channel.size () > 0)
+      {
+	channel.read (header, 0);
+	entries = header.getLong (8);
+	if (header.getLong (0) != MAGIC
+	    || channel.size () < HEADER_SIZE + entries * ENTRY_SIZE)
+	  {
+	    channel.close ();
+	    throw new IOException (file + " is not an analysis cache");
+	  }
+      }
+    else
+      {
+	entries = WAYS;
+	while (entries * 2 * ENTRY_SIZE <= (long) megabytes << 20)
+	  {
+	    entries <<= 1;
+	  }
+	header.putLong (0, MAGIC);
+	header.putLong (8, entries);
+	channel.write (header, 0);
+      }
+    buckets = entries / WAYS;
+    long size = HEADER_SIZE + entries * ENTRY_SIZE;
+    chunks = new MappedByteBuffer[(int) ((size - 1 >>> CHUNK_BITS) + 1)];
+    for (int i = 0; i < chunks.length; i++)
+      {
+	long start = (long) i << CHUNK_BITS;
+	chunks[i] = channel.map (FileChannel.MapMode.READ_WRITE, start,
+				 Math.min (1L << CHUNK_BITS, size - start));
+      }
+    for (int i = 0; i < locks.length; i++)
+      {
+	locks[i] = new Object ();
+      }
+  }
+
+  public long capacity ()
+  {
+    return buckets * WAYS;
+  }
+
+  // a result for the position searched to at least depth, or null
+  public SearchResult get (long key, int depth)
+  {
+    long bucket = key & (buckets - 1);
+    synchronized (locks[(int) bucket & (locks.length - 1)])
+    {
+      for (int way = 0; way < WAYS; way++)
+	{
+	  long offset = HEADER_SIZE + (bucket * WAYS + way) * ENTRY_SIZE;
+	  ByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+	  int base = (int) (offset & ((1L << CHUNK_BITS) - 1));
+	  if (holds (chunk, base, key) && chunk.getShort (base + 16) >= depth)
+	    {
+	      HITS.increment ();
+	      return read (chunk, base);
+	    }
+	}
+    }
+    MISSES.increment ();
+    return null;
+  }
+
+  public void put (long key, SearchResult result)
+  {
+    long bucket = key & (buckets - 1);
+    synchronized (locks[(int) bucket & (locks.length - 1)])
+    {
+      int target = -1;
+      int targetDepth = Integer.MAX_VALUE;
+      for (int way = 0; way < WAYS; way++)
+	{
+	  long offset = HEADER_SIZE + (bucket * WAYS + way) * ENTRY_SIZE;
+	  ByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+	  int base = (int) (offset & ((1L << CHUNK_BITS) - 1));
+	  if (holds (chunk, base, key))
+	    {
+	      if (chunk.getShort (base + 16) > result.getDepth ())
+		{
+		  return;
+		}
+	      // the position's own entry is replaced whatever the others hold
+	      target = way;
+	      targetDepth = -1;
+	      break;
+	    }
+	  int depth = (chunk.get (base + 23) == 0) ? -1
+	    : chunk.getShort (base + 16);
+	  if (depth < targetDepth)
+	    {
+	      target = way;
+	      targetDepth = depth;
+	    }
+	}
+      if (target >= 0 && targetDepth <= result.getDepth ())
+	{
+	  long offset = HEADER_SIZE + (bucket * WAYS + target) * ENTRY_SIZE;
+	  write (chunks[(int) (offset >>> CHUNK_BITS)],
+		 (int) (offset & ((1L << CHUNK_BITS) - 1)), key, result);
+	}
+    }
+  }
+
+  private static long check (ByteBuffer chunk, int base)
+  {
+    long check = 0;
+    for (int i = 8; i < ENTRY_SIZE; i += 8)
+      {
+	check ^= chunk.getLong (base + i);
+      }
+    return check;
+  }
+
+  private static boolean holds (ByteBuffer chunk, int base, long key)
+  {
+    return chunk.get (base + 23) != 0
+      && (chunk.getLong (base) ^ check (chunk, base)) == key;
+  }
+
+  private static SearchResult read (ByteBuffer chunk, int base)
+  {
+    int[] pv = new int[chunk.get (base + 22)];
+    for (int i = 0; i < pv.length; i++)
+      {
+	pv[i] = chunk.getShort (base + 24 + 2 * i) & 0xFFFF;
+      }
+    return new SearchResult (chunk.getShort (base + 20) & 0xFFFF,
+			     chunk.getShort (base + 18),
+			     chunk.getShort (base + 16),
+			     chunk.getLong (base + 8), 0, pv);
+  }
+
+  private static void write (ByteBuffer chunk, int base, long key,
+			     SearchResult result)
+  {
+    int[] pv = result.getPv ();
+    int length = Math.min (pv.length, MAX_PV);
+    chunk.putLong (base + 8, result.getNodes ());
+    chunk.putShort (base + 16, (short) result.getDepth ());
+    chunk.putShort (base + 18, (short) result.getScore ());
+    chunk.putShort (base + 20, (short) result.getBestMove ());
+    chunk.put (base + 22, (byte) length);
+    chunk.put (base + 23, (byte) 1);
+    for (int i = 0; i < MAX_PV; i++)
+      {
+	chunk.putShort (base + 24 + 2 * i, (short) ((i < length) ? pv[i] : 0));
+      }
+    chunk.putLong (base, key ^ check (chunk, base));
+  }
+
+  public void flush ()
+  {
+  for (MappedByteBuffer chunk:chunks)
+      {
+	chunk.force ();
+      }
+  }
+
+  @Override public void close () throws IOException
+  {
+    flush ();
+    channel.close ();
+  }
+}
+
+// one side of a self-play tournament. A spec is a name followed by
+// comma-separated options, e.g. "new,hash=32,tc=10+0.1" or "old,nodes=20000":
+//   hash=<MB> depth=<plies> nodes=<n> movetime=<ms> tc=<seconds>+<increment>
+class EngineConfig
+{
+  private final String name;
+  private final int hashMegabytes;
+  private final int depth;
+  private final long nodes;
+  private final long moveMillis;
+  // -1 without a clock
+  private final long baseMillis;
+  private final long incrementMillis;
+
+  public EngineConfig (String name, int hashMegabytes, int depth, long nodes,
+		       long moveMillis, long baseMillis, long incrementMillis)
+  {
+    this.name = name;
+    this.hashMegabytes = hashMegabytes;
+    this.depth = depth;
+    this.nodes = nodes;
+    this.moveMillis = moveMillis;
+    this.baseMillis = baseMillis;
+    this.incrementMillis = incrementMillis;
+  }
+
+  public static EngineConfig parse (String spec)
+  {
+    String[] options = spec.split (",");
+    int hash = 16;
+    int depth = Search.MAX_PLY;
+    long nodes = Long.MAX_VALUE;
+    long moveMillis = Long.MAX_VALUE;
+    long base = -1;
+    long increment = 0;
+    for (int i = 1; i < options.length; i++)
+      {
+	String[] option = options[i].split ("=", 2);
+	if (option.length != 2)
+	  {
+	    throw new ChessException ("invalid engine option: " + options[i]);
+	  }
+	switch (option[0])
+	  {
+	  case "hash":
+	    hash = Integer.parseInt (option[1]);
+	    break;
+	  case "depth":
+	    depth = Integer.parseInt (option[1]);
+	    break;
+	  case "nodes":
+	    nodes = Long.parseLong (option[1]);
+	    break;
+	  case "movetime":
+	    moveMillis = Long.parseLong (option[1]);
+	    break;
+	  case "tc":
+	    String[] clock = option[1].split ("\\+", 2);
+	    base = (long) (Double.parseDouble (clock[0]) * 1000);
+	    increment = (clock.length == 2)
+	      ? (long) (Double.parseDouble (clock[1]) * 1000) : 0;
+	    break;
+	  default:
+	    throw new ChessException ("invalid engine option: " + options[i]);
+	  }
+      }
+    if (depth == Search.MAX_PLY && nodes == Long.MAX_VALUE
+	&& moveMillis == Long.MAX_VALUE && base < 0)
+      {
+	throw new ChessException ("engine " + options[0] + " has no limit");
+      }
+    return new EngineConfig (options[0], hash, depth, nodes, moveMillis, base,
+			     increment);
+  }
+
+  public String getName ()
+  {
+    return name;
+  }
+
+  public int getHashMegabytes ()
+  {
+    return hashMegabytes;
+  }
+
+  public boolean hasClock ()
+  {
+    return baseMillis >= 0;
+  }
+
+  public long getBaseMillis ()
+  {
+    return baseMillis;
+  }
+
+  public long getIncrementMillis ()
+  {
+    return incrementMillis;
+  }
+
+  public SearchLimits limits (long remaining)
+  {
+    long time = moveMillis;
+    if (hasClock ())
+      {
+	time = Math.min (time, SearchLimits.budget (remaining, incrementMillis,
+						    30));
+      }
+    return new SearchLimits (depth, nodes, time);
+  }
+
+  // the PGN TimeControl tag
+  public String timeControl ()
+  {
+    return hasClock ()? (baseMillis / 1000.0 + "+" + incrementMillis / 1000.0)
+      : "-";
+  }
+}
+
+// sequential probability ratio test of the Elo difference between two
+// engines, on the normal approximation of the trinomial win/draw/loss model
+class Sprt
+{
+  public static final int CONTINUE = 0;
+  public static final int ACCEPT_H0 = -1;
+  public static final int ACCEPT_H1 = 1;
+
+  private final double elo0;
+  private final double elo1;
+  private final double lower;
+  private final double upper;
+
+  public Sprt (double elo0, double elo1, double alpha, double beta)
+  {
+    this.elo0 = elo0;
+    this.elo1 = elo1;
+    lower = Math.log (beta / (1 - alpha));
+    upper = Math.log ((1 - beta) / alpha);
+  }
+
+  private static double expectedScore (double elo)
+  {
+    return 1 / (1 + Math.pow (10, -elo / 400));
+  }
+
+  public double llr (long wins, long draws, long losses)
+  {
+    if (wins + losses == 0)
+      return 0;
+    // half a game in every bucket keeps the variance away from zero while
+    // one side has not scored yet
+    double w = wins + 0.5;
+    double d = draws + 0.5;
+    double l = losses + 0.5;
+    double games = w + d + l;
+    double score = (w + d / 2) / games;
+    double variance = (w * Math.pow (1 - score, 2)
+		       + d * Math.pow (0.5 - score, 2)
+		       + l * Math.pow (score, 2)) / games;
+    double s0 = expectedScore (elo0);
+    double s1 = expectedScore (elo1);
+    return (s1 - s0) * (2 * score - s0 - s1) / (2 * variance / games);
+  }
+
+  public int decide (long wins, long draws, long losses)
+  {
+    double llr = llr (wins, draws, losses);
+    return (llr >= upper) ? ACCEPT_H1 : (llr <= lower) ? ACCEPT_H0 : CONTINUE;
+  }
+
+  public double getLower ()
+  {
+    return lower;
+  }
+
+  public double getUpper ()
+  {
+    return upper;
+  }
+
+  @Override public String toString ()
+  {
+    return String.format (Locale.ROOT, "[%.1f, %.1f]", elo0, elo1);
+  }
+}
+
+// plays engine A against engine B, one game per worker thread. Each opening
+// is played twice with colours swapped; ChessMatch referees every game and
+// games reaching maxPlies are adjudicated drawn. Results are written as
+// compact game records and the run stops once the SPRT decides
+class Tournament
+{
+  private final EngineConfig a;
+  private final EngineConfig b;
+  private final List < String > openings;
+  private final int threads;
+  private final int maxPlies;
+  private final Sprt sprt;
+  private final CompactGameWriter writer;
+  private final Consumer < String > progress;
+
+  private final AtomicBoolean stopped = new AtomicBoolean ();
+  private long wins;
+  private long draws;
+  private long losses;
+  private int decision = Sprt.CONTINUE;
+
+  public Tournament (EngineConfig a, EngineConfig b, List < String > openings,
+		     int threads, int maxPlies, Sprt sprt,
+		     CompactGameWriter writer, Consumer < String > progress)
+  {
+    this.a = a;
+    this.b = b;
+    this.openings = openings;
+    this.threads = threads;
+    this.maxPlies = maxPlies;
+    this.sprt = sprt;
+    this.writer = writer;
+    this.progress = progress;
+  }
+
+  // openings are FENs or EPD lines, one per line
+  public static List < String > loadOpenings (Path file) throws IOException
+  {
+    List < String > openings = new ArrayList <> ();
+  for (String line:Files.readAllLines (file, StandardCharsets.UTF_8))
+      {
+	if (line.isBlank () || line.startsWith ("#"))
+	  {
+	    continue;
+	  }
+	String[] fields = line.trim ().split ("\\s+");
+	boolean fen = fields.length == 6 && fields[4].matches ("\\d+")
+	  && fields[5].matches ("\\d+");
+	openings.add (fen ? line.trim ()
+		      : EpdPosition.parse (line).getFen () + " 0 1");
+      }
+    return openings;
+  }
+
+  public String run (int games) throws InterruptedException, IOException
+  {
+    ExecutorService pool = Executors.newFixedThreadPool (threads);
+    ThreadLocal < Search[] > searches =
+      ThreadLocal.withInitial (() -> new Search[] {
+			       new Search (a.getHashMegabytes ()),
+			       new Search (b.getHashMegabytes ())});
+    long start = System.nanoTime ();
+    try
+    {
+      List < Future < ? >> futures = new ArrayList <> ();
+      for (int game = 0; game < games; game++)
+	{
+	  int index = game;
+	  futures.add (pool.submit (() ->
+				    {
+				      if (!stopped.get ())
+					{
+					  finish (play (index, searches.get ()),
+						  index % 2 == 0);
+					}
+				      return null;
+				    }));
+	}
+    for (Future < ? > future:futures)
+	{
+	  future.get ();
+	}
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException ("tournament failed", e.getCause ());
+    }
+    finally
+    {
+      pool.shutdownNow ();
+    }
+    writer.flush ();
+    return summary () + String.format (Locale.ROOT, " in %.1f s",
+				       (System.nanoTime () - start) / 1e9);
+  }
+
+  private GameRecord play (int game, Search[]searches)
+  {
+    String fen = openings.get ((game / 2) % openings.size ());
+    boolean aWhite = game % 2 == 0;
+    EngineConfig[] engines = aWhite ? new EngineConfig[] { a, b }
+    : new EngineConfig[] { b, a };
+    Search[] players = aWhite ? searches
+      : new Search[] { searches[1], searches[0] };
+    players[0].getTable ().clear ();
+    players[1].getTable ().clear ();
+    long[] clocks = { engines[0].getBaseMillis (), engines[1].getBaseMillis () };
+
+    ChessMatch chessMatch = new ChessMatch (fen);
+    String result = "1/2-1/2";
+    String termination;
+    while (true)
+      {
+	boolean white = chessMatch.getCurrentPlayer () == Color.WHITE;
+	if (chessMatch.isCheckMate ())
+	  {
+	    result = white ? "1-0" : "0-1";
+	    termination = "checkmate";
+	    break;
+	  }
+	termination = chessMatch.isStalemate ()? "stalemate"
+	  : chessMatch.isFiftyMoveDraw ()? "fifty moves"
+	  : chessMatch.isThreefoldRepetition ()? "repetition"
+	  : chessMatch.isInsufficientMaterial ()? "insufficient material"
+	  : (chessMatch.getPly () >= maxPlies) ? "adjudication" : null;
+	if (termination != null)
+	  {
+	    break;
+	  }
+	int side = white ? 0 : 1;
+	long moveStart = System.nanoTime ();
+	SearchResult best =
+	  players[side].search (chessMatch, engines[side].limits (clocks[side]));
+	if (engines[side].hasClock ())
+	  {
+	    clocks[side] -= (System.nanoTime () - moveStart) / 1000000;
+	    if (clocks[side] < 0)
+	      {
+		result = white ? "0-1" : "1-0";
+		termination = "time forfeit";
+		break;
+	      }
+	    clocks[side] += engines[side].getIncrementMillis ();
+	  }
+	chessMatch.performMove (best.getBestMove ());
+      }
+
+    Map < String, String > tags = new LinkedHashMap <> ();
+    tags.put ("Event", "selfplay");
+    tags.put ("Round", String.valueOf (game + 1));
+    tags.put ("White", engines[0].getName ());
+    tags.put ("Black", engines[1].getName ());
+    tags.put ("Result", result);
+    tags.put ("TimeControl", engines[0].timeControl ());
+    tags.put ("Termination", termination);
+    tags.put ("FEN", fen);
+    int[] moves = new int[chessMatch.getPly ()];
+    for (int ply = 0; ply < moves.length; ply++)
+      {
+	moves[ply] = chessMatch.getMove (ply);
+      }
+    return new GameRecord (tags, result, moves);
+  }
+
+  private synchronized void finish (GameRecord game, boolean aWhite)
+    throws IOException
+  {
+    writer.write (game);
+    String result = game.getResult ();
+    if (result.equals ("1/2-1/2"))
+      {
+	draws++;
+      }
+    else if (result.equals ("1-0") == aWhite)
+      {
+	wins++;
+      }
+    else
+      {
+	losses++;
+      }
+    long played = wins + draws + losses;
+    if (sprt != null && decision == Sprt.CONTINUE)
+      {
+	decision = sprt.decide (wins, draws, losses);
+	if (decision != Sprt.CONTINUE)
+	  {
+	    stopped.set (true);
+	  }
+      }
+    if (played % 10 == 0 || decision != Sprt.CONTINUE)
+      {
+	progress.accept (summary ());
+      }
+  }
+
+  public synchronized String summary ()
+  {
+    long games = wins + draws + losses;
+    double score = (games == 0) ? 0.5 : (wins + draws / 2.0) / games;
+    double elo = (score <= 0 || score >= 1) ? Double.NaN
+      : -400 * Math.log10 (1 / score - 1);
+    String text =
+      String.format (Locale.ROOT,
+		     "%s vs %s: %d games +%d =%d -%d score %.1f%% elo %+.1f",
+		     a.getName (), b.getName (), games, wins, draws, losses,
+		     score * 100, elo);
+    if (sprt != null)
+      {
+	text += String.format (Locale.ROOT, " llr %.2f (%.2f, %.2f) %s%s",
+			       sprt.llr (wins, draws, losses),
+			       sprt.getLower (), sprt.getUpper (),
+			       sprt, (decision == Sprt.ACCEPT_H1) ? " H1 accepted"
+			       : (decision == Sprt.ACCEPT_H0) ? " H0 accepted"
+			       : "");
+      }
+    return text;
+  }
+
+  public synchronized int getDecision ()
+  {
+    return decision;
+  }
+}
+
+class UciEngine
+{
+  static final String START_FEN =
+    "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+  private final Scanner in;
+  private final PrintStream out;
+  private int hashMegabytes = 16;
+  private int threads = 1;
+  private TranspositionTable table = new TranspositionTable (hashMegabytes);
+  private String fen = START_FEN;
+  private List < String > moves = new ArrayList <> ();
+
+  private Thread searchThread;
+  private final List < Search > searches = new ArrayList <> ();
+  private volatile boolean stopRequested;
+
+  public UciEngine (Scanner in, PrintStream out)
+  {
+    this.in = in;
+    this.out = out;
+  }
+
+  // commands are read on this thread while searches run on their own
+  // threads, so stop and isready are answered in the middle of a search
+  public void run ()
+  {
+    while (in.hasNextLine ())
+      {
+	String line = in.nextLine ().trim ();
+	try
+	{
+	  if (!handle (line))
+	    {
+	      break;
+	    }
+	}
+	catch (RuntimeException e)
+	{
+	  // a malformed command must not take the engine down
+	  send ("info string cannot handle \"" + line + "\": " + e);
+	}
+      }
+    stopSearch ();
+  }
+
+  // returns false on quit
+  public boolean handle (String line)
+  {
+    String[] tokens = line.split ("\\s+");
+    switch (tokens[0])
+      {
+      case "uci":
+	send ("id name ChessMatch");
+	send ("id author mjp26");
+	send ("option name Hash type spin default 16 min 1 max 4096");
+	send ("option name Threads type spin default 1 min 1 max 64");
+	send ("uciok");
+	break;
+      case "isready":
+	send ("readyok");
+	break;
+      case "ucinewgame":
+	stopSearch ();
+	table.clear ();
+	break;
+      case "setoption":
+	stopSearch ();
+	setOption (tokens);
+	break;
+      case "position":
+	stopSearch ();
+	position (tokens);
+	break;
+      case "go":
+	stopSearch ();
+	go (tokens);
+	break;
+      case "stop":
+	stopSearch ();
+	break;
+      case "quit":
+	return false;
+      default:
+	break;
+      }
+    return true;
+  }
+
+  private synchronized void send (String message)
+  {
+    out.println (message);
+    out.flush ();
+  }
+
+  // setoption name <id> [value <x>]; names may contain spaces. Options we
+  // do not have and values that do not parse are ignored
+  private void setOption (String[]tokens)
+  {
+    int value = Arrays.asList (tokens).indexOf ("value");
+    if (tokens.length < 3 || !tokens[1].equals ("name") || value < 0
+	|| value + 1 >= tokens.length)
+      {
+	return;
+      }
+    String name = String.join (" ", Arrays.copyOfRange (tokens, 2, value));
+    try
+    {
+      if (name.equalsIgnoreCase ("Hash"))
+	{
+	  hashMegabytes = Math.max (1, Integer.parseInt (tokens[value + 1]));
+	  table = new TranspositionTable (hashMegabytes);
+	}
+      else if (name.equalsIgnoreCase ("Threads"))
+	{
+	  threads = Math.max (1, Integer.parseInt (tokens[value + 1]));
+	}
+    }
+    catch (NumberFormatException e)
+    {
+      send ("info string invalid value for " + name + ": " +
+	    tokens[value + 1]);
+    }
+  }
+
+  private void position (String[]tokens)
+  {
+    int i = 1;
+    if (tokens.length > 1 && tokens[1].equals ("fen"))
+      {
+	StringBuilder sb = new StringBuilder ();
+	for (i = 2; i < tokens.length && !tokens[i].equals ("moves"); i++)
+	  {
+	    sb.append (tokens[i]).append (' ');
+	  }
+	fen = sb.toString ().trim ();
+      }
+    else
+      {
+	fen = START_FEN;
+	i = 2;
+      }
+    moves = new ArrayList <> ();
+    if (i < tokens.length && tokens[i].equals ("moves"))
+      {
+	moves.addAll (Arrays.asList (tokens).subList (i + 1, tokens.length));
+      }
+  }
+
+  private ChessMatch buildPosition ()
+  {
+    ChessMatch chessMatch = new ChessMatch (fen);
+  for (String move:moves)
+      {
+	int parsed = Move.parseUci (move);
+	if (!chessMatch.isLegalMove (parsed))
+	  {
+	    throw new ChessException ("illegal move " + move);
+	  }
+	chessMatch.push (parsed);
+      }
+    return chessMatch;
+  }
+
+  private void go (String[]tokens)
+  {
+    ChessMatch chessMatch;
+    try
+    {
+      chessMatch = buildPosition ();
+    }
+    catch (RuntimeException e)
+    {
+      send ("info string invalid position: " + e.getMessage ());
+      send ("bestmove 0000");
+      return;
+    }
+    int depth = Search.MAX_PLY;
+    long nodes = Long.MAX_VALUE;
+    long time = Long.MAX_VALUE;
+    long remaining = -1;
+    long increment = 0;
+    int movesToGo = 30;
+    boolean infinite = false;
+    boolean white = chessMatch.getCurrentPlayer () == Color.WHITE;
+    for (int i = 1; i < tokens.length; i++)
+      {
+	String value = (i + 1 < tokens.length) ? tokens[i + 1] : "0";
+	switch (tokens[i])
+	  {
+	  case "depth":
+	    depth = Integer.parseInt (value);
+	    break;
+	  case "nodes":
+	    nodes = Long.parseLong (value);
+	    break;
+	  case "movetime":
+	    time = Long.parseLong (value);
+	    break;
+	  case "wtime":
+	    remaining = white ? Long.parseLong (value) : remaining;
+	    break;
+	  case "btime":
+	    remaining = white ? remaining : Long.parseLong (value);
+	    break;
+	  case "winc":
+	    increment = white ? Long.parseLong (value) : increment;
+	    break;
+	  case "binc":
+	    increment = white ? increment : Long.parseLong (value);
+	    break;
+	  case "movestogo":
+	    movesToGo = Math.max (1, Integer.parseInt (value));
+	    break;
+	  case "infinite":
+	    infinite = true;
+	    break;
+	  default:
+	    break;
+	  }
+      }
+    if (remaining >= 0)
+      {
+	time = SearchLimits.budget (remaining, increment, movesToGo);
+      }
+    SearchLimits limits = new SearchLimits (depth, nodes, time);
+
+    stopRequested = false;
+    searches.clear ();
+    for (int i = 0; i < threads; i++)
+      {
+	searches.add (new Search (table));
+      }
+    boolean waitForStop = infinite;
+    searchThread = new Thread (() -> search (chessMatch, limits, waitForStop),
+			       "uci-search");
+    searchThread.start ();
+  }
+
+  private void search (ChessMatch chessMatch, SearchLimits limits,
+		       boolean waitForStop)
+  {
+    // lazy SMP: helpers search copies of the position through the shared
+    // hash table and only the main search reports
+    List < Thread > helpers = new ArrayList <> ();
+    for (int i = 1; i < searches.size (); i++)
+      {
+	Search helper = searches.get (i);
+	ChessMatch copy = buildPosition ();
+	Thread thread = new Thread (() -> helper.search (copy, limits),
+				    "uci-helper-" + i);
+	thread.start ();
+	helpers.add (thread);
+      }
+    Search main = searches.get (0);
+    long start = System.nanoTime ();
+    main.setListener (result ->
+		      send ("info depth " + result.getDepth () + " score " +
+			    result.scoreString () + " nodes " +
+			    result.getNodes () + " nps " +
+			    result.getNodes () * 1000000000L /
+			    Math.max (1, System.nanoTime () - start) +
+			    " time " + result.getTimeMillis () + " pv " +
+			    result.pvString ()));
+    SearchResult result = main.search (chessMatch, limits);
+  for (Search helper:searches)
+      {
+	helper.stop ();
+      }
+    try
+    {
+    for (Thread thread:helpers)
+	{
+	  thread.join ();
+	}
+      synchronized (this)
+      {
+	while (waitForStop && !stopRequested)
+	  {
+	    wait ();
+	  }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    int[] pv = result.getPv ();
+    send ("bestmove " + ((result.getBestMove () == 0) ? "0000"
+			 : Move.toUci (result.getBestMove ())) +
+	  ((pv.length > 1) ? " ponder " + Move.toUci (pv[1]) : ""));
+  }
+
+  private void stopSearch ()
+  {
+    if (searchThread == null)
+      {
+	return;
+      }
+    synchronized (this)
+    {
+      stopRequested = true;
+      notifyAll ();
+    }
+  for (Search search:searches)
+      {
+	search.stop ();
+      }
+    try
+    {
+      searchThread.join ();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    searchThread = null;
+  }
+}
+
+// fixed-size slots in a memory-mapped scratch file; freed slots are reused
+class MatchSlab implements Closeable
+{
+  private static final int CHUNK_SIZE = 1 << 26;
+
+  private final FileChannel channel;
+  private final int slotSize;
+  private final List < MappedByteBuffer > chunks = new ArrayList <> ();
+  private int[] free = new int[64];
+  private int freeCount;
+  private int slots;
+
+  public MatchSlab (Path file, int slotSize) throws IOException
+  {
+    if (Integer.bitCount (slotSize) != 1 || slotSize > CHUNK_SIZE)
+      {
+	throw new IllegalArgumentException ("slot size " + slotSize);
+      }
+    this.slotSize = slotSize;
+    channel = FileChannel.open (file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+  }
+
+  public boolean fits (CompactMatch chessMatch)
+  {
+    return chessMatch.encodedSize () <= slotSize;
+  }
+
+  public synchronized int write (CompactMatch chessMatch) throws IOException
+  {
+    int slot = (freeCount > 0) ? free[--freeCount] : slots++;
+    long offset = (long) slot * slotSize;
+    while (offset >= (long) chunks.size () * CHUNK_SIZE)
+      {
+	chunks.add (channel.map (FileChannel.MapMode.READ_WRITE,
+				 (long) chunks.size () * CHUNK_SIZE,
+				 CHUNK_SIZE));
+      }
+    chessMatch.writeTo (slice (offset));
+    return slot;
+  }
+
+  public synchronized CompactMatch read (int slot)
+  {
+    return CompactMatch.readFrom (slice ((long) slot * slotSize));
+  }
+
+  public synchronized void free (int slot)
+  {
+    if (freeCount == free.length)
+      {
+	free = Arrays.copyOf (free, freeCount * 2);
+      }
+    free[freeCount++] = slot;
+  }
+
+  public synchronized int used ()
+  {
+    return slots - freeCount;
+  }
+
+  private ByteBuffer slice (long offset)
+  {
+    ByteBuffer chunk = chunks.get ((int) (offset / CHUNK_SIZE)).duplicate ();
+    chunk.position ((int) (offset % CHUNK_SIZE));
+    return chunk;
+  }
+
+  @Override public void close () throws IOException
+  {
+    channel.close ();
+  }
+}
+
+// moves idle matches out of the heap into a slab and back on their next
+// command; matches too long for a slot simply stay resident
+class MatchHibernator implements Closeable
+{
+  private final MatchSlab slab;
+  private final long idleMillis;
+  private final int maxResident;
+  private final AtomicInteger hibernated = new AtomicInteger ();
+  private final LongAdder hits = new LongAdder ();
+  private final LongAdder misses = new LongAdder ();
+  private final LongAdder evictions = new LongAdder ();
+  private final LatencyHistogram rehydrate = new LatencyHistogram ();
+
+  public MatchHibernator (MatchSlab slab, long idleMillis, int maxResident)
+  {
+    this.slab = slab;
+    this.idleMillis = idleMillis;
+    this.maxResident = maxResident;
+  }
+
+  public long getIdleMillis ()
+  {
+    return idleMillis;
+  }
+
+  public int getMaxResident ()
+  {
+    return maxResident;
+  }
+
+  public int getHibernated ()
+  {
+    return hibernated.get ();
+  }
+
+  // the slot the match went to, or -1 when it has to stay resident
+  int hibernate (CompactMatch chessMatch)
+  {
+    if (!slab.fits (chessMatch))
+      {
+	return -1;
+      }
+    try
+    {
+      int slot = slab.write (chessMatch);
+      hibernated.incrementAndGet ();
+      evictions.increment ();
+      return slot;
+    }
+    catch (IOException e)
+    {
+      return -1;
+    }
+  }
+
+  CompactMatch rehydrate (int slot)
+  {
+    long start = System.nanoTime ();
+    CompactMatch chessMatch = slab.read (slot);
+    discard (slot);
+    misses.increment ();
+    rehydrate.record ((System.nanoTime () - start) / 1000);
+    return chessMatch;
+  }
+
+  void discard (int slot)
+  {
+    slab.free (slot);
+    hibernated.decrementAndGet ();
+  }
+
+  void hit ()
+  {
+    hits.increment ();
+  }
+
+  public String toJson ()
+  {
+    return String.format (Locale.ROOT,
+			  "{\"hibernated\":%d,\"hits\":%d,\"misses\":%d," +
+			  "\"evictions\":%d,\"slabSlots\":%d," +
+			  "\"rehydrateP50Micros\":%d,\"rehydrateP99Micros\":%d," +
+			  "\"rehydrateP999Micros\":%d}", hibernated.get (),
+			  hits.sum (), misses.sum (), evictions.sum (),
+			  slab.used (), rehydrate.percentile (0.5),
+			  rehydrate.percentile (0.99),
+			  rehydrate.percentile (0.999));
+  }
+
+  @Override public void close () throws IOException
+  {
+    slab.close ();
+  }
+}
+
+// append-only journal of fixed 64-byte records, big-endian:
+//   0 match id, 8 ply, 12 kind, 14 move, 16 position (CREATE only), 60 CRC-32
+// appends are batched and made durable by one write + force per interval
+class MoveJournal implements Closeable
+{
+  public static final int RECORD_SIZE = 64;
+  public static final int CREATE = 1;
+  public static final int MOVE = 2;
+  public static final int PROMOTE = 3;
+  public static final int CLOSE = 4;
+  public static final int TAKEBACK = 5;
+
+  private final FileChannel channel;
+  private final ScheduledExecutorService flusher;
+  private final CRC32 crc = new CRC32 ();
+  private final LongAdder records = new LongAdder ();
+  private final LongAdder batches = new LongAdder ();
+  private final LatencyHistogram batchSizes = new LatencyHistogram ();
+  private ByteBuffer batch = ByteBuffer.allocateDirect (RECORD_SIZE * 1024);
+  private ByteBuffer spare = ByteBuffer.allocateDirect (RECORD_SIZE * 1024);
+  private CompletableFuture < Void > batchDone = new CompletableFuture <> ();
+
+  // appends after the first validLength bytes, dropping a torn tail
+  public MoveJournal (Path file, long validLength, long intervalMillis)
+    throws IOException
+  {
+    channel = FileChannel.open (file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+    channel.truncate (validLength);
+    channel.position (validLength);
+    flusher = Executors.newSingleThreadScheduledExecutor (r ->
+							  {
+							    Thread t =
+							      new Thread (r,
+									  "journal");
+							    t.setDaemon (true);
+							    return t;
+							  });
+    flusher.scheduleWithFixedDelay (this::flush, intervalMillis,
+				    intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public CompletableFuture < Void > create (long id, ChessMatch chessMatch)
+  {
+    return append (id, 0, CREATE, 0, new CompactMatch (chessMatch));
+  }
+
+  public CompletableFuture < Void > end (long id)
+  {
+    return append (id, 0, CLOSE, 0, null);
+  }
+
+  // journals what a command changed in the moves played: a promotion
+  // rewritten on the last move or a takeback, then the new moves; null when
+  // nothing changed
+  public CompletableFuture < Void > record (long id, short[]before,
+					    short[]after)
+  {
+    int common = 0;
+    while (common < before.length && common < after.length
+	   && before[common] == after[common])
+      {
+	common++;
+      }
+    CompletableFuture < Void > done = null;
+    int next = common;
+    if (common == before.length - 1 && common < after.length
+	&& (before[common] & 0xFFF) == (after[common] & 0xFFF))
+      {
+	done = append (id, common, PROMOTE, after[common], null);
+	next++;
+      }
+    else if (common < before.length)
+      {
+	done = append (id, common, TAKEBACK, 0, null);
+      }
+    for (int i = next; i < after.length; i++)
+      {
+	done = append (id, i, MOVE, after[i], null);
+      }
+    return done;
+  }
+
+  private synchronized CompletableFuture < Void > append (long id, int ply,
+							  int kind, int move,
+							  CompactMatch position)
+  {
+    if (batch.remaining () < RECORD_SIZE)
+      {
+	ByteBuffer bigger = ByteBuffer.allocateDirect (batch.capacity () * 2);
+	batch.flip ();
+	batch = bigger.put (batch);
+      }
+    int start = batch.position ();
+    batch.putLong (id).putInt (ply).putShort ((short) kind).
+      putShort ((short) move);
+    if (position != null)
+      {
+	position.writePosition (batch);
+      }
+    while (batch.position () < start + 60)
+      {
+	batch.putInt (0);
+      }
+    crc.reset ();
+    crc.update (batch.duplicate ().position (start).limit (start + 60));
+    batch.putInt ((int) crc.getValue ());
+    records.increment ();
+    return batchDone;
+  }
+
+  // only ever runs on the flusher thread, or after it has stopped
+  private void flush ()
+  {
+    ByteBuffer full;
+    CompletableFuture < Void > done;
+    synchronized (this)
+    {
+      if (batch.position () == 0)
+	{
+	  return;
+	}
+      full = batch;
+      batch = spare;
+      batch.clear ();
+      spare = full;
+      done = batchDone;
+      batchDone = new CompletableFuture <> ();
+    }
+    try
+    {
+      full.flip ();
+      batchSizes.record (full.remaining () / RECORD_SIZE);
+      while (full.hasRemaining ())
+	{
+	  channel.write (full);
+	}
+      channel.force (false);
+      batches.increment ();
+      done.complete (null);
+    }
+    catch (IOException e)
+    {
+      done.completeExceptionally (e);
+    }
+  }
+
+  public String toJson ()
+  {
+    return String.format (Locale.ROOT,
+			  "{\"records\":%d,\"commits\":%d," +
+			  "\"batchP50\":%d,\"batchP99\":%d}", records.sum (),
+			  batches.sum (), batchSizes.percentile (0.5),
+			  batchSizes.percentile (0.99));
+  }
+
+  @Override public void close () throws IOException
+  {
+    flusher.shutdown ();
+    try
+    {
+      flusher.awaitTermination (1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    flush ();
+    channel.close ();
+  }
+
+  // checks the records in order up to the first torn or corrupt one, then
+  // replays them with the matches split across threads by id
+  public static JournalRecovery recover (Path file, int threads)
+    throws IOException, InterruptedException
+  {
+    MappedRegion region = MappedRegion.map (file);
+    byte[] record = new byte[RECORD_SIZE];
+    CRC32 crc = new CRC32 ();
+    long length = 0;
+    while (length + RECORD_SIZE <= region.size ())
+      {
+	region.get (length, record);
+	crc.reset ();
+	crc.update (record, 0, 60);
+	if ((int) crc.getValue () != ByteBuffer.wrap (record).getInt (60))
+	  {
+	    break;
+	  }
+	length += RECORD_SIZE;
+      }
+    long validLength = length;
+    LongAdder failed = new LongAdder ();
+    ExecutorService pool = Executors.newFixedThreadPool (threads);
+    List < Future < Map < Long, ChessMatch >>> parts = new ArrayList <> ();
+    for (int i = 0; i < threads; i++)
+      {
+	int part = i;
+	parts.add (pool.submit (() -> replay (region, validLength, part,
+					      threads, failed)));
+      }
+    pool.shutdown ();
+    SortedMap < Long, ChessMatch > matches = new TreeMap <> ();
+    try
+    {
+    for (Future < Map < Long, ChessMatch >> part:parts)
+	{
+	  matches.putAll (part.get ());
+	}
+    }
+    catch (ExecutionException e)
+    {
+      throw new IOException ("journal replay failed", e.getCause ());
+    }
+    return new JournalRecovery (matches, validLength,
+				validLength / RECORD_SIZE, failed.sum ());
+  }
+
+  private static Map < Long, ChessMatch > replay (MappedRegion region,
+						  long length, int part,
+						  int parts, LongAdder failed)
+  {
+    Map < Long, ChessMatch > matches = new HashMap <> ();
+    byte[] bytes = new byte[RECORD_SIZE];
+    ByteBuffer record = ByteBuffer.wrap (bytes);
+    for (long position = 0; position < length; position += RECORD_SIZE)
+      {
+	long id = region.getLong (position);
+	if (Math.floorMod (id, parts) != part)
+	  {
+	    continue;
+	  }
+	region.get (position, bytes);
+	int ply = record.getInt (8);
+	int kind = record.getShort (12);
+	int move = record.getShort (14) & 0xFFFF;
+	if (kind == CREATE)
+	  {
+	    record.position (16);
+	    matches.put (id, CompactMatch.readPosition (record).inflate ());
+	    continue;
+	  }
+	ChessMatch chessMatch = (kind == CLOSE) ? matches.remove (id)
+	  : matches.get (id);
+	if (chessMatch == null || kind == CLOSE)
+	  {
+	    continue;
+	  }
+	try
+	{
+	  if (kind == MOVE && chessMatch.getPly () == ply)
+	    {
+	      chessMatch.performMove (move);
+	    }
+	  else if (kind == PROMOTE && chessMatch.getPly () == ply + 1)
+	    {
+	      chessMatch.replacepromotedPiece (Move.promotionType (move));
+	    }
+	  else if (kind == TAKEBACK && chessMatch.getPly () > ply)
+	    {
+	      chessMatch.replayTo (ply);
+	    }
+	  else
+	    {
+	      throw new ChessException ("out of sequence at ply " + ply);
+	    }
+	}
+	catch (RuntimeException e)
+	{
+	  matches.remove (id);
+	  failed.increment ();
+	}
+      }
+    return matches;
+  }
+}
+
+class JournalRecovery
+{
+  private final SortedMap < Long, ChessMatch > matches;
+  private final long validLength;
+  private final long records;
+  private final long failed;
+
+  public JournalRecovery (SortedMap < Long, ChessMatch > matches,
+			  long validLength, long records, long failed)
+  {
+    this.matches = matches;
+    this.validLength = validLength;
+    this.records = records;
+    this.failed = failed;
+  }
+
+  public SortedMap < Long, ChessMatch > getMatches ()
+  {
+    return matches;
+  }
+
+  public long getValidLength ()
+  {
+    return validLength;
+  }
+
+  public long getRecords ()
+  {
+    return records;
+  }
+
+  public long getFailed ()
+  {
+    return failed;
+  }
+}
+
+// one state of a watched match, encoded once as the line
+//   FRAME <sequence> <ply> <last move or -> <status> <fen>
+// and shared read-only by every spectator
+class SpectatorFrame
+{
+  private final long sequence;
+  private final int ply;
+  private final byte[] bytes;
+
+  SpectatorFrame (long sequence, CompactMatch chessMatch)
+  {
+    this.sequence = sequence;
+    this.ply = chessMatch.getPly ();
+    String move = (ply > 0) ? Move.toUci (chessMatch.getMove (ply - 1)) : "-";
+    bytes = ("FRAME " + sequence + " " + ply + " " + move + " "
+	     + GameServer.status (chessMatch) + " " + chessMatch.toFen ()
+	     + "\n").getBytes (StandardCharsets.UTF_8);
+  }
+
+  public long getSequence ()
+  {
+    return sequence;
+  }
+
+  public int getPly ()
+  {
+    return ply;
+  }
+
+  public int size ()
+  {
+    return bytes.length;
+  }
+
+  public ByteBuffer buffer ()
+  {
+    return ByteBuffer.wrap (bytes).asReadOnlyBuffer ();
+  }
+
+  public void writeTo (OutputStream out) throws IOException
+  {
+    out.write (bytes);
+  }
+
+  @Override public String toString ()
+  {
+    return new String (bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+  }
+}
+
+// fan-out of one match's frames. The session publishes into a ring without
+// locks or any per-subscriber work; each subscription keeps its own cursor
+// and one that falls a whole ring behind skips to the newest frame, so a
+// slow spectator never holds up the game
+class SpectatorChannel
+{
+  private static final long MAX_PAUSE = TimeUnit.MILLISECONDS.toNanos (10);
+
+  private final AtomicReferenceArray < SpectatorFrame > ring;
+  private final int mask;
+  // sequence of the newest frame, -1 before the first
+  private final AtomicLong published = new AtomicLong (-1);
+  private final AtomicInteger subscribers = new AtomicInteger ();
+  private volatile boolean closed;
+
+  public SpectatorChannel (int capacity)
+  {
+    int size = 1;
+    while (size < capacity)
+      {
+	size <<= 1;
+      }
+    ring = new AtomicReferenceArray <> (size);
+    mask = size - 1;
+  }
+
+  public boolean hasSubscribers ()
+  {
+    return subscribers.get () > 0;
+  }
+
+  public int getSubscribers ()
+  {
+    return subscribers.get ();
+  }
+
+  public long getPublished ()
+  {
+    return published.get () + 1;
+  }
+
+  // single producer: only the owner of the match publishes
+  public SpectatorFrame publish (CompactMatch chessMatch)
+  {
+    long sequence = published.get () + 1;
+    SpectatorFrame frame = new SpectatorFrame (sequence, chessMatch);
+    ring.set ((int) sequence & mask, frame);
+    published.set (sequence);
+    return frame;
+  }
+
+  public void close ()
+  {
+    closed = true;
+  }
+
+  // receives the frames published from now on, after the newest one if
+  // latest is set
+  public Subscription subscribe (boolean latest)
+  {
+    subscribers.incrementAndGet ();
+    long head = published.get ();
+    return new Subscription ((latest && head >= 0) ? head : head + 1);
+  }
+
+  class Subscription implements Closeable
+  {
+    private long next;
+    private long skipped;
+    private boolean cancelled;
+
+    private Subscription (long next)
+    {
+      this.next = next;
+    }
+
+    public long getSkipped ()
+    {
+      return skipped;
+    }
+
+    public boolean isClosed ()
+    {
+      return cancelled || (closed && published.get () < next);
+    }
+
+    // the next frame, or null when there is none yet
+    public SpectatorFrame poll ()
+    {
+      while (true)
+	{
+	  long head = published.get ();
+	  if (head < next)
+	    {
+	      return null;
+	    }
+	  if (head - next > mask)
+	    {
+	      skipped += head - next;
+	      next = head;
+	    }
+	  SpectatorFrame frame = ring.get ((int) next & mask);
+	  if (frame.getSequence () == next)
+	    {
+	      next++;
+	      return frame;
+	    }
+	  // the producer lapped us between the two reads
+	}
+    }
+
+    // waits with a growing pause for the next frame; null on timeout or
+    // once the channel is closed and drained
+    public SpectatorFrame take (long timeout, TimeUnit unit)
+      throws InterruptedException
+    {
+      long deadline = System.nanoTime () + unit.toNanos (timeout);
+      long pause = 1000;
+      SpectatorFrame frame;
+      while ((frame = poll ()) == null && !isClosed ())
+	{
+	  long left = deadline - System.nanoTime ();
+	  if (left <= 0)
+	    {
+	      return null;
+	    }
+	  LockSupport.parkNanos (Math.min (pause, left));
+	  pause = Math.min (pause * 2, MAX_PAUSE);
+	  if (Thread.interrupted ())
+	    {
+	      throw new InterruptedException ();
+	    }
+	}
+      return frame;
+    }
+
+    @Override public void close ()
+    {
+      if (!cancelled)
+	{
+	  cancelled = true;
+	  subscribers.decrementAndGet ();
+	}
+    }
+  }
+}
+
+// commands for one match run one at a time on a shared pool, so each
+// ChessMatch has a single writer without any lock
+class GameSession
+{
+  private static final int DRAIN_BUDGET = 64;
+  private static final int SPECTATOR_FRAMES = 16;
+
+  private final long id;
+  private final Executor executor;
+  private final MatchHibernator hibernator;
+  private final MoveJournal journal;
+  // null while hibernated in slot
+  private volatile CompactMatch chessMatch;
+  private int slot = -1;
+  private final Queue < Runnable > mailbox = new ConcurrentLinkedQueue <> ();
+  private final AtomicBoolean scheduled = new AtomicBoolean ();
+  private volatile long lastAccess = System.currentTimeMillis ();
+  private final SpectatorChannel spectators =
+    new SpectatorChannel (SPECTATOR_FRAMES);
+  // whether the newest frame shows the current game; commands run unwatched
+  // do not publish
+  private volatile boolean framesCurrent;
+  private final AtomicBoolean refreshPending = new AtomicBoolean ();
+
+  public GameSession (long id, ChessMatch chessMatch, Executor executor)
+  {
+    this (id, chessMatch, executor, null, null);
+  }
+
+  public GameSession (long id, ChessMatch chessMatch, Executor executor,
+		      MatchHibernator hibernator, MoveJournal journal)
+  {
+    this.id = id;
+    this.chessMatch = new CompactMatch (chessMatch);
+    this.executor = executor;
+    this.hibernator = hibernator;
+    this.journal = journal;
+  }
+
+  public boolean isResident ()
+  {
+    return chessMatch != null;
+  }
+
+  public long getId ()
+  {
+    return id;
+  }
+
+  public long getLastAccess ()
+  {
+    return lastAccess;
+  }
+
+  public < T > CompletableFuture < T > submit (Function < ChessMatch, T > command)
+  {
+    CompletableFuture < T > future = new CompletableFuture <> ();
+    mailbox.add (() ->
+		 {
+		   try
+		   {
+		     CompactMatch packed = resident ();
+		     short[] before = packed.history ();
+		     boolean watched = spectators.hasSubscribers ();
+		     framesCurrent &= watched;
+		     T result = packed.apply (command);
+		     if (watched && !Arrays.equals (before, packed.history ()))
+		       {
+			 spectators.publish (packed);
+		       }
+		     CompletableFuture < Void > durable = (journal == null) ? null
+		       : journal.record (id, before, packed.history ());
+		     if (durable == null)
+		       {
+			 future.complete (result);
+		       }
+		     else
+		       {
+			 // the reply waits for the group commit of its moves
+			 durable.whenComplete ((v, e) ->
+					       {
+						 if (e == null)
+						   {
+						     future.complete (result);
+						   }
+						 else
+						   {
+						     future.
+						       completeExceptionally (e);
+						   }
+					       });
+		       }
+		   }
+		   catch (RuntimeException e)
+		   {
+		     future.completeExceptionally (e);
+		   }
+		 });
+    schedule ();
+    return future;
+  }
+
+  // a query served from the packed match in turn with the commands, so it
+  // neither inflates it nor waits for the journal
+  public < T > CompletableFuture < T > read (Function < CompactMatch,
+					     T > query)
+  {
+    CompletableFuture < T > future = new CompletableFuture <> ();
+    mailbox.add (() ->
+		 {
+		   try
+		   {
+		     future.complete (query.apply (resident ()));
+		   }
+		   catch (RuntimeException e)
+		   {
+		     future.completeExceptionally (e);
+		   }
+		 });
+    schedule ();
+    return future;
+  }
+
+  // the frames of this match from now on, starting with its current state
+  public SpectatorChannel.Subscription watch ()
+  {
+    boolean current = framesCurrent;
+    SpectatorChannel.Subscription subscription =
+      spectators.subscribe (current);
+    if (!current && refreshPending.compareAndSet (false, true))
+      {
+	read (m ->
+	      {
+		refreshPending.set (false);
+		framesCurrent = true;
+		return spectators.publish (m);
+	      });
+      }
+    return subscription;
+  }
+
+  public SpectatorChannel getSpectators ()
+  {
+    return spectators;
+  }
+
+  private CompactMatch resident ()
+  {
+    if (chessMatch == null)
+      {
+	chessMatch = hibernator.rehydrate (slot);
+	slot = -1;
+      }
+    else if (hibernator != null)
+      {
+	hibernator.hit ();
+      }
+    return chessMatch;
+  }
+
+  // runs outside the mailbox, so it only takes the match while no command
+  // is queued or running
+  boolean hibernate ()
+  {
+    if (hibernator == null || chessMatch == null
+	|| !scheduled.compareAndSet (false, true))
+      {
+	return false;
+      }
+    boolean hibernated = false;
+    try
+    {
+      if (mailbox.isEmpty ())
+	{
+	  slot = hibernator.hibernate (chessMatch);
+	  hibernated = slot >= 0;
+	  if (hibernated)
+	    {
+	      chessMatch = null;
+	    }
+	}
+    }
+    finally
+    {
+      scheduled.set (false);
+      if (!mailbox.isEmpty ())
+	{
+	  schedule ();
+	}
+    }
+    return hibernated;
+  }
+
+  void release ()
+  {
+    mailbox.add (() ->
+		 {
+		   if (chessMatch == null && slot >= 0)
+		     {
+		       hibernator.discard (slot);
+		       slot = -1;
+		     }
+		   if (journal != null)
+		     {
+		       journal.end (id);
+		     }
+		   spectators.close ();
+		 });
+    schedule ();
+  }
+
+  private void schedule ()
+  {
+    if (scheduled.compareAndSet (false, true))
+      {
+	executor.execute (this::drain);
+      }
+  }
+
+  private void drain ()
+  {
+    lastAccess = System.currentTimeMillis ();
+    Runnable task;
+    for (int i = 0; i < DRAIN_BUDGET && (task = mailbox.poll ()) != null; i++)
+      {
+	task.run ();
+      }
+    scheduled.set (false);
+    // a command may have arrived after the last poll
+    if (!mailbox.isEmpty ())
+      {
+	schedule ();
+      }
+  }
+}
+
+class SessionRegistry
+{
+  private final ConcurrentHashMap < Long, GameSession > sessions =
+    new ConcurrentHashMap <> ();
+  private final AtomicLong nextId = new AtomicLong (1);
+  private final ExecutorService executor;
+  private final MatchHibernator hibernator;
+  private final MoveJournal journal;
+  private final ScheduledExecutorService sweeper;
+  private final AtomicBoolean sweepPending = new AtomicBoolean ();
+
+  public SessionRegistry (int threads)
+  {
+    this (threads, null, null);
+  }
+
+  public SessionRegistry (int threads, MatchHibernator hibernator,
+			  MoveJournal journal)
+  {
+    executor = Executors.newFixedThreadPool (threads);
+    this.hibernator = hibernator;
+    this.journal = journal;
+    if (hibernator == null)
+      {
+	sweeper = null;
+	return;
+      }
+    sweeper = Executors.newSingleThreadScheduledExecutor (r ->
+							  {
+							    Thread t =
+							      new Thread (r,
+									  "sweeper");
+							    t.setDaemon (true);
+							    return t;
+							  });
+    long period = Math.max (100, hibernator.getIdleMillis () / 4);
+    sweeper.scheduleWithFixedDelay (this::sweep, period, period,
+				    TimeUnit.MILLISECONDS);
+  }
+
+  // completes once the match is durable, so a client is never told of a
+  // game that recovery would not bring back
+  public CompletableFuture < GameSession > create (ChessMatch chessMatch)
+  {
+    long id = nextId.getAndIncrement ();
+    CompletableFuture < Void > durable = (journal == null) ? null
+      : journal.create (id, chessMatch);
+    GameSession session = add (id, chessMatch);
+    return (durable == null) ? CompletableFuture.completedFuture (session)
+      : durable.thenApply (v -> session);
+  }
+
+  // brings back a match recovered from the journal under its old id
+  public GameSession restore (long id, ChessMatch chessMatch)
+  {
+    nextId.accumulateAndGet (id + 1, Math::max);
+    return add (id, chessMatch);
+  }
+
+  private GameSession add (long id, ChessMatch chessMatch)
+  {
+    GameSession session =
+      new GameSession (id, chessMatch, executor, hibernator, journal);
+    sessions.put (id, session);
+    if (hibernator != null
+	&& sessions.size () - hibernator.getHibernated () >
+	hibernator.getMaxResident () && sweepPending.compareAndSet (false, true))
+      {
+	sweeper.execute (this::sweep);
+      }
+    return session;
+  }
+
+  // hibernates every match idle past the window, then the least recently
+  // used ones until the resident bound holds
+  void sweep ()
+  {
+    sweepPending.set (false);
+    long now = System.currentTimeMillis ();
+    List < Map.Entry < Long, GameSession >> resident = new ArrayList <> ();
+  for (GameSession session:sessions.values ())
+      {
+	long lastAccess = session.getLastAccess ();
+	if (!session.isResident ())
+	  {
+	    continue;
+	  }
+	if (now - lastAccess < hibernator.getIdleMillis ()
+	    || !session.hibernate ())
+	  {
+	    resident.add (Map.entry (lastAccess, session));
+	  }
+      }
+    int excess = resident.size () - hibernator.getMaxResident ();
+    if (excess > 0)
+      {
+	resident.sort (Map.Entry.comparingByKey ());
+	for (int i = 0; i < resident.size () && excess > 0; i++)
+	  {
+	    if (resident.get (i).getValue ().hibernate ())
+	      {
+		excess--;
+	      }
+	  }
+      }
+  }
+
+  public MatchHibernator getHibernator ()
+  {
+    return hibernator;
+  }
+
+  public MoveJournal getJournal ()
+  {
+    return journal;
+  }
+
+  public GameSession get (long id)
+  {
+    GameSession session = sessions.get (id);
+    if (session == null)
+      {
+	throw new ChessException ("no game " + id);
+      }
+    return session;
+  }
+
+  public GameSession remove (long id)
+  {
+    GameSession session = sessions.remove (id);
+    if (session != null)
+      {
+	session.release ();
+      }
+    return session;
+  }
+
+  public int size ()
+  {
+    return sessions.size ();
+  }
+
+  public void shutdown ()
+  {
+    executor.shutdown ();
+    if (sweeper != null)
+      {
+	sweeper.shutdown ();
+      }
+  }
+}
+
+// line protocol, one reply line per command:
+//   NEW [fen]         -> OK <id>
+//   STATE <id>        -> OK <status> <fen>
+//   MOVES <id>        -> OK <uci moves...>
+//   MOVE <id> <uci>   -> OK <status>
+//   CLOSE <id>        -> OK
+//   WATCH <id>        -> OK, then a FRAME line per move until the game is
+//                        closed; the connection takes no more commands
+class GameServer implements Closeable
+{
+  private final SessionRegistry registry;
+  private final ServerSocket serverSocket;
+  private final ExecutorService connections = Executors.newCachedThreadPool ();
+
+  public GameServer (int port, SessionRegistry registry) throws IOException
+  {
+    this.registry = registry;
+    this.serverSocket =
+      new ServerSocket (port, 1024, InetAddress.getLoopbackAddress ());
+  }
+
+  public int getPort ()
+  {
+    return serverSocket.getLocalPort ();
+  }
+
+  // accepts connections until the server is closed
+  public void serve ()
+  {
+    while (!serverSocket.isClosed ())
+      {
+	try
+	{
+	  Socket socket = serverSocket.accept ();
+	  connections.execute (() -> handle (socket));
+	}
+	catch (IOException e)
+	{
+	  if (!serverSocket.isClosed ())
+	    {
+	      System.err.println ("accept failed: " + e.getMessage ());
+	    }
+	}
+      }
+  }
+
+  private void handle (Socket socket)
+  {
+    try (socket;
+	 BufferedReader in =
+	 new BufferedReader (new InputStreamReader
+			     (socket.getInputStream (),
+			      StandardCharsets.UTF_8));
+	 PrintWriter out =
+	 new PrintWriter (new OutputStreamWriter
+			  (socket.getOutputStream (), StandardCharsets.UTF_8)))
+    {
+      String line;
+      while ((line = in.readLine ()) != null)
+	{
+	  if (line.trim ().equalsIgnoreCase ("QUIT"))
+	    {
+	      break;
+	    }
+	  if (line.trim ().toUpperCase ().startsWith ("WATCH"))
+	    {
+	      watch (line, out, socket.getOutputStream ());
+	      break;
+	    }
+	  out.println (execute (line));
+	  out.flush ();
+	}
+    }
+    catch (IOException e)
+    {
+      // the client went away
+    }
+  }
+
+  private void watch (String line, PrintWriter out, OutputStream frames)
+    throws IOException
+  {
+    GameSession session;
+    try
+    {
+      session = session (line.trim ().split ("\\s+"));
+    }
+    catch (RuntimeException e)
+    {
+      out.println ("ERR " + e.getMessage ());
+      out.flush ();
+      return;
+    }
+    out.println ("OK");
+    out.flush ();
+    try (SpectatorChannel.Subscription subscription = session.watch ())
+    {
+      while (!subscription.isClosed ())
+	{
+	  SpectatorFrame frame = subscription.take (1, TimeUnit.SECONDS);
+	  if (frame != null)
+	    {
+	      frame.writeTo (frames);
+	      frames.flush ();
+	    }
+	}
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  public String execute (String line)
+  {
+    String[] tokens = line.trim ().split ("\\s+", 3);
+    try
+    {
+      switch (tokens[0].toUpperCase ())
+	{
+	case "NEW":
+	  ChessMatch chessMatch = (tokens.length > 1)
+	    ? new ChessMatch (line.trim ().substring (3).trim ())
+	    : new ChessMatch ();
+	  return "OK " + registry.create (chessMatch).get ().getId ();
+	case "STATE":
+	  return "OK " + session (tokens).read (m -> status (m) + " " +
+						m.toFen ()).get ();
+	case "MOVES":
+	  return "OK " + session (tokens).read (m -> legalMoves (m.inflate ())).
+	    get ();
+	case "MOVE":
+	  if (tokens.length < 3)
+	    {
+	      return "ERR usage: MOVE <id> <move>";
+	    }
+	  int move = Move.parseUci (tokens[2]);
+	  return "OK " + session (tokens).submit (m -> play (m, move)).get ();
+	case "CLOSE":
+	  return (registry.remove (id (tokens)) != null) ? "OK"
+	    : "ERR no game " + tokens[1];
+	default:
+	  return "ERR unknown command " + tokens[0];
+	}
+    }
+    catch (ExecutionException e)
+    {
+      return "ERR " + e.getCause ().getMessage ();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+      return "ERR interrupted";
+    }
+    catch (RuntimeException e)
+    {
+      return "ERR " + e.getMessage ();
+    }
+  }
+
+  private GameSession session (String[]tokens)
+  {
+    return registry.get (id (tokens));
+  }
+
+  private static long id (String[]tokens)
+  {
+    if (tokens.length < 2)
+      {
+	throw new ChessException ("missing game id");
+      }
+    return Long.parseLong (tokens[1]);
+  }
+
+  static String status (ChessMatch chessMatch)
+  {
+    return chessMatch.isCheckMate ()? "checkmate"
+      : chessMatch.isDraw ()? "draw"
+      : chessMatch.isCheck ()? "check" : "playing";
+  }
+
+  static String status (CompactMatch chessMatch)
+  {
+    return chessMatch.isCheckMate ()? "checkmate"
+      : chessMatch.isDraw ()? "draw"
+      : chessMatch.isCheck ()? "check" : "playing";
+  }
+
+  private static String play (ChessMatch chessMatch, int move)
+  {
+    if (chessMatch.isCheckMate () || chessMatch.isDraw ())
+      {
+	throw new ChessException ("game is over");
+      }
+    chessMatch.performMove (move);
+    return status (chessMatch);
+  }
+
+  private static String legalMoves (ChessMatch chessMatch)
+  {
+    int[] moves = new int[256];
+    int count = chessMatch.legalMoves (moves);
+    StringBuilder sb = new StringBuilder ();
+    for (int i = 0; i < count; i++)
+      {
+	sb.append (Move.toUci (moves[i])).append (' ');
+      }
+    return sb.toString ().trim ();
+  }
+
+  @Override public void close () throws IOException
+  {
+    serverSocket.close ();
+    connections.shutdownNow ();
+  }
+}
+
+// log-linear buckets: exact below 16, then 16 sub-buckets per power of two,
+// which keeps every percentile within about 6% of the recorded value
+class LatencyHistogram
+{
+  private static final int SUB_BUCKETS = 16;
+  private final AtomicLongArray counts = new AtomicLongArray (64 * SUB_BUCKETS);
+  private final LongAdder total = new LongAdder ();
+
+  private static int index (long value)
+  {
+    if (value < SUB_BUCKETS)
+      {
+	return (int) Math.max (0, value);
+      }
+    int exponent = 63 - Long.numberOfLeadingZeros (value);
+    int sub = (int) ((value >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+    return (exponent - 3) * SUB_BUCKETS + sub;
+  }
+
+  private static long value (int index)
+  {
+    if (index < SUB_BUCKETS)
+      {
+	return index;
+      }
+    int exponent = index / SUB_BUCKETS + 3;
+    return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 4);
+  }
+
+  public void record (long value)
+  {
+    counts.incrementAndGet (index (value));
+    total.increment ();
+  }
+
+  public long getCount ()
+  {
+    return total.sum ();
+  }
+
+  // the lowest bucket value at or above the given fraction of samples
+  public long percentile (double fraction)
+  {
+    long count = 0;
+    for (int i = 0; i < counts.length (); i++)
+      {
+	count += counts.get (i);
+      }
+    long rank = (long) Math.ceil (fraction * count);
+    long seen = 0;
+    for (int i = 0; i < counts.length (); i++)
+      {
+	seen += counts.get (i);
+	if (seen >= rank && seen > 0)
+	  {
+	    return value (i);
+	  }
+      }
+    return 0;
+  }
+}
+
+class EndpointMetrics
+{
+  private final LatencyHistogram latency = new LatencyHistogram ();
+  private final LongAdder errors = new LongAdder ();
+
+  public void record (long nanos, boolean error)
+  {
+    latency.record (nanos / 1000);
+    if (error)
+      {
+	errors.increment ();
+      }
+  }
+
+  public String toJson (double seconds)
+  {
+    long requests = latency.getCount ();
+    return String.format (Locale.ROOT,
+			  "{\"requests\":%d,\"errors\":%d,\"perSecond\":%.1f," +
+			  "\"p50Micros\":%d,\"p99Micros\":%d,\"p999Micros\":%d}",
+			  requests, errors.sum (),
+			  (seconds > 0) ? requests / seconds : 0,
+			  latency.percentile (0.5), latency.percentile (0.99),
+			  latency.percentile (0.999));
+  }
+}
+
+// process-wide counters and latency histograms for the rules engine, cheap
+// enough to update on hot paths; rates are per second of uptime
+class Metrics
+{
+  public static final Metrics ENGINE = new Metrics ();
+
+  private final Map < String, LongAdder > counters =
+    new ConcurrentSkipListMap <> ();
+  private final Map < String, LatencyHistogram > histograms =
+    new ConcurrentSkipListMap <> ();
+  private final long startTime = System.nanoTime ();
+
+  // callers keep the returned adder instead of looking it up per update
+  public LongAdder counter (String name)
+  {
+    return counters.computeIfAbsent (name, k -> new LongAdder ());
+  }
+
+  public LatencyHistogram histogram (String name)
+  {
+    return histograms.computeIfAbsent (name, k -> new LatencyHistogram ());
+  }
+
+  private double seconds ()
+  {
+    return Math.max (1e-9, (System.nanoTime () - startTime) / 1e9);
+  }
+
+  // one line per metric:
+  //   <counter> <total> <per second>/s
+  //   <histogram> count=<n> p50=<v> p99=<v> p999=<v>
+  public String toText ()
+  {
+    double seconds = seconds ();
+    StringBuilder sb = new StringBuilder ();
+  for (Map.Entry < String, LongAdder > entry:counters.entrySet ())
+      {
+	long total = entry.getValue ().sum ();
+	sb.append (String.format (Locale.ROOT, "%s %d %.1f/s%n",
+				  entry.getKey (), total, total / seconds));
+      }
+  for (Map.Entry < String, LatencyHistogram > entry:histograms.entrySet ())
+      {
+	LatencyHistogram histogram = entry.getValue ();
+	sb.append (String.format (Locale.ROOT,
+				  "%s count=%d p50=%d p99=%d p999=%d%n",
+				  entry.getKey (), histogram.getCount (),
+				  histogram.percentile (0.5),
+				  histogram.percentile (0.99),
+				  histogram.percentile (0.999)));
+      }
+    return sb.toString ();
+  }
+
+  public String toJson ()
+  {
+    double seconds = seconds ();
+    StringBuilder sb = new StringBuilder ("{");
+  for (Map.Entry < String, LongAdder > entry:counters.entrySet ())
+      {
+	long total = entry.getValue ().sum ();
+	sb.append ((sb.length () > 1) ? "," : "")
+	  .append (HttpMoveApi.quote (entry.getKey ()))
+	  .append (String.format (Locale.ROOT,
+				  ":{\"total\":%d,\"perSecond\":%.1f}", total,
+				  total / seconds));
+      }
+  for (Map.Entry < String, LatencyHistogram > entry:histograms.entrySet ())
+      {
+	LatencyHistogram histogram = entry.getValue ();
+	sb.append ((sb.length () > 1) ? "," : "")
+	  .append (HttpMoveApi.quote (entry.getKey ()))
+	  .append (String.format (Locale.ROOT,
+				  ":{\"count\":%d,\"p50\":%d,\"p99\":%d," +
+				  "\"p999\":%d}", histogram.getCount (),
+				  histogram.percentile (0.5),
+				  histogram.percentile (0.99),
+				  histogram.percentile (0.999)));
+      }
+    return sb.append ('}').toString ();
+  }
+}
+
+// Flight Recorder events, off unless a recording enables the Chess category
+@Name ("chess.MoveValidation") @Label ("Move Validation")
+@Category ("Chess") class MoveValidationEvent extends Event
+{
+  @Label ("Move") String move;
+  @Label ("Valid") boolean valid;
+}
+
+@Name ("chess.PerformMove") @Label ("Perform Move")
+@Category ("Chess") class PerformMoveEvent extends Event
+{
+  @Label ("Move") String move;
+  @Label ("Ply") int ply;
+  @Label ("Capture") boolean capture;
+  @Label ("Check") boolean check;
+  @Label ("Checkmate") boolean checkMate;
+  @Label ("Checks Tested") long checksTested;
+}
+
+@Name ("chess.CheckTest") @Label ("Check Test")
+@Category ("Chess") class CheckTestEvent extends Event
+{
+  @Label ("Color") String color;
+  @Label ("In Check") boolean inCheck;
+  @Label ("Opponent Pieces") int opponentPieces;
+}
+
+@Name ("chess.CheckmateTest") @Label ("Checkmate Test")
+@Category ("Chess") class CheckmateTestEvent extends Event
+{
+  @Label ("Color") String color;
+  @Label ("Checkmate") boolean checkMate;
+  @Label ("Checks Tested") long checksTested;
+}
+
+@Name ("chess.SearchIteration") @Label ("Search Iteration")
+@Category ("Chess") class SearchIterationEvent extends Event
+{
+  @Label ("Depth") int depth;
+  @Label ("Nodes") long nodes;
+  @Label ("Total Nodes") long totalNodes;
+  @Label ("Score") int score;
+  @Label ("Best Move") String bestMove;
+}
+
+// POST /matches                   create, optional {"fen": "..."}
+// GET  /matches/{id}              FEN, status and legal moves
+// POST /matches/{id}/moves        {"move": "e2e4"}
+// GET  /matches/{id}/bestmove     ?depth=&movetime=&nodes=
+// GET  /metrics                   latency and throughput per endpoint and
+//                                 the engine counters
+class HttpMoveApi
+{
+  private static final Pattern MOVE = Pattern.compile ("\"move\"\\s*:\\s*\"([^\"]+)\"");
+  private static final Pattern FEN = Pattern.compile ("\"fen\"\\s*:\\s*\"([^\"]+)\"");
+
+  private final SessionRegistry registry;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Map < String, EndpointMetrics > metrics = new LinkedHashMap <> ();
+  private final ThreadLocal < Search > searches =
+    ThreadLocal.withInitial (() -> new Search (8));
+  private final long startTime = System.nanoTime ();
+
+  public HttpMoveApi (int port, SessionRegistry registry, int threads)
+    throws IOException
+  {
+    this.registry = registry;
+    for (String endpoint:new String[] { "create", "state", "move", "bestmove",
+	 "metrics" })
+      {
+	metrics.put (endpoint, new EndpointMetrics ());
+      }
+    server = HttpServer.create (new InetSocketAddress
+				(InetAddress.getLoopbackAddress (), port), 1024);
+    executor = Executors.newFixedThreadPool (threads);
+    server.setExecutor (executor);
+    server.createContext ("/matches", this::handleMatches);
+    server.createContext ("/metrics", exchange ->
+			  timed (exchange, "metrics", () -> metricsJson ()));
+  }
+
+  public int getPort ()
+  {
+    return server.getAddress ().getPort ();
+  }
+
+  public void start ()
+  {
+    server.start ();
+  }
+
+  public void stop ()
+  {
+    server.stop (0);
+    executor.shutdown ();
+  }
+
+  private void handleMatches (HttpExchange exchange) throws IOException
+  {
+    String[] path = exchange.getRequestURI ().getPath ().split ("/");
+    String method = exchange.getRequestMethod ();
+    if (path.length == 2 && method.equals ("POST"))
+      {
+	timed (exchange, "create", () -> create (body (exchange)));
+      }
+    else if (path.length == 3 && method.equals ("GET"))
+      {
+	timed (exchange, "state", () -> state (session (path[2])));
+      }
+    else if (path.length == 4 && path[3].equals ("moves")
+	     && method.equals ("POST"))
+      {
+	timed (exchange, "move", () -> move (session (path[2]), body (exchange)));
+      }
+    else if (path.length == 4 && path[3].equals ("bestmove")
+	     && method.equals ("GET"))
+      {
+	timed (exchange, "bestmove",
+	       () -> bestMove (session (path[2]),
+			       exchange.getRequestURI ().getQuery ()));
+      }
+    else
+      {
+	send (exchange, 404, error ("not found"));
+      }
+  }
+
+  private interface Handler
+  {
+    String handle () throws Exception;
+  }
+
+  private void timed (HttpExchange exchange, String endpoint, Handler handler)
+    throws IOException
+  {
+    long start = System.nanoTime ();
+    int status = 200;
+    String body;
+    try
+    {
+      body = handler.handle ();
+    }
+    catch (ExecutionException e)
+    {
+      status = 400;
+      body = error (e.getCause ().getMessage ());
+    }
+    catch (ChessException | NumberFormatException e)
+    {
+      status = 400;
+      body = error (e.getMessage ());
+    }
+    catch (Exception e)
+    {
+      status = 500;
+      body = error (String.valueOf (e));
+    }
+    send (exchange, status, body);
+    metrics.get (endpoint).record (System.nanoTime () - start, status != 200);
+  }
+
+  private static void send (HttpExchange exchange, int status, String json)
+    throws IOException
+  {
+    byte[] bytes = json.getBytes (StandardCharsets.UTF_8);
+    exchange.getResponseHeaders ().set ("Content-Type", "application/json");
+    exchange.sendResponseHeaders (status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody ())
+    {
+      out.write (bytes);
+    }
+  }
+
+  private static String body (HttpExchange exchange) throws IOException
+  {
+    try (InputStream in = exchange.getRequestBody ())
+    {
+      return new String (in.readAllBytes (), StandardCharsets.UTF_8);
+    }
+  }
+
+  private GameSession session (String id)
+  {
+    return registry.get (Long.parseLong (id));
+  }
+
+  private String create (String body) throws Exception
+  {
+    Matcher fen = FEN.matcher (body);
+    ChessMatch chessMatch = fen.find ()? new ChessMatch (fen.group (1))
+      : new ChessMatch ();
+    GameSession session = registry.create (chessMatch).get ();
+    return "{\"id\":" + session.getId () + "}";
+  }
+
+  private String state (GameSession session) throws Exception
+  {
+    // the legal moves need the board, but nothing is packed again
+    return session.read (chessMatch ->
+			 stateJson (session, chessMatch.inflate ())).get ();
+  }
+
+  private String move (GameSession session, String body) throws Exception
+  {
+    Matcher matcher = MOVE.matcher (body);
+    int move = Move.parseUci (matcher.find ()? matcher.group (1) : body.trim ());
+    return session.submit (chessMatch ->
+			   {
+			     if (chessMatch.isCheckMate ()
+				 || chessMatch.isDraw ())
+			       {
+				 throw new ChessException ("game is over");
+			       }
+			     chessMatch.performMove (move);
+			     return stateJson (session, chessMatch);
+			   }).get ();
+  }
+
+  private String bestMove (GameSession session, String query) throws Exception
+  {
+    int depth = 4;
+    long nodes = Long.MAX_VALUE;
+    long time = 1000;
+    if (query != null)
+      {
+      for (String parameter:query.split ("&"))
+	  {
+	    String[] pair = parameter.split ("=", 2);
+	    if (pair.length == 2 && pair[0].equals ("depth"))
+	      {
+		depth = Integer.parseInt (pair[1]);
+	      }
+	    else if (pair.length == 2 && pair[0].equals ("nodes"))
+	      {
+		nodes = Long.parseLong (pair[1]);
+	      }
+	    else if (pair.length == 2 && pair[0].equals ("movetime"))
+	      {
+		time = Long.parseLong (pair[1]);
+	      }
+	  }
+      }
+    // search a copy so the session is not blocked for the whole search;
+    // inflating rebuilds the keys the search needs for repetitions
+    ChessMatch copy = session.read (CompactMatch::inflate).get ();
+    SearchResult result =
+      searches.get ().search (copy, new SearchLimits (depth, nodes, time));
+    return "{\"move\":" + quote ((result.getBestMove () == 0) ? null
+				 : Move.toUci (result.getBestMove ())) +
+      ",\"score\":" + quote (result.scoreString ()) + ",\"depth\":" +
+      result.getDepth () + ",\"nodes\":" + result.getNodes () + ",\"pv\":" +
+      quote (result.pvString ()) + "}";
+  }
+
+  private static String stateJson (GameSession session, ChessMatch chessMatch)
+  {
+    int[] moves = new int[256];
+    boolean draw = !chessMatch.isCheckMate () && chessMatch.isDraw ();
+    int count = (chessMatch.isCheckMate () || draw) ? 0
+      : chessMatch.legalMoves (moves);
+    StringBuilder sb = new StringBuilder ();
+    sb.append ("{\"id\":").append (session.getId ());
+    sb.append (",\"fen\":").append (quote (chessMatch.toFen ()));
+    sb.append (",\"status\":").append (quote (chessMatch.isCheckMate ()? "checkmate"
+					      : draw ? "draw"
+					      : chessMatch.isCheck ()? "check"
+					      : "playing"));
+    sb.append (",\"legalMoves\":[");
+    for (int i = 0; i < count; i++)
+      {
+	sb.append ((i > 0) ? "," : "").append (quote (Move.toUci (moves[i])));
+      }
+    return sb.append ("]}").toString ();
+  }
+
+  private String metricsJson ()
+  {
+    double seconds = (System.nanoTime () - startTime) / 1e9;
+    StringBuilder sb = new StringBuilder ("{\"uptimeSeconds\":");
+    sb.append ((long) seconds).append (",\"matches\":").append (registry.size ());
+    if (registry.getHibernator () != null)
+      {
+	sb.append (",\"hibernation\":").
+	  append (registry.getHibernator ().toJson ());
+      }
+    if (registry.getJournal () != null)
+      {
+	sb.append (",\"journal\":").append (registry.getJournal ().toJson ());
+      }
+    sb.append (",\"engine\":").append (Metrics.ENGINE.toJson ());
+  for (Map.Entry < String, EndpointMetrics > entry:metrics.entrySet ())
+      {
+	sb.append (",").append (quote (entry.getKey ())).append (':').
+	  append (entry.getValue ().toJson (seconds));
+      }
+    return sb.append ('}').toString ();
+  }
+
+  private static String error (String message)
+  {
+    return "{\"error\":" + quote (message) + "}";
+  }
+
+  static String quote (String s)
+  {
+    if (s == null)
+      {
+	return "null";
+      }
+    StringBuilder sb = new StringBuilder ("\"");
+  for (char c:s.toCharArray ())
+      {
+	if (c == '"' || c == '\\')
+	  {
+	    sb.append ('\\').append (c);
+	  }
+	else if (c < 0x20)
+	  {
+	    sb.append (String.format ("\\u%04x", (int) c));
+	  }
+	else
+	  {
+	    sb.append (c);
+	  }
+      }
+    return sb.append ('"').toString ();
+  }
+}
+
+class PgnGame
+{
+  private Map < String, String > tags = new LinkedHashMap <> ();
+  private List < String > moves = new ArrayList <> ();
+  private String result = "*";
+
+  public Map < String, String > getTags ()
+  {
+    return tags;
+  }
+
+  public String getTag (String name)
+  {
+    return tags.get (name);
+  }
+
+  public void addTag (String name, String value)
+  {
+    tags.put (name, value);
+  }
+
+  public List < String > getMoves ()
+  {
+    return moves;
+  }
+
+  public void addMove (String san)
+  {
+    moves.add (san);
+  }
+
+  public String getResult ()
+  {
+    return result;
+  }
+
+  public void setResult (String result)
+  {
+    this.result = result;
+  }
+
+  @Override public String toString ()
+  {
+    return tags.getOrDefault ("White", "?") + " - " +
+      tags.getOrDefault ("Black", "?") + " " + result;
+  }
+}
+
+class PgnParser
+{
+  private PgnParser ()
+  {
+  }
+
+  public static PgnGame parse (String text)
+  {
+    PgnGame game = new PgnGame ();
+    int i = 0;
+    int n = text.length ();
+    while (i < n)
+      {
+	char c = text.charAt (i);
+	if (Character.isWhitespace (c) || c == ')')
+	  {
+	    i++;
+	  }
+	else if (c == '[')
+	  {
+	    int end = text.indexOf (']', i);
+	    if (end < 0)
+	      {
+		throw new ChessException ("unterminated tag");
+	      }
+	    parseTag (game, text.substring (i + 1, end));
+	    i = end + 1;
+	  }
+	else if (c == '{')
+	  {
+	    int end = text.indexOf ('}', i);
+	    i = (end < 0) ? n : end + 1;
+	  }
+	else if (c == ';' || c == '%')
+	  {
+	    int end = text.indexOf ('\n', i);
+	    i = (end < 0) ? n : end + 1;
+	  }
+	else if (c == '(')
+	  {
+	    i = skipVariation (text, i);
+	  }
+	else
+	  {
+	    int start = i;
+	    while (i < n && !Character.isWhitespace (text.charAt (i))
+		   && "{}();[".indexOf (text.charAt (i)) < 0)
+	      {
+		i++;
+	      }
+	    parseToken (game, text.substring (start, i));
+	  }
+      }
+    return game;
+  }
+
+  private static void parseTag (PgnGame game, String tag)
+  {
+    int quote = tag.indexOf ('"');
+    int last = tag.lastIndexOf ('"');
+    if (quote < 0 || last <= quote)
+      {
+	throw new ChessException ("invalid tag: [" + tag + "]");
+      }
+    game.addTag (tag.substring (0, quote).trim (),
+		 tag.substring (quote + 1, last).replace ("\\\"", "\""));
+  }
+
+  private static int skipVariation (String text, int i)
+  {
+    int depth = 0;
+    int n = text.length ();
+    while (i < n)
+      {
+	char c = text.charAt (i);
+	if (c == '{')
+	  {
+	    int end = text.indexOf ('}', i);
+	    i = (end < 0) ? n : end;
+	  }
+	else if (c == '(')
+	  {
+	    depth++;
+	  }
+	else if (c == ')' && --depth == 0)
+	  {
+	    return i + 1;
+	  }
+	i++;
+      }
+    return n;
+  }
+
+  private static void parseToken (PgnGame game, String token)
+  {
+    if (token.equals ("1-0") || token.equals ("0-1")
+	|| token.equals ("1/2-1/2") || token.equals ("*"))
+      {
+	game.setResult (token);
+	return;
+      }
+    if (token.startsWith ("$"))
+      {
+	return;
+      }
+    int start = 0;
+    while (start < token.length ()
+	   && (Character.isDigit (token.charAt (start))
+	       || token.charAt (start) == '.'))
+      {
+	start++;
+      }
+    if (start > 0 && start < token.length () && token.charAt (start - 1) != '.')
+      {
+	// castling written with zeros
+	start = 0;
+      }
+    if (start < token.length ())
+      {
+	game.addMove (token.substring (start));
+      }
+  }
+}
+
+class San
+{
+  private San ()
+  {
+  }
+
+  public static int parse (ChessMatch chessMatch, String san)
+  {
+    String s = san;
+    while (s.length () > 0 && "+#!?".indexOf (s.charAt (s.length () - 1)) >= 0)
+      {
+	s = s.substring (0, s.length () - 1);
+      }
+    String type = "P";
+    int promotion = Move.NO_PROMOTION;
+    int fromRow = -1;
+    int fromColumn = -1;
+    int target;
+    if (s.equals ("O-O") || s.equals ("0-0") || s.equals ("O-O-O")
+	|| s.equals ("0-0-0"))
+      {
+	int row = (chessMatch.getCurrentPlayer () == Color.WHITE) ? 7 : 0;
+	type = "R";
+	fromRow = row;
+	fromColumn = 4;
+	target = Move.square (row, (s.length () == 3) ? 6 : 2);
+      }
+    else
+      {
+	int eq = s.indexOf ('=');
+	if (eq >= 0 && eq + 1 < s.length ())
+	  {
+	    promotion = promotion (s.charAt (eq + 1), san);
+	    s = s.substring (0, eq);
+	  }
+	else if (s.length () > 2 && "QRBN".indexOf (s.charAt (s.length () - 1)) >= 0
+		 && Character.isDigit (s.charAt (s.length () - 2)))
+	  {
+	    promotion = promotion (s.charAt (s.length () - 1), san);
+	    s = s.substring (0, s.length () - 1);
+	  }
+	if (s.length () > 0 && "KQRBN".indexOf (s.charAt (0)) >= 0)
+	  {
+	    type = pieceType (s.charAt (0));
+	    s = s.substring (1);
+	  }
+	s = s.replace ("x", "").replace ("-", "").replace (":", "");
+	if (s.length () < 2 || s.length () > 4)
+	  {
+	    throw new ChessException ("invalid move: " + san);
+	  }
+	target = Move.parseSquare (s, s.length () - 2);
+	for (int i = 0; i < s.length () - 2; i++)
+	  {
+	    char c = s.charAt (i);
+	    if (c >= 'a' && c <= 'h')
+	      {
+		fromColumn = c - 'a';
+	      }
+	    else if (c >= '1' && c <= '8')
+	      {
+		fromRow = '8' - c;
+	      }
+	    else
+	      {
+		throw new ChessException ("invalid move: " + san);
+	      }
+	  }
+      }
+
+    int found = -1;
+    for (int from = 0; from < 64; from++)
+      {
+	ChessPiece p = chessMatch.pieceAt (from);
+	if (p == null || p.getColor () != chessMatch.getCurrentPlayer ()
+	    || !p.toString ().equals (type)
+	    || (fromRow >= 0 && Move.row (from) != fromRow)
+	    || (fromColumn >= 0 && Move.column (from) != fromColumn))
+	  {
+	    continue;
+	  }
+	int move = Move.of (from, target, promotion);
+	if (!chessMatch.isLegalMove (move))
+	  {
+	    continue;
+	  }
+	if (found != -1)
+	  {
+	    throw new ChessException ("ambiguous move: " + san);
+	  }
+	found = move;
+      }
+    if (found == -1)
+      {
+	throw new ChessException ("illegal move: " + san);
+      }
+    return found;
+  }
+
+  private static String pieceType (char c)
+  {
+    switch (c)
+      {
+      case 'K':
+	return "R";
+      case 'Q':
+	return "A";
+      case 'R':
+	return "T";
+      case 'B':
+	return "B";
+      default:
+	return "C";
+      }
+  }
+
+  private static int promotion (char c, String san)
+  {
+    switch (Character.toUpperCase (c))
+      {
+      case 'Q':
+	return Move.QUEEN;
+      case 'R':
+	return Move.ROOK;
+      case 'B':
+	return Move.BISHOP;
+      case 'N':
+	return Move.KNIGHT;
+      default:
+	throw new ChessException ("invalid promotion: " + san);
+      }
+  }
+}
+
+class PgnChunkReader implements Closeable
+{
+  private final InputStream in;
+  private final ByteArrayOutputStream chunk = new ByteArrayOutputStream ();
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream ();
+  private boolean eof;
+
+  public PgnChunkReader (InputStream in)
+  {
+    this.in = new BufferedInputStream (in, 1 << 16);
+  }
+
+  // a game ends at a tag line after its movetext or at a termination
+  // marker closing a movetext line, for games without tags
+  public byte[] next () throws IOException
+  {
+    boolean inMoves = false;
+    boolean blank = true;
+    while (!eof)
+      {
+	int first = readLine ();
+	if (first == '[' && inMoves)
+	  {
+	    byte[] game = chunk.toByteArray ();
+	    chunk.reset ();
+	    line.writeTo (chunk);
+	    return game;
+	  }
+	if (first != -1 && first != '[')
+	  {
+	    inMoves = true;
+	  }
+	blank &= first == -1;
+	line.writeTo (chunk);
+	if (inMoves && first != -1 && endsGame ())
+	  {
+	    byte[] game = chunk.toByteArray ();
+	    chunk.reset ();
+	    return game;
+	  }
+      }
+    byte[] game = chunk.toByteArray ();
+    chunk.reset ();
+    // blank lines after the last game are not a game
+    return blank ? null : game;
+  }
+
+  private boolean endsGame ()
+  {
+    String text = line.toString (StandardCharsets.UTF_8).trim ();
+    String last = text.substring (text.lastIndexOf (' ') + 1);
+    return last.equals ("1-0") || last.equals ("0-1")
+      || last.equals ("1/2-1/2") || last.equals ("*");
+  }
+
+  // returns the first non-blank byte of the line, or -1 for a blank line
+  private int readLine () throws IOException
+  {
+    line.reset ();
+    int first = -1;
+    int b;
+    while ((b = in.read ()) != -1)
+      {
+	line.write (b);
+	if (b == '\n')
+	  {
+	    return first;
+	  }
+	if (first == -1 && b != ' ' && b != '\t' && b != '\r')
+	  {
+	    first = b;
+	  }
+      }
+    eof = true;
+    return first;
+  }
+
+  @Override public void close () throws IOException
+  {
+    in.close ();
+  }
+}
+
+class ImportReport
+{
+  private static final int MAX_REPORTED_REJECTIONS = 1000;
+
+  private long accepted;
+  private long rejected;
+  private long elapsedNanos;
+  private List < String > rejections = new ArrayList <> ();
+
+  public void accept ()
+  {
+    accepted++;
+  }
+
+  public void reject (long game, String reason)
+  {
+    rejected++;
+    if (rejections.size () < MAX_REPORTED_REJECTIONS)
+      {
+	rejections.add ("game " + (game + 1) + ": " + reason);
+      }
+  }
+
+  public void finish (long elapsedNanos)
+  {
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  public long getGames ()
+  {
+    return accepted + rejected;
+  }
+
+  public long getAccepted ()
+  {
+    return accepted;
+  }
+
+  public long getRejected ()
+  {
+    return rejected;
+  }
+
+  public List < String > getRejections ()
+  {
+    return rejections;
+  }
+
+  public double gamesPerSecond ()
+  {
+    return (elapsedNanos == 0) ? 0 : getGames () * 1e9 / elapsedNanos;
+  }
+
+  @Override public String toString ()
+  {
+    return String.format ("%d games, %d accepted, %d rejected in %.2f s (%.0f games/s)",
+			  getGames (), accepted, rejected, elapsedNanos / 1e9,
+			  gamesPerSecond ());
+  }
+}
+
+class GameRecord
+{
+  private final Map < String, String > tags;
+  private final String result;
+  private final int[] moves;
+
+  public GameRecord (Map < String, String > tags, String result, int[]moves)
+  {
+    this.tags = tags;
+    this.result = result;
+    this.moves = moves;
+  }
+
+  public Map < String, String > getTags ()
+  {
+    return tags;
+  }
+
+  public String getResult ()
+  {
+    return result;
+  }
+
+  public int[] getMoves ()
+  {
+    return moves;
+  }
+
+  // the position before the first move: the FEN tag or the initial one
+  public static ChessMatch startPosition (Map < String, String > tags)
+  {
+    String fen = tags.get ("FEN");
+    return (fen == null) ? new ChessMatch () : new ChessMatch (fen);
+  }
+
+  public ChessMatch replay ()
+  {
+    ChessMatch chessMatch = startPosition (tags);
+  for (int move:moves)
+      {
+	chessMatch.performMove (move);
+      }
+    return chessMatch;
+  }
+}
+
+class CompactGameFormat
+{
+  public static final int MAGIC = 0x43484731;	// "CHG1"
+  public static final String[] RESULTS = { "*", "1-0", "0-1", "1/2-1/2" };
+  public static final String[] TAGS =
+    { "Event", "Site", "Date", "Round", "White", "Black", "Result",
+    "WhiteElo", "BlackElo", "ECO", "TimeControl", "Termination", "FEN"
+  };
+
+  private CompactGameFormat ()
+  {
+  }
+
+  // moves are indexed in ascending packed order so the numbering does not
+  // depend on how ChessMatch happens to generate them
+  public static int sortedLegalMoves (ChessMatch chessMatch, int[]buffer)
+  {
+    int count = chessMatch.legalMoves (buffer);
+    Arrays.sort (buffer, 0, count);
+    return count;
+  }
+
+  public static int resultCode (String result)
+  {
+    for (int i = 0; i < RESULTS.length; i++)
+      {
+	if (RESULTS[i].equals (result))
+	  {
+	    return i;
+	  }
+      }
+    return 0;
+  }
+
+  public static int tagCode (String tag)
+  {
+    for (int i = 0; i < TAGS.length; i++)
+      {
+	if (TAGS[i].equals (tag))
+	  {
+	    return i + 1;
+	  }
+      }
+    return 0;
+  }
+
+  // record body: result byte, tags, ply count and one move index byte per
+  // ply; no position has more than 218 legal moves
+  public static void encode (GameRecord game, DataOutput out, int[]buffer)
+    throws IOException
+  {
+    out.writeByte (resultCode (game.getResult ()));
+    writeVarint (out, game.getTags ().size ());
+  for (Map.Entry < String, String > tag:game.getTags ().entrySet ())
+      {
+	int code = tagCode (tag.getKey ());
+	out.writeByte (code);
+	if (code == 0)
+	  {
+	    writeString (out, tag.getKey ());
+	  }
+	writeString (out, tag.getValue ());
+      }
+    writeVarint (out, game.getMoves ().length);
+    ChessMatch chessMatch = GameRecord.startPosition (game.getTags ());
+  for (int move:game.getMoves ())
+      {
+	int count = sortedLegalMoves (chessMatch, buffer);
+	int index = Arrays.binarySearch (buffer, 0, count, move);
+	if (index < 0)
+	  {
+	    throw new ChessException ("illegal move: " + Move.toUci (move));
+	  }
+	out.writeByte (index);
+	chessMatch.performMove (move);
+      }
+  }
+
+  public static GameRecord decode (DataInput in, boolean decodeMoves,
+				   int[]buffer) throws IOException
+  {
+    String result = RESULTS[in.readUnsignedByte () & 3];
+    Map < String, String > tags = new LinkedHashMap <> ();
+    long tagCount = readVarint (in);
+    for (long i = 0; i < tagCount; i++)
+      {
+	int code = in.readUnsignedByte ();
+	if (code > TAGS.length)
+	  {
+	    throw new IOException ("corrupt tag");
+	  }
+	String name = (code == 0) ? readString (in) : TAGS[code - 1];
+	tags.put (name, readString (in));
+      }
+    int[] moves = new int[(int) readVarint (in)];
+    if (!decodeMoves)
+      {
+	return new GameRecord (tags, result, new int[0]);
+      }
+    ChessMatch chessMatch = GameRecord.startPosition (tags);
+    for (int i = 0; i < moves.length; i++)
+      {
+	int count = sortedLegalMoves (chessMatch, buffer);
+	int index = in.readUnsignedByte ();
+	if (index >= count)
+	  {
+	    throw new IOException ("corrupt move at ply " + (i + 1));
+	  }
+	moves[i] = buffer[index];
+	chessMatch.performMove (moves[i]);
+      }
+    return new GameRecord (tags, result, moves);
+  }
+
+  public static void writeVarint (DataOutput out, long value) throws IOException
+  {
+    while ((value & ~0x7FL) != 0)
+      {
+	out.writeByte ((int) ((value & 0x7F) | 0x80));
+	value >>>= 7;
+      }
+    out.writeByte ((int) value);
+  }
+
+  public static int varintSize (long value)
+  {
+    int size = 1;
+    while ((value & ~0x7FL) != 0)
+      {
+	value >>>= 7;
+	size++;
+      }
+    return size;
+  }
+
+  public static long readVarint (DataInput in) throws IOException
+  {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+      {
+	int b = in.readUnsignedByte ();
+	value |= (long) (b & 0x7F) << shift;
+	if ((b & 0x80) == 0)
+	  {
+	    return value;
+	  }
+      }
+    throw new IOException ("malformed varint");
+  }
+
+  public static void writeString (DataOutput out, String s) throws IOException
+  {
+    byte[] bytes = s.getBytes (StandardCharsets.UTF_8);
+    writeVarint (out, bytes.length);
+    out.write (bytes);
+  }
+
+  public static String readString (DataInput in) throws IOException
+  {
+    byte[] bytes = new byte[(int) readVarint (in)];
+    in.readFully (bytes);
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+}
+
+class CompactGameWriter implements Closeable, Flushable
+{
+  private final DataOutputStream out;
+  private final ByteArrayOutputStream record = new ByteArrayOutputStream ();
+  private final DataOutputStream recordOut = new DataOutputStream (record);
+  private final int[] buffer = new int[256];
+  private long games;
+
+  public CompactGameWriter (OutputStream out) throws IOException
+  {
+    this.out = new DataOutputStream (new BufferedOutputStream (out, 1 << 16));
+    this.out.writeInt (CompactGameFormat.MAGIC);
+  }
+
+  public void write (GameRecord game) throws IOException
+  {
+    record.reset ();
+    CompactGameFormat.encode (game, recordOut, buffer);
+    recordOut.flush ();
+    CompactGameFormat.writeVarint (out, record.size ());
+    record.writeTo (out);
+    games++;
+  }
+
+  public long getGames ()
+  {
+    return games;
+  }
+
+  @Override public void flush () throws IOException
+  {
+    out.flush ();
+  }
+
+  @Override public void close () throws IOException
+  {
+    out.close ();
+  }
+}
+
+class CompactGameReader implements Closeable
+{
+  private final DataInputStream in;
+  private final int[] buffer = new int[256];
+
+  public CompactGameReader (InputStream in) throws IOException
+  {
+    this.in = new DataInputStream (new BufferedInputStream (in, 1 << 16));
+    if (this.in.readInt () != CompactGameFormat.MAGIC)
+      {
+	throw new IOException ("not a compact game file");
+      }
+  }
+
+  // returns null at the end of the file
+  public GameRecord next () throws IOException
+  {
+    return next (true);
+  }
+
+  // reads only the tags and result, skipping over the moves
+  public GameRecord nextHeader () throws IOException
+  {
+    return next (false);
+  }
+
+  private GameRecord next (boolean decodeMoves) throws IOException
+  {
+    int first = in.read ();
+    if (first == -1)
+      {
+	return null;
+      }
+    long length = first & 0x7F;
+    if ((first & 0x80) != 0)
+      {
+	length |= CompactGameFormat.readVarint (in) << 7;
+      }
+    byte[] data = new byte[(int) length];
+    in.readFully (data);
+    return CompactGameFormat.
+      decode (new DataInputStream (new ByteArrayInputStream (data)),
+	      decodeMoves, buffer);
+  }
+
+  @Override public void close () throws IOException
+  {
+    in.close ();
+  }
+}
+
+class MappedRegion
+{
+  private static final int CHUNK_BITS = 30;
+  private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+  private final MappedByteBuffer[] chunks;
+  private final long size;
+
+  private MappedRegion (MappedByteBuffer[]chunks, long size)
+  {
+    this.chunks = chunks;
+    this.size = size;
+  }
+
+  // maps the whole file read-only; a missing file maps as empty
+  public static MappedRegion map (Path file) throws IOException
+  {
+    if (!Files.exists (file))
+      {
+	return new MappedRegion (new MappedByteBuffer[0], 0);
+      }
+    try (FileChannel channel = FileChannel.open (file, StandardOpenOption.READ))
+    {
+      long size = channel.size ();
+      MappedByteBuffer[] chunks =
+	new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+      for (int i = 0; i < chunks.length; i++)
+	{
+	  long start = (long) i << CHUNK_BITS;
+	  chunks[i] = channel.map (FileChannel.MapMode.READ_ONLY, start,
+				   Math.min (CHUNK_SIZE, size - start));
+	}
+      return new MappedRegion (chunks, size);
+    }
+  }
+
+  public long size ()
+  {
+    return size;
+  }
+
+  public byte get (long position)
+  {
+    return chunks[(int) (position >>> CHUNK_BITS)].
+      get ((int) (position & (CHUNK_SIZE - 1)));
+  }
+
+  public long getLong (long position)
+  {
+    int offset = (int) (position & (CHUNK_SIZE - 1));
+    if (offset <= CHUNK_SIZE - 8)
+      {
+	return chunks[(int) (position >>> CHUNK_BITS)].getLong (offset);
+      }
+    long value = 0;
+    for (int i = 0; i < 8; i++)
+      {
+	value = (value << 8) | (get (position + i) & 0xFF);
+      }
+    return value;
+  }
+
+  public int getInt (long position)
+  {
+    int offset = (int) (position & (CHUNK_SIZE - 1));
+    if (offset <= CHUNK_SIZE - 4)
+      {
+	return chunks[(int) (position >>> CHUNK_BITS)].getInt (offset);
+      }
+    return (int) (getLong (position - 4) & 0xFFFFFFFFL);
+  }
+
+  public void get (long position, byte[]dst)
+  {
+    for (int i = 0; i < dst.length;)
+      {
+	ByteBuffer chunk = chunks[(int) ((position + i) >>> CHUNK_BITS)];
+	int offset = (int) ((position + i) & (CHUNK_SIZE - 1));
+	int n = Math.min (dst.length - i, chunk.limit () - offset);
+	chunk.get (offset, dst, i, n);
+	i += n;
+      }
+  }
+}
+
+class PairSort
+{
+  private PairSort ()
+  {
+  }
+
+  // sorts keys[from, to) ascending by (key, value), moving values along
+  public static void sort (long[]keys, long[]values, int from, int to)
+  {
+    while (to - from > 16)
+      {
+	int mid = (from + to) >>> 1;
+	long pivotKey = keys[mid];
+	long pivotValue = values[mid];
+	int i = from;
+	int j = to - 1;
+	while (i <= j)
+	  {
+	    while (compare (keys[i], values[i], pivotKey, pivotValue) < 0)
+	      {
+		i++;
+	      }
+	    while (compare (keys[j], values[j], pivotKey, pivotValue) > 0)
+	      {
+		j--;
+	      }
+	    if (i <= j)
+	      {
+		swap (keys, values, i++, j--);
+	      }
+	  }
+	// recurse into the smaller half to bound the stack depth
+	if (j - from < to - i)
+	  {
+	    sort (keys, values, from, j + 1);
+	    from = i;
+	  }
+	else
+	  {
+	    sort (keys, values, i, to);
+	    to = j + 1;
+	  }
+      }
+    for (int i = from + 1; i < to; i++)
+      {
+	for (int j = i; j > from
+	     && compare (keys[j - 1], values[j - 1], keys[j], values[j]) > 0;
+	     j--)
+	  {
+	    swap (keys, values, j, j - 1);
+	  }
+      }
+  }
+
+  private static int compare (long key1, long value1, long key2, long value2)
+  {
+    int c = Long.compare (key1, key2);
+    return (c != 0) ? c : Long.compare (value1, value2);
+  }
+
+  private static void swap (long[]keys, long[]values, int i, int j)
+  {
+    long key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    long value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+  }
+}
+
+class MoveStatistics
+{
+  private final int move;
+  private long whiteWins;
+  private long draws;
+  private long blackWins;
+  private long unfinished;
+
+  public MoveStatistics (int move)
+  {
+    this.move = move;
+  }
+
+  public void add (int resultCode)
+  {
+    switch (resultCode)
+      {
+      case 1:
+	whiteWins++;
+	break;
+      case 2:
+	blackWins++;
+	break;
+      case 3:
+	draws++;
+	break;
+      default:
+	unfinished++;
+      }
+  }
+
+  public void add (long games, long whiteWins, long draws, long blackWins)
+  {
+    this.whiteWins += whiteWins;
+    this.draws += draws;
+    this.blackWins += blackWins;
+    this.unfinished += games - whiteWins - draws - blackWins;
+  }
+
+  public int getMove ()
+  {
+    return move;
+  }
+
+  public long getGames ()
+  {
+    return whiteWins + draws + blackWins + unfinished;
+  }
+
+  public long getWhiteWins ()
+  {
+    return whiteWins;
+  }
+
+  public long getDraws ()
+  {
+    return draws;
+  }
+
+  public long getBlackWins ()
+  {
+    return blackWins;
+  }
+
+  @Override public String toString ()
+  {
+    return String.format ("%-6s %8d games  +%d =%d -%d", Move.toUci (move),
+			  getGames (), whiteWins, draws, blackWins);
+  }
+}
+
+// games.dat holds length-prefixed compact records, games.off one offset per
+// game id and positions.idx sorted (position key, game id/move/result) pairs.
+// positions.cnt has the number of games the index covered when it was last
+// written; games stored after it, by a crash or an exit without close, are
+// indexed again on open
+class GameDatabase implements Closeable
+{
+  public static final int NO_MOVE = 0xFFFF;
+  private static final int ENTRY_SIZE = 16;
+
+  private final Path directory;
+  private final DataOutputStream gamesOut;
+  private final DataOutputStream offsetsOut;
+  private final ByteArrayOutputStream record = new ByteArrayOutputStream ();
+  private final DataOutputStream recordOut = new DataOutputStream (record);
+  private final int[] buffer = new int[256];
+
+  private volatile MappedRegion games;
+  private volatile MappedRegion offsets;
+  private volatile MappedRegion index;
+  private long gamesSize;
+  private int gameCount;
+
+  private long[] pendingKeys = new long[1024];
+  private long[] pendingValues = new long[1024];
+  private int pending;
+
+  public GameDatabase (Path directory) throws IOException
+  {
+    this.directory = Files.createDirectories (directory);
+    gamesSize = Files.exists (file ("games.dat"))
+      ? Files.size (file ("games.dat")) : 0;
+    gameCount = Files.exists (file ("games.off"))
+      ? (int) (Files.size (file ("games.off")) / 8) : 0;
+    remap ();
+    dropIncompleteGames ();
+    gamesOut = append (file ("games.dat"));
+    offsetsOut = append (file ("games.off"));
+    reindex ();
+  }
+
+  // the buffers of games.dat and games.off flush independently, so a crash
+  // can leave offsets of records that were never written
+  private void dropIncompleteGames () throws IOException
+  {
+    int complete = gameCount;
+    while (complete > 0 && !isComplete (complete - 1))
+      {
+	complete--;
+      }
+    if (complete == gameCount)
+      {
+	return;
+      }
+    long end = (complete == 0) ? 0 : recordEnd (complete - 1);
+    try (FileChannel channel =
+	 FileChannel.open (file ("games.off"), StandardOpenOption.WRITE))
+    {
+      channel.truncate ((long) complete * 8);
+    }
+    try (FileChannel channel =
+	 FileChannel.open (file ("games.dat"), StandardOpenOption.WRITE))
+    {
+      channel.truncate (end);
+    }
+    gameCount = complete;
+    gamesSize = end;
+    remap ();
+  }
+
+  private boolean isComplete (int id)
+  {
+    long position = offsets.getLong ((long) id * 8);
+    return position < gamesSize && recordEnd (id) <= gamesSize;
+  }
+
+  // the offset just past the record of the game, which may lie beyond
+  // games.dat when the record is incomplete
+  private long recordEnd (int id)
+  {
+    long position = offsets.getLong ((long) id * 8);
+    long length = 0;
+    int shift = 0;
+    int b;
+    do
+      {
+	if (position >= gamesSize)
+	  {
+	    return Long.MAX_VALUE;
+	  }
+	b = games.get (position++);
+	length |= (long) (b & 0x7F) << shift;
+	shift += 7;
+      }
+    while ((b & 0x80) != 0);
+    return position + length;
+  }
+
+  // indexes the games stored after the last commit; a game found in the
+  // index already, when a crash came between the index and its count, is
+  // not added twice
+  private void reindex () throws IOException
+  {
+    int indexed = Files.exists (file ("positions.cnt"))
+      ? Integer.parseInt (Files.readString (file ("positions.cnt")).trim ())
+      : 0;
+    if (indexed >= gameCount)
+      {
+	return;
+      }
+    for (int id = indexed; id < gameCount; id++)
+      {
+	GameRecord game = game (id);
+	long result = CompactGameFormat.resultCode (game.getResult ());
+	long last = game.replay ().positionKey ();
+	if (!contains (index, last,
+		       ((long) id << 32) | ((long) NO_MOVE << 16) | result))
+	  {
+	    index (id, game);
+	  }
+      }
+    commit ();
+  }
+
+  private Path file (String name)
+  {
+    return directory.resolve (name);
+  }
+
+  private static DataOutputStream append (Path file) throws IOException
+  {
+    return new DataOutputStream (new BufferedOutputStream
+				 (Files.newOutputStream
+				  (file, StandardOpenOption.CREATE,
+				   StandardOpenOption.APPEND), 1 << 16));
+  }
+
+  private void remap () throws IOException
+  {
+    games = MappedRegion.map (file ("games.dat"));
+    offsets = MappedRegion.map (file ("games.off"));
+    index = MappedRegion.map (file ("positions.idx"));
+  }
+
+  // appends the game; it becomes searchable after the next commit
+  public synchronized int add (GameRecord game) throws IOException
+  {
+    record.reset ();
+    CompactGameFormat.encode (game, recordOut, buffer);
+    recordOut.flush ();
+    int id = gameCount++;
+    offsetsOut.writeLong (gamesSize);
+    CompactGameFormat.writeVarint (gamesOut, record.size ());
+    record.writeTo (gamesOut);
+    gamesSize += CompactGameFormat.varintSize (record.size ()) + record.size ();
+    index (id, game);
+    return id;
+  }
+
+  private void index (int id, GameRecord game)
+  {
+    long result = CompactGameFormat.resultCode (game.getResult ());
+    ChessMatch chessMatch = GameRecord.startPosition (game.getTags ());
+  for (int move:game.getMoves ())
+      {
+	addEntry (chessMatch.positionKey (),
+		  ((long) id << 32) | ((long) move << 16) | result);
+	chessMatch.performMove (move);
+      }
+    addEntry (chessMatch.positionKey (),
+	      ((long) id << 32) | ((long) NO_MOVE << 16) | result);
+  }
+
+  private void addEntry (long key, long value)
+  {
+    if (pending == pendingKeys.length)
+      {
+	pendingKeys = Arrays.copyOf (pendingKeys, pending * 2);
+	pendingValues = Arrays.copyOf (pendingValues, pending * 2);
+      }
+    pendingKeys[pending] = key;
+    pendingValues[pending++] = value;
+  }
+
+  // merges the pending entries into a new index file and remaps everything
+  public synchronized void commit () throws IOException
+  {
+    gamesOut.flush ();
+    offsetsOut.flush ();
+    PairSort.sort (pendingKeys, pendingValues, 0, pending);
+    MappedRegion old = index;
+    long oldEntries = old.size () / ENTRY_SIZE;
+    Path tmp = file ("positions.idx.tmp");
+    try (DataOutputStream out =
+	 new DataOutputStream (new BufferedOutputStream
+			       (Files.newOutputStream (tmp), 1 << 16)))
+    {
+      long i = 0;
+      int j = 0;
+      while (i < oldEntries || j < pending)
+	{
+	  boolean takeOld = j == pending
+	    || (i < oldEntries
+		&& (Long.compare (old.getLong (i * ENTRY_SIZE), pendingKeys[j]) < 0
+		    || (old.getLong (i * ENTRY_SIZE) == pendingKeys[j]
+			&& old.getLong (i * ENTRY_SIZE + 8) <= pendingValues[j])));
+	  if (takeOld)
+	    {
+	      out.writeLong (old.getLong (i * ENTRY_SIZE));
+	      out.writeLong (old.getLong (i * ENTRY_SIZE + 8));
+	      i++;
+	    }
+	  else
+	    {
+	      out.writeLong (pendingKeys[j]);
+	      out.writeLong (pendingValues[j]);
+	      j++;
+	    }
+	}
+    }
+    Files.move (tmp, file ("positions.idx"), StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+    Path count = file ("positions.cnt.tmp");
+    Files.writeString (count, gameCount + "\n");
+    Files.move (count, file ("positions.cnt"),
+		StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+    pending = 0;
+    remap ();
+  }
+
+  // number of games visible to queries
+  public int size ()
+  {
+    return (int) (offsets.size () / 8);
+  }
+
+  public GameRecord game (int id) throws IOException
+  {
+    MappedRegion games = this.games;
+    long position = offsets.getLong ((long) id * 8);
+    long length = 0;
+    int shift = 0;
+    int b;
+    do
+      {
+	b = games.get (position++);
+	length |= (long) (b & 0x7F) << shift;
+	shift += 7;
+      }
+    while ((b & 0x80) != 0);
+    byte[] data = new byte[(int) length];
+    games.get (position, data);
+    return CompactGameFormat.
+      decode (new DataInputStream (new ByteArrayInputStream (data)), true,
+	      new int[256]);
+  }
+
+  // ids of the games that reached the position, in ascending order
+  public int[] gamesReaching (long key, int limit)
+  {
+    MappedRegion index = this.index;
+    int[] ids = new int[16];
+    int count = 0;
+    long entries = index.size () / ENTRY_SIZE;
+    for (long i = lowerBound (index, key);
+	 i < entries && index.getLong (i * ENTRY_SIZE) == key && count < limit;
+	 i++)
+      {
+	int id = (int) (index.getLong (i * ENTRY_SIZE + 8) >>> 32);
+	if (count > 0 && ids[count - 1] == id)
+	  {
+	    continue;
+	  }
+	if (count == ids.length)
+	  {
+	    ids = Arrays.copyOf (ids, count * 2);
+	  }
+	ids[count++] = id;
+      }
+    return Arrays.copyOf (ids, count);
+  }
+
+  // the moves played from the position, most popular first. A game that
+  // reaches the position again with the same move counts once; entries
+  // sort by game id and then move, so its repeats are adjacent
+  public List < MoveStatistics > movesFrom (long key)
+  {
+    MappedRegion index = this.index;
+    Map < Integer, MoveStatistics > moves = new HashMap <> ();
+    long entries = index.size () / ENTRY_SIZE;
+    long previous = -1;
+    for (long i = lowerBound (index, key);
+	 i < entries && index.getLong (i * ENTRY_SIZE) == key; i++)
+      {
+	long value = index.getLong (i * ENTRY_SIZE + 8);
+	int move = (int) ((value >>> 16) & 0xFFFF);
+	boolean repeat = (value >>> 16) == previous;
+	previous = value >>> 16;
+	if (move != NO_MOVE && !repeat)
+	  {
+	    moves.computeIfAbsent (move, MoveStatistics::new).
+	      add ((int) (value & 0xFF));
+	  }
+      }
+    List < MoveStatistics > list = new ArrayList <> (moves.values ());
+    list.sort ((a, b) -> Long.compare (b.getGames (), a.getGames ()));
+    return list;
+  }
+
+  // whether the index holds exactly this entry; the values of one key are
+  // sorted too
+  private static boolean contains (MappedRegion index, long key, long value)
+  {
+    long low = lowerBound (index, key);
+    long high = index.size () / ENTRY_SIZE;
+    while (low < high)
+      {
+	long mid = (low + high) >>> 1;
+	long k = index.getLong (mid * ENTRY_SIZE);
+	long v = index.getLong (mid * ENTRY_SIZE + 8);
+	if (k == key && v == value)
+	  {
+	    return true;
+	  }
+	if (k == key && v < value)
+	  {
+	    low = mid + 1;
+	  }
+	else
+	  {
+	    high = mid;
+	  }
+      }
+    return false;
+  }
+
+  private static long lowerBound (MappedRegion index, long key)
+  {
+    long low = 0;
+    long high = index.size () / ENTRY_SIZE;
+    while (low < high)
+      {
+	long mid = (low + high) >>> 1;
+	if (index.getLong (mid * ENTRY_SIZE) < key)
+	  {
+	    low = mid + 1;
+	  }
+	else
+	  {
+	    high = mid;
+	  }
+      }
+    return low;
+  }
+
+  @Override public synchronized void close () throws IOException
+  {
+    commit ();
+    gamesOut.close ();
+    offsetsOut.close ();
+  }
+}
+
+// open-addressing (position key, move) -> result counters kept in direct
+// buffers; segments are chosen by the top key bits so that sorting each
+// segment sorts the whole map
+class OffHeapCounterMap
+{
+  public static final int ENTRY_SIZE = 32;
+  private static final int SEGMENT_BITS = 6;
+  private static final int MAX_SEGMENT_CAPACITY = (1 << 30) / ENTRY_SIZE;
+
+  private final ByteBuffer[] segments = new ByteBuffer[1 << SEGMENT_BITS];
+  private final int[] sizes = new int[1 << SEGMENT_BITS];
+  private boolean sealed;
+
+  public OffHeapCounterMap (long expectedEntries)
+  {
+    long perSegment = (expectedEntries >>> SEGMENT_BITS) * 4 / 3;
+    int capacity = 1024;
+    while (capacity < perSegment && capacity < MAX_SEGMENT_CAPACITY)
+      {
+	capacity <<= 1;
+      }
+    for (int i = 0; i < segments.length; i++)
+      {
+	segments[i] = ByteBuffer.allocateDirect (capacity * ENTRY_SIZE);
+      }
+  }
+
+  public long size ()
+  {
+    long size = 0;
+  for (int s:sizes)
+      {
+	size += s;
+      }
+    return size;
+  }
+
+  private static int segment (long key)
+  {
+    // flipping the sign bit keeps segment order equal to signed key order
+    return (int) ((key >>> (64 - SEGMENT_BITS)) ^ (1 << (SEGMENT_BITS - 1)));
+  }
+
+  private static int hash (long key, int move)
+  {
+    long h = (key ^ (move * 0x9E3779B97F4A7C15L)) * 0xBF58476D1CE4E5B9L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  public void add (long key, int move, int resultCode)
+  {
+    if (sealed)
+      {
+	throw new IllegalStateException ("map has been written");
+      }
+    int s = segment (key);
+    ByteBuffer segment = segments[s];
+    int mask = segment.capacity () / ENTRY_SIZE - 1;
+    int slot = hash (key, move) & mask;
+    while (true)
+      {
+	int base = slot * ENTRY_SIZE;
+	if (segment.getInt (base + 12) == 0)
+	  {
+	    segment.putLong (base, key);
+	    segment.putInt (base + 8, move);
+	    increment (segment, base, resultCode);
+	    if (++sizes[s] > (mask + 1) / 4 * 3)
+	      {
+		grow (s);
+	      }
+	    return;
+	  }
+	if (segment.getLong (base) == key && segment.getInt (base + 8) == move)
+	  {
+	    increment (segment, base, resultCode);
+	    return;
+	  }
+	slot = (slot + 1) & mask;
+      }
+  }
+
+  // counters: games, white wins, draws, black wins
+  private static void increment (ByteBuffer segment, int base, int resultCode)
+  {
+    segment.putInt (base + 12, segment.getInt (base + 12) + 1);
+    if (resultCode >= 1)
+      {
+	int offset = base + 12 + 4 * ((resultCode == 1) ? 1
+				      : (resultCode == 3) ? 2 : 3);
+	segment.putInt (offset, segment.getInt (offset) + 1);
+      }
+  }
+
+  private void grow (int s)
+  {
+    ByteBuffer old = segments[s];
+    int capacity = old.capacity () / ENTRY_SIZE * 2;
+    if (capacity > MAX_SEGMENT_CAPACITY)
+      {
+	throw new IllegalStateException ("counter map segment is full");
+      }
+    ByteBuffer segment = ByteBuffer.allocateDirect (capacity * ENTRY_SIZE);
+    int mask = capacity - 1;
+    for (int base = 0; base < old.capacity (); base += ENTRY_SIZE)
+      {
+	if (old.getInt (base + 12) == 0)
+	  {
+	    continue;
+	  }
+	int slot = hash (old.getLong (base), old.getInt (base + 8)) & mask;
+	while (segment.getInt (slot * ENTRY_SIZE + 12) != 0)
+	  {
+	    slot = (slot + 1) & mask;
+	  }
+	copy (old, base, segment, slot * ENTRY_SIZE);
+      }
+    segments[s] = segment;
+  }
+
+  private static void copy (ByteBuffer from, int source, ByteBuffer to,
+			    int target)
+  {
+    for (int i = 0; i < ENTRY_SIZE; i += 8)
+      {
+	to.putLong (target + i, from.getLong (source + i));
+      }
+  }
+
+  // sorts every segment in place and writes the entries in (key, move)
+  // order; the map cannot be updated afterwards
+  public void writeSorted (DataOutputStream out) throws IOException
+  {
+    sealed = true;
+    byte[] entry = new byte[ENTRY_SIZE];
+  for (ByteBuffer segment:segments)
+      {
+	int count = 0;
+	for (int base = 0; base < segment.capacity (); base += ENTRY_SIZE)
+	  {
+	    if (segment.getInt (base + 12) != 0)
+	      {
+		if (base != count * ENTRY_SIZE)
+		  {
+		    copy (segment, base, segment, count * ENTRY_SIZE);
+		  }
+		count++;
+	      }
+	  }
+	sort (segment, 0, count - 1);
+	for (int i = 0; i < count; i++)
+	  {
+	    segment.get (i * ENTRY_SIZE, entry);
+	    out.write (entry);
+	  }
+      }
+  }
+
+  private static int compare (ByteBuffer segment, int i, int j)
+  {
+    int c = Long.compare (segment.getLong (i * ENTRY_SIZE),
+			  segment.getLong (j * ENTRY_SIZE));
+    return (c != 0) ? c : Integer.compare (segment.getInt (i * ENTRY_SIZE + 8),
+					   segment.getInt (j * ENTRY_SIZE + 8));
+  }
+
+  private static void swap (ByteBuffer segment, int i, int j)
+  {
+    for (int k = 0; k < ENTRY_SIZE; k += 8)
+      {
+	long tmp = segment.getLong (i * ENTRY_SIZE + k);
+	segment.putLong (i * ENTRY_SIZE + k, segment.getLong (j * ENTRY_SIZE + k));
+	segment.putLong (j * ENTRY_SIZE + k, tmp);
+      }
+  }
+
+  // quicksort on [low, high] with the median entry parked at high as pivot
+  private static void sort (ByteBuffer segment, int low, int high)
+  {
+    while (low < high)
+      {
+	swap (segment, (low + high) >>> 1, high);
+	int store = low;
+	for (int i = low; i < high; i++)
+	  {
+	    if (compare (segment, i, high) < 0)
+	      {
+		swap (segment, i, store++);
+	      }
+	  }
+	swap (segment, store, high);
+	if (store - low < high - store)
+	  {
+	    sort (segment, low, store - 1);
+	    low = store + 1;
+	  }
+	else
+	  {
+	    sort (segment, store + 1, high);
+	    high = store - 1;
+	  }
+      }
+  }
 }
 
+class OpeningTreeBuilder
+{
+  private final int maxPly;
+  private final OffHeapCounterMap counters;
+  private long games;
+
+  public OpeningTreeBuilder (int maxPly, long expectedEntries)
+  {
+    this.maxPly = maxPly;
+    this.counters = new OffHeapCounterMap (expectedEntries);
+  }
+
+  public void add (GameRecord game)
+  {
+    int result = CompactGameFormat.resultCode (game.getResult ());
+    int[] moves = game.getMoves ();
+    ChessMatch chessMatch = GameRecord.startPosition (game.getTags ());
+    for (int ply = 0; ply < moves.length && ply < maxPly; ply++)
+      {
+	counters.add (chessMatch.positionKey (), moves[ply], result);
+	chessMatch.performMove (moves[ply]);
+      }
+    games++;
+  }
+
+  public long getGames ()
+  {
+    return games;
+  }
+
+  public long getPositions ()
+  {
+    return counters.size ();
+  }
 
+  public void write (Path file) throws IOException
+  {
+    try (DataOutputStream out =
+	 new DataOutputStream (new BufferedOutputStream
+			       (Files.newOutputStream (file), 1 << 16)))
+    {
+      out.writeInt (OpeningTree.MAGIC);
+      out.writeInt (maxPly);
+      out.writeLong (counters.size ());
+      out.writeLong (games);
+      out.writeLong (0);
+      counters.writeSorted (out);
+    }
+  }
+}
 
-class BoardView
+class OpeningTree
 {
+  public static final int MAGIC = 0x43485431;	// "CHT1"
+  private static final int HEADER_SIZE = 32;
+  private static final int ENTRY_SIZE = OffHeapCounterMap.ENTRY_SIZE;
 
-  public static void clearScreen ()
+  private final MappedRegion region;
+  private final long entries;
+
+  public OpeningTree (Path file) throws IOException
   {
-    System.out.print ("\033[H\033[2J");
-    System.out.flush ();
+    region = MappedRegion.map (file);
+    if (region.size () < HEADER_SIZE || region.getInt (0) != MAGIC)
+      {
+	throw new IOException ("not an opening tree file");
+      }
+    entries = region.getLong (8);
   }
 
-  public static ChessPosition readChessPosition (Scanner sc)
+  public long getEntries ()
   {
-    try
-    {
-      String s = sc.nextLine ();
-      char column = s.charAt (0);
-      int row = Integer.parseInt (s.substring (1));
-      return new ChessPosition (column, row);
-    }
-    catch (RuntimeException e)
-    {
-      throw new
-	InputMismatchException
-	("Error reading the position on the board. Valid values between a1 to h8");
-    }
+    return entries;
   }
-  public static void printMatch (ChessMatch chessMatch,
-				 List < ChessPiece > capturedPieces)
+
+  public List < MoveStatistics > movesFrom (long key)
   {
-    printBoard (chessMatch.getPieces ());
-    System.out.println ();
-    capturedPieces (capturedPieces);
-    System.out.println ("Shift: " + chessMatch.getTurn ());
-    if (!chessMatch.isCheckMate ())
+    long low = 0;
+    long high = entries;
+    while (low < high)
       {
-	System.out.println ("waiting for the player: " +
-			    chessMatch.getCurrentPlayer ());
-	if (chessMatch.isCheck ())
+	long mid = (low + high) >>> 1;
+	if (region.getLong (HEADER_SIZE + mid * ENTRY_SIZE) < key)
+	  {
+	    low = mid + 1;
+	  }
+	else
 	  {
-	    System.out.println ("Check!");
+	    high = mid;
 	  }
       }
-    else
+    List < MoveStatistics > moves = new ArrayList <> ();
+    for (long i = low; i < entries; i++)
       {
-	System.out.println ("CHECKMATE!");
-	System.out.println ("Winner: " + chessMatch.getCurrentPlayer ());
+	long base = HEADER_SIZE + i * ENTRY_SIZE;
+	if (region.getLong (base) != key)
+	  {
+	    break;
+	  }
+	MoveStatistics statistics = new MoveStatistics (region.getInt (base + 8));
+	statistics.add (region.getInt (base + 12), region.getInt (base + 16),
+			region.getInt (base + 20), region.getInt (base + 24));
+	moves.add (statistics);
       }
+    moves.sort ((a, b) -> Long.compare (b.getGames (), a.getGames ()));
+    return moves;
+  }
+}
+
+class PgnImportPipeline
+{
+  private static final Object END = new Object ();
 
+  private final int workers;
+  private final int queueCapacity;
+  private final int batchSize;
+  private final Consumer < List < GameRecord >> sink;
+
+  public PgnImportPipeline (int workers, int queueCapacity, int batchSize,
+			    Consumer < List < GameRecord >> sink)
+  {
+    if (workers < 1 || queueCapacity < 1 || batchSize < 1)
+      {
+	throw new IllegalArgumentException ("invalid pipeline size");
+      }
+    this.workers = workers;
+    this.queueCapacity = queueCapacity;
+    this.batchSize = batchSize;
+    this.sink = sink;
   }
 
-  public static void printBoard (ChessPiece[][]pieces)
+  public ImportReport run (Path file) throws IOException, InterruptedException
   {
-    for (int i = 0; i < pieces.length; i++)
+    BlockingQueue < Object > chunks = new ArrayBlockingQueue <> (queueCapacity);
+    BlockingQueue < Object > results = new ArrayBlockingQueue <> (queueCapacity);
+    // chunks read but not yet written; bounds what the writer holds back
+    // while it waits for an earlier chunk
+    int window = queueCapacity + workers * 8;
+    Semaphore inFlight = new Semaphore (window);
+    ImportReport report = new ImportReport ();
+    ExecutorService pool = Executors.newFixedThreadPool (workers + 1);
+    long start = System.nanoTime ();
+    try
+    {
+      for (int i = 0; i < workers; i++)
+	{
+	  pool.submit (() -> validateStage (chunks, results));
+	}
+      Future < ? > writer =
+	pool.submit (() -> writeStage (results, window, inFlight, report));
+
+      // reader stage
+      try (PgnChunkReader reader = new PgnChunkReader (Files.newInputStream (file)))
       {
-	System.out.print ((8 - i) + " ");
-	for (int j = 0; j < pieces.length; j++)
+	long index = 0;
+	byte[] chunk;
+	while ((chunk = reader.next ()) != null)
 	  {
-	    printPiece (pieces[i][j], false);
+	    inFlight.acquire ();
+	    chunks.put (new Chunk (index++, chunk));
+	  }
+      }
+      finally
+      {
+	for (int i = 0; i < workers; i++)
+	  {
+	    chunks.put (END);
 	  }
-	System.out.println ();
       }
-    System.out.println ("  a b c d e f g h");
+      writer.get ();
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException ("import failed", e.getCause ());
+    }
+    finally
+    {
+      pool.shutdownNow ();
+    }
+    report.finish (System.nanoTime () - start);
+    return report;
   }
 
-  public static void printBoard (ChessPiece[][]pieces,
-				 boolean[][]possibleMoves)
+  private Void validateStage (BlockingQueue < Object > chunks,
+			      BlockingQueue < Object > results)
+    throws InterruptedException
   {
-    for (int i = 0; i < pieces.length; i++)
+    while (true)
       {
-	System.out.print ((8 - i) + " ");
-	for (int j = 0; j < pieces.length; j++)
+	Object o = chunks.take ();
+	if (o == END)
 	  {
-	    printPiece (pieces[i][j], possibleMoves[i][j]);
+	    results.put (END);
+	    return null;
 	  }
-	System.out.println ();
+	Chunk chunk = (Chunk) o;
+	results.put (validate (chunk));
       }
-    System.out.println ("  a b c d e f g h");
   }
 
-  private static void printPiece (ChessPiece piece, boolean background)
+  private Result validate (Chunk chunk)
   {
-    if (background)
-      {
-	System.out.print (BoardColors.ANSI_BLUE_BACKGROUND);
-      }
-    if (piece == null)
-      {
-	System.out.print ("-" + BoardColors.ANSI_RESET);
-      }
-    else
+    PgnGame game;
+    try
+    {
+      game = PgnParser.parse (new String (chunk.data, StandardCharsets.UTF_8));
+    }
+    catch (RuntimeException e)
+    {
+      return new Result (chunk.index, null, e.getMessage ());
+    }
+    ChessMatch chessMatch;
+    try
+    {
+      chessMatch = GameRecord.startPosition (game.getTags ());
+    }
+    catch (RuntimeException e)
+    {
+      return new Result (chunk.index, null, e.getMessage ());
+    }
+    int[] moves = new int[game.getMoves ().size ()];
+    int ply = 0;
+    try
+    {
+    for (String san:game.getMoves ())
+	{
+	  if (chessMatch.isCheckMate ())
+	    {
+	      ply++;
+	      throw new ChessException ("move after checkmate");
+	    }
+	  moves[ply++] = San.parse (chessMatch, san);
+	  chessMatch.performMove (moves[ply - 1]);
+	}
+    }
+    catch (RuntimeException e)
+    {
+      return new Result (chunk.index, null,
+			 "ply " + ply + " (" + game.getMoves ().get (ply - 1) +
+			 "): " + e.getMessage ());
+    }
+    return new Result (chunk.index,
+		       new GameRecord (game.getTags (), game.getResult (),
+				       moves), null);
+  }
+
+  // writes the results in input order, whatever order the workers finish
+  // in; at most window of them are in flight, so a ring of that size holds
+  // the ones that arrive early
+  private Void writeStage (BlockingQueue < Object > results, int window,
+			   Semaphore inFlight, ImportReport report)
+    throws InterruptedException
+  {
+    List < GameRecord > batch = new ArrayList <> (batchSize);
+    Result[] early = new Result[window];
+    long next = 0;
+    RuntimeException failure = null;
+    int finished = 0;
+    while (finished < workers)
       {
-	if (piece.getColor () == Color.WHITE)
+	Object o = results.take ();
+	if (o == END)
 	  {
-	    System.out.print (BoardColors.ANSI_WHITE + piece +
-			      BoardColors.ANSI_RESET);
+	    finished++;
+	    continue;
 	  }
-	else
+	Result arrived = (Result) o;
+	early[(int) (arrived.index % window)] = arrived;
+	Result result;
+	while ((result = early[(int) (next % window)]) != null
+	       && result.index == next)
 	  {
-	    System.out.print (BoardColors.ANSI_YELLOW + piece +
-			      BoardColors.ANSI_RESET);
+	    early[(int) (next++ % window)] = null;
+	    inFlight.release ();
+	    if (result.rejection != null)
+	      {
+		report.reject (result.index, result.rejection);
+		continue;
+	      }
+	    report.accept ();
+	    batch.add (result.game);
+	    if (batch.size () == batchSize)
+	      {
+		failure = flush (batch, failure);
+		batch = new ArrayList <> (batchSize);
+	      }
 	  }
       }
-    System.out.print (" ");
+    failure = flush (batch, failure);
+    if (failure != null)
+      {
+	throw failure;
+      }
+    return null;
+  }
+
+  // keeps draining after a sink failure so the other stages never block
+  private RuntimeException flush (List < GameRecord > batch,
+				  RuntimeException failure)
+  {
+    if (failure != null || batch.isEmpty ())
+      {
+	return failure;
+      }
+    try
+    {
+      sink.accept (batch);
+      return null;
+    }
+    catch (RuntimeException e)
+    {
+      return e;
+    }
   }
-  private static void capturedPieces (List < ChessPiece > chessPieces)
+
+  private static class Chunk
   {
-    List < ChessPiece > white =
-      chessPieces.stream ().filter (x->x.getColor () ==
-				    Color.WHITE).collect (Collectors.
-							  toList ());
+    final long index;
+    final byte[] data;
 
-    List < ChessPiece > black =
-      chessPieces.stream ().filter (x->x.getColor () ==
-				    Color.BLACK).collect (Collectors.
-							  toList ());
-    System.out.println ("captured pieces: ");
-    System.out.print ("white pieces: ");
-    System.out.print (BoardColors.ANSI_WHITE);
-    System.out.println (Arrays.toString (white.toArray ()));
-    System.out.print (BoardColors.ANSI_RESET);
-    System.out.print ("black pieces: ");
-    System.out.print (BoardColors.ANSI_YELLOW);
-    System.out.println (Arrays.toString (black.toArray ()));
+    Chunk (long index, byte[]data)
+    {
+      this.index = index;
+      this.data = data;
+    }
+  }
 
+  private static class Result
+  {
+    final long index;
+    final GameRecord game;
+    final String rejection;
 
+    Result (long index, GameRecord game, String rejection)
+    {
+      this.index = index;
+      this.game = game;
+      this.rejection = rejection;
+    }
   }
 }
 
 
 public class Main
 {
-  public static void main (String[]args)
+  public static void main (String[]args) throws Exception
   {
+    if (args.length > 0)
+      {
+	runCommand (args);
+	printSearchStats ();
+	return;
+      }
     // write your code here
     Scanner sc = new Scanner (System.in);
     ChessMatch chessMatch = new ChessMatch ();
       List < ChessPiece > captureChessPieces = new ArrayList <> ();
-      System.out.print (BoardColors.ANSI_YELLOW_BACKGROUND);
-      System.out.print (BoardColors.ANSI_BLACK);
-      System.out.println ("WELCOME TO CHESS GAME FOR CONSOLE\n\n");
-      System.out.print ("To start the game Type y or yes :");
+      BoardRenderer view = new BoardRenderer (System.out, true);
+    // a GUI talks through pipes and its first line is "uci", which must
+    // not be preceded by the banner; a player at a terminal needs the
+    // prompt before typing
+    boolean terminal = System.console () != null;
+    if (terminal)
+      {
+	printBanner ();
+      }
     String init = sc.nextLine ();
+    if (init.equals ("uci"))
+      {
+	// a GUI started us without arguments
+	UciEngine engine = new UciEngine (sc, System.out);
+	engine.handle (init);
+	engine.run ();
+	printSearchStats ();
+	return;
+      }
+    if (!terminal)
+      {
+	printBanner ();
+	System.out.println ();
+      }
     if (init.equals ("Y") || init.equals ("y") || init.equals ("yes")
 	|| init.equals ("YES"))
       {
@@ -1501,15 +9702,13 @@ public class Main
 	    try
 	    {
 	      System.out.print (BoardColors.ANSI_RESET);
-	      BoardView.clearScreen ();
-	      BoardView.printMatch (chessMatch, captureChessPieces);
+	      view.renderMatch (chessMatch, captureChessPieces);
 	      System.out.println ();
 	      System.out.print ("home position: ");
 	      ChessPosition source = BoardView.readChessPosition (sc);
 
 	        boolean[][] possibleMoves = chessMatch.possibleMoves (source);
-	        BoardView.clearScreen ();
-	        BoardView.printBoard (chessMatch.getPieces (), possibleMoves);
+	        view.renderBoard (chessMatch.getBoardView (), possibleMoves);
 	        System.out.println ();
 	        System.out.print ("target position: ");
 	      ChessPosition target = BoardView.readChessPosition (sc);
@@ -1535,8 +9734,7 @@ public class Main
 	    }
 	  }
 
-	BoardView.clearScreen ();
-	BoardView.printMatch (chessMatch, captureChessPieces);
+	view.renderMatch (chessMatch, captureChessPieces);
 
       }
     else
@@ -1545,4 +9743,507 @@ public class Main
       }
 
   }
+
+  private static void printBanner ()
+  {
+    System.out.print (BoardColors.ANSI_YELLOW_BACKGROUND);
+    System.out.print (BoardColors.ANSI_BLACK);
+    System.out.println ("WELCOME TO CHESS GAME FOR CONSOLE\n\n");
+    System.out.print ("To start the game Type y or yes :");
+  }
+
+  // on stderr, so that UCI output on stdout stays clean
+  private static void printSearchStats ()
+  {
+    if (Search.STATS)
+      {
+	System.err.print (Search.getTotalStats ().report ());
+      }
+  }
+
+  private static void runCommand (String[]args) throws Exception
+  {
+    int threads = Runtime.getRuntime ().availableProcessors ();
+    if (args[0].equals ("import") && args.length >= 2)
+      {
+	ImportReport report;
+	if (args.length >= 3)
+	  {
+	    try (CompactGameWriter writer =
+		 new CompactGameWriter (Files.newOutputStream (Paths.get (args[2]))))
+	    {
+	      report =
+		new PgnImportPipeline (threads, 1024, 256,
+				       batch -> writeGames (writer, batch)).
+		run (Paths.get (args[1]));
+	    }
+	  }
+	else
+	  {
+	    report =
+	      new PgnImportPipeline (threads, 1024, 256, batch -> { }).
+	      run (Paths.get (args[1]));
+	  }
+	System.out.println (report);
+      for (String rejection:report.getRejections ())
+	  {
+	    System.out.println (rejection);
+	  }
+      }
+    else if (args[0].equals ("dbadd") && args.length >= 3)
+      {
+	try (GameDatabase database = new GameDatabase (Paths.get (args[1]));
+	     CompactGameReader reader =
+	     new CompactGameReader (Files.newInputStream (Paths.get (args[2]))))
+	{
+	  GameRecord game;
+	  while ((game = reader.next ()) != null)
+	    {
+	      database.add (game);
+	    }
+	}
+      }
+    else if (args[0].equals ("explore") && args.length >= 2)
+      {
+	try (GameDatabase database = new GameDatabase (Paths.get (args[1])))
+	{
+	  ChessMatch chessMatch = new ChessMatch ();
+	  for (int i = 2; i < args.length; i++)
+	    {
+	      chessMatch.performMove (San.parse (chessMatch, args[i]));
+	    }
+	  long key = chessMatch.positionKey ();
+	  System.out.println (database.gamesReaching (key, Integer.MAX_VALUE).
+			      length + " games");
+	for (MoveStatistics statistics:database.movesFrom (key))
+	    {
+	      System.out.println (statistics);
+	    }
+	}
+      }
+    else if (args[0].equals ("buildtree") && args.length >= 3)
+      {
+	int maxPly = (args.length >= 4) ? Integer.parseInt (args[3]) : 20;
+	OpeningTreeBuilder builder = new OpeningTreeBuilder (maxPly, 1 << 20);
+	try (CompactGameReader reader =
+	     new CompactGameReader (Files.newInputStream (Paths.get (args[2]))))
+	{
+	  GameRecord game;
+	  while ((game = reader.next ()) != null)
+	    {
+	      builder.add (game);
+	    }
+	}
+	builder.write (Paths.get (args[1]));
+	System.out.println (builder.getGames () + " games, " +
+			    builder.getPositions () + " position moves");
+      }
+    else if (args[0].equals ("tree") && args.length >= 2)
+      {
+	OpeningTree tree = new OpeningTree (Paths.get (args[1]));
+	ChessMatch chessMatch = new ChessMatch ();
+	for (int i = 2; i < args.length; i++)
+	  {
+	    chessMatch.performMove (San.parse (chessMatch, args[i]));
+	  }
+      for (MoveStatistics statistics:tree.movesFrom (chessMatch.positionKey ()))
+	  {
+	    System.out.println (statistics);
+	  }
+      }
+    else if (args[0].equals ("serve"))
+      {
+	int port = (args.length >= 2) ? Integer.parseInt (args[1]) : 7878;
+	SessionRegistry registry = sessionRegistry (args, threads);
+	GameServer server = new GameServer (port, registry);
+	System.out.println ("listening on 127.0.0.1:" + server.getPort ());
+	server.serve ();
+      }
+    else if (args[0].equals ("http"))
+      {
+	int port = (args.length >= 2) ? Integer.parseInt (args[1]) : 8080;
+	HttpMoveApi api =
+	  new HttpMoveApi (port, sessionRegistry (args, threads), threads * 4);
+	api.start ();
+	System.out.println ("listening on http://127.0.0.1:" + api.getPort ());
+      }
+    else if (args[0].equals ("uci"))
+      {
+	new UciEngine (new Scanner (System.in), System.out).run ();
+      }
+    else if (args[0].equals ("epd") && args.length >= 2)
+      {
+	SearchLimits limits = SearchLimits.time (1000);
+	int workers = threads;
+	boolean metrics = false;
+	for (int i = 2; i < args.length; i++)
+	  {
+	    String[] option = args[i].split ("=", 2);
+	    long value = Long.parseLong (option[1]);
+	    if (option[0].equals ("time"))
+	      {
+		limits = SearchLimits.time (value);
+	      }
+	    else if (option[0].equals ("nodes"))
+	      {
+		limits = SearchLimits.nodes (value);
+	      }
+	    else if (option[0].equals ("depth"))
+	      {
+		limits = SearchLimits.depth ((int) value);
+	      }
+	    else if (option[0].equals ("threads"))
+	      {
+		workers = (int) value;
+	      }
+	    else if (option[0].equals ("metrics"))
+	      {
+		metrics = value != 0;
+	      }
+	  }
+	List < EpdResult > results =
+	  new EpdRunner (workers, 16, limits).
+	  run (EpdPosition.load (Paths.get (args[1])));
+	int solved = 0;
+	long nodes = 0;
+      for (EpdResult result:results)
+	  {
+	    System.out.println (result);
+	    solved += result.isSolved ()? 1 : 0;
+	    nodes += result.getResult ().getNodes ();
+	  }
+	System.out.println ("solved " + solved + "/" + results.size () +
+			    ", " + nodes + " nodes");
+	if (metrics)
+	  {
+	    System.out.print (Metrics.ENGINE.toText ());
+	  }
+      }
+    else if (args[0].equals ("analyse") && args.length >= 2)
+      {
+	SearchLimits limits = SearchLimits.depth (8);
+	int workers = threads;
+	int hash = 16;
+	Path out = null;
+	AnalysisCheckpoint checkpoint = null;
+	Path cacheFile = null;
+	int cacheMegabytes = 256;
+	for (int i = 2; i < args.length; i++)
+	  {
+	    String[] option = args[i].split ("=", 2);
+	    switch (option[0])
+	      {
+	      case "time":
+		limits = SearchLimits.time (Long.parseLong (option[1]));
+		break;
+	      case "nodes":
+		limits = SearchLimits.nodes (Long.parseLong (option[1]));
+		break;
+	      case "depth":
+		limits = SearchLimits.depth (Integer.parseInt (option[1]));
+		break;
+	      case "threads":
+		workers = Integer.parseInt (option[1]);
+		break;
+	      case "hash":
+		hash = Integer.parseInt (option[1]);
+		break;
+	      case "out":
+		out = Paths.get (option[1]);
+		break;
+	      case "checkpoint":
+		checkpoint = new AnalysisCheckpoint (Paths.get (option[1]));
+		break;
+	      case "cache":
+		cacheFile = Paths.get (option[1]);
+		break;
+	      case "cachesize":
+		cacheMegabytes = Integer.parseInt (option[1]);
+		break;
+	      default:
+		throw new ChessException ("unknown option " + args[i]);
+	      }
+	  }
+	BufferedReader input = args[1].equals ("-")
+	  ? new BufferedReader (new InputStreamReader (System.in,
+						       StandardCharsets.UTF_8))
+	  : Files.newBufferedReader (Paths.get (args[1]),
+				     StandardCharsets.UTF_8);
+	BatchAnalyzer analyzer = new BatchAnalyzer (workers, hash, limits);
+	AnalysisCache cache = (cacheFile == null) ? null
+	  : new AnalysisCache (cacheFile, cacheMegabytes);
+	analyzer.setCache (cache);
+	long skip = (checkpoint == null) ? 0 : checkpoint.getLines ();
+	if (out == null)
+	  {
+	    AnalysisCheckpoint resume = checkpoint;
+	    analyzer.run (input, skip, System.out, lines ->
+			  {
+			    if (resume != null)
+			      {
+				try
+				{
+				  resume.save (lines, 0);
+				}
+				catch (IOException e)
+				{
+				  throw new UncheckedIOException (e);
+				}
+			      }
+			  });
+	  }
+	else
+	  {
+	    // results past the checkpoint are cut off and analysed again
+	    try (FileChannel channel =
+		 FileChannel.open (out, StandardOpenOption.CREATE,
+				   StandardOpenOption.WRITE))
+	    {
+	      channel.truncate ((checkpoint == null)
+				? 0 : checkpoint.getBytes ());
+	      channel.position (channel.size ());
+	      AnalysisCheckpoint resume = checkpoint;
+	      analyzer.run (input, skip, Channels.newOutputStream (channel),
+			    lines ->
+			    {
+			      if (resume != null)
+				{
+				  try
+				  {
+				    channel.force (false);
+				    resume.save (lines, channel.position ());
+				  }
+				  catch (IOException e)
+				  {
+				    throw new UncheckedIOException (e);
+				  }
+				}
+			    });
+	    }
+	  }
+	input.close ();
+	if (cache != null)
+	  {
+	    cache.close ();
+	  }
+      }
+    else if (args[0].equals ("mate") && args.length >= 3)
+      {
+	ChessMatch chessMatch = new ChessMatch (args[1]);
+	int mateIn = Integer.parseInt (args[2]);
+	MateSolver solver = new MateSolver (64);
+	boolean all = false;
+	for (int i = 3; i < args.length; i++)
+	  {
+	    String[] option = args[i].split ("=", 2);
+	    switch (option[0])
+	      {
+	      case "hash":
+		solver = new MateSolver (Integer.parseInt (option[1]));
+		break;
+	      case "nodes":
+		solver.setNodeLimit (Long.parseLong (option[1]));
+		break;
+	      case "all":
+		all = !option[1].equals ("0");
+		break;
+	      default:
+		throw new ChessException ("unknown option " + args[i]);
+	      }
+	  }
+	long start = System.nanoTime ();
+	int result = solver.solve (chessMatch, mateIn);
+	System.out.print ((result == MateSolver.PROVEN) ? "mate"
+			  : (result == MateSolver.DISPROVEN) ? "no mate"
+			  : "unknown");
+	long millis = (System.nanoTime () - start) / 1000000;
+	System.out.println (" in " + mateIn + ", " + solver.getNodes () +
+			    " nodes, " + millis + " ms");
+	if (result == MateSolver.PROVEN)
+	  {
+	    StringBuilder sb = new StringBuilder ("pv");
+	  for (int move:solver.getPv ())
+	      {
+		sb.append (' ').append (Move.toUci (move));
+	      }
+	    System.out.println (sb);
+	  }
+	if (all)
+	  {
+	    int[] solutions = solver.solutions (chessMatch, mateIn);
+	    if (solutions == null)
+	      {
+		System.out.println ("solutions unknown");
+	      }
+	    else
+	      {
+		StringBuilder sb =
+		  new StringBuilder ("solutions " + solutions.length);
+	      for (int move:solutions)
+		  {
+		    sb.append (' ').append (Move.toUci (move));
+		  }
+		System.out.println (sb);
+	      }
+	  }
+      }
+    else if (args[0].equals ("selfplay") && args.length >= 2)
+      {
+	EngineConfig a = EngineConfig.parse ("a,nodes=5000");
+	EngineConfig b = EngineConfig.parse ("b,nodes=5000");
+	int games = 1000;
+	int maxPlies = 400;
+	Path out = Paths.get ("selfplay.chg");
+	double[] sprt = { 0, 5, 0.05, 0.05 };
+	boolean sequential = true;
+	for (int i = 2; i < args.length; i++)
+	  {
+	    String[] option = args[i].split ("=", 2);
+	    switch (option[0])
+	      {
+	      case "a":
+		a = EngineConfig.parse (option[1]);
+		break;
+	      case "b":
+		b = EngineConfig.parse (option[1]);
+		break;
+	      case "games":
+		games = Integer.parseInt (option[1]);
+		break;
+	      case "threads":
+		threads = Integer.parseInt (option[1]);
+		break;
+	      case "maxplies":
+		maxPlies = Integer.parseInt (option[1]);
+		break;
+	      case "out":
+		out = Paths.get (option[1]);
+		break;
+	      case "elo0":
+		sprt[0] = Double.parseDouble (option[1]);
+		break;
+	      case "elo1":
+		sprt[1] = Double.parseDouble (option[1]);
+		break;
+	      case "alpha":
+		sprt[2] = Double.parseDouble (option[1]);
+		break;
+	      case "beta":
+		sprt[3] = Double.parseDouble (option[1]);
+		break;
+	      case "sprt":
+		sequential = !option[1].equals ("0");
+		break;
+	      default:
+		throw new ChessException ("unknown option " + args[i]);
+	      }
+	  }
+	List < String > openings = args[1].equals ("startpos")
+	  ? List.of (UciEngine.START_FEN)
+	  : Tournament.loadOpenings (Paths.get (args[1]));
+	try (CompactGameWriter writer =
+	     new CompactGameWriter (Files.newOutputStream (out)))
+	{
+	  Tournament tournament =
+	    new Tournament (a, b, openings, threads, maxPlies,
+			    sequential ? new Sprt (sprt[0], sprt[1], sprt[2],
+						   sprt[3]) : null, writer,
+			    System.out::println);
+	  System.out.println (tournament.run (games));
+	}
+      }
+    else
+      {
+	System.out.println ("usage: import <file.pgn> [out.chg]");
+	System.out.println ("       dbadd <dir> <file.chg>");
+	System.out.println ("       explore <dir> [san moves...]");
+	System.out.println ("       buildtree <out.tree> <file.chg> [plies]");
+	System.out.println ("       tree <file.tree> [san moves...]");
+	System.out.println ("       epd <file.epd> [time=ms|nodes=n|depth=d] [threads=n]");
+	System.out.println ("           [metrics=1]");
+	System.out.println ("       analyse <file|-> [depth=d|nodes=n|time=ms] [threads=n]");
+	System.out.println ("           [hash=MB] [out=file] [checkpoint=file]");
+	System.out.println ("           [cache=file] [cachesize=MB]");
+	System.out.println ("       mate <fen> <moves> [hash=MB] [nodes=n] [all=1]");
+	System.out.println ("       selfplay <openings|startpos> [a=<engine>] [b=<engine>]");
+	System.out.println ("           [games=n] [threads=n] [maxplies=n] [out=file.chg]");
+	System.out.println ("           [elo0=0] [elo1=5] [alpha=0.05] [beta=0.05] [sprt=0]");
+	System.out.println ("         engine: name,hash=MB,depth=n,nodes=n," +
+			    "movetime=ms,tc=seconds+increment");
+	System.out.println ("       uci");
+	System.out.println ("       serve [port] [options]");
+	System.out.println ("       http [port] [options]");
+	System.out.println ("         options: slab=<file> idle=<seconds> " +
+			    "resident=<n> journal=<file> commit=<ms>");
+      }
+  }
+
+  // hibernation and journaling are on once their files are named
+  private static SessionRegistry sessionRegistry (String[]args, int threads)
+    throws IOException, InterruptedException
+  {
+    Path slab = null;
+    Path journalFile = null;
+    long idle = 300;
+    long commit = 2;
+    int resident = 100000;
+    for (int i = 2; i < args.length; i++)
+      {
+	String[] option = args[i].split ("=", 2);
+	if (option[0].equals ("slab"))
+	  {
+	    slab = Paths.get (option[1]);
+	  }
+	else if (option[0].equals ("idle"))
+	  {
+	    idle = Long.parseLong (option[1]);
+	  }
+	else if (option[0].equals ("resident"))
+	  {
+	    resident = Integer.parseInt (option[1]);
+	  }
+	else if (option[0].equals ("journal"))
+	  {
+	    journalFile = Paths.get (option[1]);
+	  }
+	else if (option[0].equals ("commit"))
+	  {
+	    commit = Long.parseLong (option[1]);
+	  }
+      }
+    MatchHibernator hibernator = (slab == null) ? null
+      : new MatchHibernator (new MatchSlab (slab, 512), idle * 1000, resident);
+    if (journalFile == null)
+      {
+	return new SessionRegistry (threads, hibernator, null);
+      }
+    JournalRecovery recovery = MoveJournal.recover (journalFile, threads);
+    MoveJournal journal =
+      new MoveJournal (journalFile, recovery.getValidLength (), commit);
+    SessionRegistry registry = new SessionRegistry (threads, hibernator, journal);
+    for (Map.Entry < Long, ChessMatch > entry:recovery.getMatches ().entrySet ())
+      {
+	registry.restore (entry.getKey (), entry.getValue ());
+      }
+    System.out.println ("recovered " + recovery.getMatches ().size () +
+			" games from " + recovery.getRecords () + " records, " +
+			recovery.getFailed () + " failed");
+    return registry;
+  }
+
+  private static void writeGames (CompactGameWriter writer,
+				  List < GameRecord > games)
+  {
+    try
+    {
+    for (GameRecord game:games)
+	{
+	  writer.write (game);
+	}
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException (e);
+    }
+  }
 }